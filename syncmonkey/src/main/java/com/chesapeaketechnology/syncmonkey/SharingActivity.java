@@ -15,6 +15,7 @@ import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.UploadQueue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -22,6 +23,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -37,6 +39,7 @@ public class SharingActivity extends AppCompatActivity
     private Uri sharedFileUri;
     private List<Uri> sharedFileUris;
     private String sharedText;
+    private final List<String> copiedFilePaths = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -48,6 +51,8 @@ public class SharingActivity extends AppCompatActivity
         shareButton.setOnClickListener(view -> {
             if (copySharedFilesToSyncMonkeyDirectory())
             {
+                // Queue the shared files ahead of any survey data so they are uploaded first, even if a sync is already running
+                new UploadQueue(getApplicationContext()).enqueue(copiedFilePaths, UploadQueue.Priority.INTERACTIVE);
                 FileUploadSyncAdapter.runSyncAdapterNow(getApplicationContext());
                 finish();
             }
@@ -354,6 +359,7 @@ public class SharingActivity extends AppCompatActivity
 
         //noinspection ResultOfMethodCallIgnored
         targetFile.createNewFile();
+        copiedFilePaths.add(targetFile.getAbsolutePath());
 
         return new FileOutputStream(targetFile);
     }
@@ -6,6 +6,7 @@ import android.content.Intent;
 import android.util.Log;
 
 import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.LiveSyncService;
 
 import net.grandcentrix.tray.AppPreferences;
 
@@ -38,6 +39,7 @@ public class StartSyncMonkeyAtBootReceiver extends BroadcastReceiver
             SyncMonkeyMainActivity.installRcloneConfigFile(applicationContext, appPreferences);
 
             FileUploadSyncAdapter.addPeriodicSync(applicationContext);
+            LiveSyncService.ensureRunning(applicationContext);
 
             // Register a listener for Managed Configuration changes.
             SyncMonkeyMainActivity.registerManagedConfigurationListener(applicationContext, appPreferences);
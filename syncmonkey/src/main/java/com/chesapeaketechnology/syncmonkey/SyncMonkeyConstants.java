@@ -38,6 +38,34 @@ public class SyncMonkeyConstants
     public static final String PROPERTY_AUTO_SYNC_KEY = "autoSync";
     public static final String PROPERTY_VPN_ONLY_KEY = "vpnOnly";
     public static final String PROPERTY_WIFI_ONLY_KEY = "wifiOnly";
+    public static final String PROPERTY_UPLOAD_PARALLELISM_KEY = "uploadParallelism";
+    public static final String PROPERTY_RCLONE_DAEMON_KEY = "rcloneDaemon";
+    public static final String PROPERTY_CHECKSUM_KEY = "checksum";
+    public static final String PROPERTY_COMPRESSION_KEY = "compressUploads";
+    public static final String PROPERTY_BUNDLE_THRESHOLD_KEY = "bundleThresholdBytes";
+    public static final String PROPERTY_BANDWIDTH_SCHEDULE_WIFI_KEY = "bandwidthScheduleWifi";
+    public static final String PROPERTY_BANDWIDTH_SCHEDULE_VPN_KEY = "bandwidthScheduleVpn";
+    public static final String PROPERTY_BANDWIDTH_SCHEDULE_CELLULAR_KEY = "bandwidthScheduleCellular";
+    public static final String PROPERTY_RESUMABLE_UPLOADS_KEY = "resumableUploads";
+    public static final String PROPERTY_SYNC_SESSION_MAX_MINUTES_KEY = "syncSessionMaxMinutes";
+    public static final String PROPERTY_SYNC_SESSION_MAX_MEGABYTES_KEY = "syncSessionMaxMegabytes";
+    public static final String PROPERTY_JOB_SCHEDULER_KEY = "jobScheduler";
+    public static final String PROPERTY_REQUIRE_CHARGING_KEY = "requireCharging";
+    public static final String PROPERTY_ADAPTIVE_SYNC_INTERVAL_KEY = "adaptiveSyncInterval";
+    public static final String PROPERTY_SYNC_INTERVAL_MIN_MINUTES_KEY = "syncIntervalMinMinutes";
+    public static final String PROPERTY_SYNC_INTERVAL_MAX_MINUTES_KEY = "syncIntervalMaxMinutes";
+    public static final String PROPERTY_RETENTION_RULES_KEY = "retentionRules";
+    public static final String PROPERTY_SCAN_INCLUDE_KEY = "scanInclude";
+    public static final String PROPERTY_SCAN_EXCLUDE_KEY = "scanExclude";
+    public static final String PROPERTY_SCAN_MAX_DEPTH_KEY = "scanMaxDepth";
+    public static final String PROPERTY_SCAN_MAX_FILE_MEGABYTES_KEY = "scanMaxFileMegabytes";
+    public static final String PROPERTY_SCAN_MAX_FILE_AGE_DAYS_KEY = "scanMaxFileAgeDays";
+    public static final String PROPERTY_STABLE_QUIET_SECONDS_KEY = "stableQuietSeconds";
+    public static final String PROPERTY_COMPLETION_MARKER_SUFFIX_KEY = "completionMarkerSuffix";
+    public static final String PROPERTY_TAIL_STREAM_PATTERNS_KEY = "tailStreamPatterns";
+    public static final String PROPERTY_TAIL_STREAM_INTERVAL_SECONDS_KEY = "tailStreamIntervalSeconds";
+    public static final String PROPERTY_DEDUPLICATE_KEY = "deduplicateUploads";
 
     public static final String DEFAULT_DEVICE_ID = "UnknownDeviceId";
+    public static final int DEFAULT_UPLOAD_PARALLELISM = 2;
 }
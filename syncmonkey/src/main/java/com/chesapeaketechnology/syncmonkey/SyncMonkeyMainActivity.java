@@ -25,6 +25,8 @@ import androidx.core.app.ActivityCompat;
 import androidx.preference.PreferenceManager;
 
 import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.LiveSyncService;
+import com.chesapeaketechnology.syncmonkey.fileupload.RetryPolicy;
 import com.chesapeaketechnology.syncmonkey.settings.SettingsActivity;
 
 import net.grandcentrix.tray.AppPreferences;
@@ -35,6 +37,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Objects;
 import java.util.Properties;
 
 public class SyncMonkeyMainActivity extends AppCompatActivity
@@ -235,7 +238,11 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
 
         // Per the ContentResolver#addPeriodicSync javadoc, if the is already another periodic sync scheduled with the account, authority, and extras, then
         // a new periodic sync won't be added.
-        if (autoSync) FileUploadSyncAdapter.addPeriodicSync(getApplicationContext());
+        if (autoSync)
+        {
+            FileUploadSyncAdapter.addPeriodicSync(getApplicationContext());
+            LiveSyncService.ensureRunning(getApplicationContext());
+        }
     }
 
     /**
@@ -296,6 +303,14 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
                     case SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY:
                     case SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY:
                     case SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY:
+                    case SyncMonkeyConstants.PROPERTY_RCLONE_DAEMON_KEY:
+                    case SyncMonkeyConstants.PROPERTY_CHECKSUM_KEY:
+                    case SyncMonkeyConstants.PROPERTY_COMPRESSION_KEY:
+                    case SyncMonkeyConstants.PROPERTY_RESUMABLE_UPLOADS_KEY:
+                    case SyncMonkeyConstants.PROPERTY_JOB_SCHEDULER_KEY:
+                    case SyncMonkeyConstants.PROPERTY_REQUIRE_CHARGING_KEY:
+                    case SyncMonkeyConstants.PROPERTY_ADAPTIVE_SYNC_INTERVAL_KEY:
+                    case SyncMonkeyConstants.PROPERTY_DEDUPLICATE_KEY:
                         appPreferences.put(key, Boolean.parseBoolean((String) preferenceEntry.getValue()));
                         break;
 
@@ -337,6 +352,9 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
                     } else if (property instanceof Boolean)
                     {
                         appPreferences.put(key, (Boolean) property);
+                    } else if (property instanceof Integer)
+                    {
+                        appPreferences.put(key, (Integer) property);
                     }
                 });
             }
@@ -363,8 +381,25 @@ public class SyncMonkeyMainActivity extends AppCompatActivity
             @Override
             public void onReceive(Context context, Intent intent)
             {
+                final String previousSasUrl = appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, null);
+                final String previousContainerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
+
                 readSyncMonkeyManagedConfiguration(context, appPreferences);
                 installRcloneConfigFile(context, appPreferences);
+
+                // Failures with the old credentials don't apply to the new ones, so don't let them hold the circuit breaker open
+                if (!Objects.equals(previousSasUrl, appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, null))
+                        || !Objects.equals(previousContainerName, appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null)))
+                {
+                    RetryPolicy.resetConfiguredRemote(context);
+                }
+
+                // Pick up any change to the scheduling backend, the upload job constraints, the sync directories, or the streamed files
+                if (appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true))
+                {
+                    FileUploadSyncAdapter.addPeriodicSync(context);
+                }
+                LiveSyncService.update(context);
             }
         };
 
@@ -0,0 +1,195 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.Locale;
+
+/**
+ * Picks the period of the scheduled syncs from how fast the sync directories produce data, so a device that captures gigabytes an hour uploads in
+ * smaller, more frequent syncs, and a device that produces almost nothing isn't woken up every hour for no reason.
+ * <p>
+ * After each sync, the bytes of the planned files that were modified since the previous sync are counted for each sync directory, and folded into a
+ * smoothed production rate for that directory.  The interval is then sized so that a sync uploads about {@link #TARGET_BYTES_PER_SYNC} at the combined
+ * rate, and it is halved when the backlog left after a sync is large and still growing.  The interval is kept within the minimum and maximum from the user
+ * preferences, and small changes are ignored so the schedule isn't replaced after every sync.
+ * <p>
+ * The chosen interval and the reason for it are kept in the {@link AppPreferences} for diagnostics.  When adaptive scheduling is disabled, the interval is
+ * always {@link #DEFAULT_INTERVAL_SECONDS}.
+ *
+ * @since 0.0.10
+ */
+public class AdaptiveSyncInterval
+{
+    private static final String LOG_TAG = AdaptiveSyncInterval.class.getSimpleName();
+
+    public static final long DEFAULT_INTERVAL_SECONDS = SyncMonkeyConstants.SECONDS_IN_HOUR;
+
+    private static final int DEFAULT_MIN_INTERVAL_MINUTES = 15;
+    private static final int DEFAULT_MAX_INTERVAL_MINUTES = 4 * 60;
+
+    /**
+     * How much data a single sync should upload, which is the same as the size of an {@link UploadQueue} batch.
+     */
+    private static final long TARGET_BYTES_PER_SYNC = 64L * 1024 * 1024;
+
+    /**
+     * The weight of the newest sample in each directory's smoothed production rate.
+     */
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    /**
+     * A new interval is only applied if it differs from the current one by more than this fraction.
+     */
+    private static final double MIN_CHANGE_RATIO = 0.2;
+
+    private static final String PREFERENCE_KEY_PREFIX = "adaptiveSyncInterval.";
+    private static final String INTERVAL_KEY = PREFERENCE_KEY_PREFIX + "intervalSeconds";
+    private static final String REASON_KEY = PREFERENCE_KEY_PREFIX + "reason";
+    private static final String LAST_SAMPLE_KEY = PREFERENCE_KEY_PREFIX + "lastSampleMillis";
+    private static final String BACKLOG_KEY = PREFERENCE_KEY_PREFIX + "backlogBytes";
+    private static final String RATE_KEY_PREFIX = PREFERENCE_KEY_PREFIX + "bytesPerSecond.";
+
+    private final AppPreferences appPreferences;
+
+    public AdaptiveSyncInterval(Context context)
+    {
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * @return True if the sync interval should adapt to the data production rate, as set in the user preferences.
+     */
+    public boolean isEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_ADAPTIVE_SYNC_INTERVAL_KEY, false);
+    }
+
+    /**
+     * @return The period of the scheduled syncs, in seconds.
+     */
+    public long getIntervalSeconds()
+    {
+        if (!isEnabled()) return DEFAULT_INTERVAL_SECONDS;
+
+        return appPreferences.getLong(INTERVAL_KEY, DEFAULT_INTERVAL_SECONDS);
+    }
+
+    /**
+     * @return Why the current interval was chosen, for diagnostics.
+     */
+    public String getReason()
+    {
+        if (!isEnabled()) return "adaptive sync scheduling is disabled";
+
+        return appPreferences.getString(REASON_KEY, "no sync has been measured yet");
+    }
+
+    /**
+     * Updates the production rates from a sync that just finished, and picks a new interval from them.
+     *
+     * @param syncPlan     The files that were planned for the sync.
+     * @param backlogBytes The bytes in the plan that were not uploaded by the sync.
+     */
+    public synchronized void update(SyncPlan syncPlan, long backlogBytes)
+    {
+        if (!isEnabled()) return;
+
+        final long now = System.currentTimeMillis();
+        final long lastSampleMillis = appPreferences.getLong(LAST_SAMPLE_KEY, 0);
+        final long previousBacklogBytes = appPreferences.getLong(BACKLOG_KEY, 0);
+        appPreferences.put(LAST_SAMPLE_KEY, now);
+        appPreferences.put(BACKLOG_KEY, backlogBytes);
+
+        // Without a previous sample there is no way to tell new files from an old backlog
+        if (lastSampleMillis <= 0 || now <= lastSampleMillis) return;
+
+        final double elapsedSeconds = (now - lastSampleMillis) / 1000.0;
+        double totalBytesPerSecond = 0;
+        for (SyncPlan.SourcePlan sourcePlan : syncPlan.getSourcePlans())
+        {
+            long producedBytes = 0;
+            for (LocalFileEntry fileEntry : sourcePlan.getEntries())
+            {
+                if (fileEntry.getLastModified() > lastSampleMillis) producedBytes += fileEntry.getSize();
+            }
+
+            final String rateKey = RATE_KEY_PREFIX + sourcePlan.getSyncDirectoryPath();
+            final double bytesPerSecond = SMOOTHING_FACTOR * (producedBytes / elapsedSeconds)
+                    + (1 - SMOOTHING_FACTOR) * appPreferences.getFloat(rateKey, 0f);
+            appPreferences.put(rateKey, (float) bytesPerSecond);
+            totalBytesPerSecond += bytesPerSecond;
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            {
+                Log.d(LOG_TAG, sourcePlan.getSyncDirectoryPath() + " produced " + producedBytes + " bytes, smoothed rate " + formatRate(bytesPerSecond));
+            }
+        }
+
+        final long minIntervalSeconds = getMinutes(SyncMonkeyConstants.PROPERTY_SYNC_INTERVAL_MIN_MINUTES_KEY, DEFAULT_MIN_INTERVAL_MINUTES) * 60L;
+        final long maxIntervalSeconds = Math.max(minIntervalSeconds,
+                getMinutes(SyncMonkeyConstants.PROPERTY_SYNC_INTERVAL_MAX_MINUTES_KEY, DEFAULT_MAX_INTERVAL_MINUTES) * 60L);
+        final long currentIntervalSeconds = getIntervalSeconds();
+
+        long intervalSeconds;
+        String reason;
+        if (totalBytesPerSecond * maxIntervalSeconds < 1)
+        {
+            intervalSeconds = maxIntervalSeconds;
+            reason = "the sync directories are idle";
+        } else
+        {
+            intervalSeconds = (long) (TARGET_BYTES_PER_SYNC / totalBytesPerSecond);
+            reason = "the sync directories produce " + formatRate(totalBytesPerSecond);
+        }
+
+        if (backlogBytes > TARGET_BYTES_PER_SYNC && backlogBytes > previousBacklogBytes && intervalSeconds > currentIntervalSeconds / 2)
+        {
+            intervalSeconds = currentIntervalSeconds / 2;
+            reason = "the backlog grew to " + formatBytes(backlogBytes);
+        }
+
+        if (intervalSeconds < minIntervalSeconds)
+        {
+            intervalSeconds = minIntervalSeconds;
+            reason += ", limited to the minimum interval";
+        } else if (intervalSeconds > maxIntervalSeconds)
+        {
+            intervalSeconds = maxIntervalSeconds;
+            reason += ", limited to the maximum interval";
+        }
+
+        if (Math.abs(intervalSeconds - currentIntervalSeconds) <= currentIntervalSeconds * MIN_CHANGE_RATIO) return;
+
+        Log.i(LOG_TAG, "Changing the sync interval from " + currentIntervalSeconds + " to " + intervalSeconds + " seconds because " + reason);
+        appPreferences.put(INTERVAL_KEY, intervalSeconds);
+        appPreferences.put(REASON_KEY, reason);
+    }
+
+    private int getMinutes(String key, int defaultMinutes)
+    {
+        try
+        {
+            final int minutes = appPreferences.getInt(key, defaultMinutes);
+            return minutes > 0 ? minutes : defaultMinutes;
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The " + key + " preference is not a valid integer, using the default", e);
+            return defaultMinutes;
+        }
+    }
+
+    private static String formatRate(double bytesPerSecond)
+    {
+        return formatBytes((long) (bytesPerSecond * SyncMonkeyConstants.SECONDS_IN_HOUR)) + " per hour";
+    }
+
+    private static String formatBytes(long bytes)
+    {
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,257 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how much bandwidth uploads may use, based on the type of network the device is on and the time of day, so that a sync does not saturate a
+ * shared field link during working hours.
+ * <p>
+ * A schedule is configured for each network type using the rclone {@code --bwlimit} syntax.  It is either a single rate, or a timetable of
+ * {@code [Day-]HH:MM,rate} entries separated by spaces, such as {@code "08:00,512k:2M 18:00,off"}.  Each rate is either {@code off} or a size with an
+ * optional {@code B}, {@code K}, {@code M}, or {@code G} suffix, and is applied to both directions unless it is written as {@code upload:download}.  Entries
+ * without a day apply to every day.  A missing or invalid schedule leaves uploads unthrottled.
+ * <p>
+ * rclone processes are handed the whole timetable, and rclone follows it for as long as the process runs.  The {@link RcloneDaemon} only takes a single
+ * rate, so the rate in effect is looked up here and re-applied while a daemon job is running.
+ *
+ * @since 0.0.10
+ */
+public class BandwidthPolicy
+{
+    private static final String LOG_TAG = BandwidthPolicy.class.getSimpleName();
+
+    public static final String RATE_OFF = "off";
+
+    private static final String RATE_REGEX = "(?:off|\\d+(?:\\.\\d+)?[bBkKmMgGtTpP]?)";
+    private static final Pattern RATE_PATTERN = Pattern.compile(RATE_REGEX + "(?::" + RATE_REGEX + ")?");
+    private static final Pattern ENTRY_PATTERN = Pattern.compile("(?:([A-Za-z]+)-)?(\\d{1,2}):(\\d{2}),(\\S+)");
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /**
+     * The day prefixes that rclone accepts, in the order of the days since Monday.
+     */
+    private static final List<String> DAYS = Arrays.asList("mon", "tue", "wed", "thu", "fri", "sat", "sun");
+
+    /**
+     * The type of network that an upload runs over, each of which has its own schedule.
+     */
+    public enum NetworkType
+    {
+        WIFI(SyncMonkeyConstants.PROPERTY_BANDWIDTH_SCHEDULE_WIFI_KEY),
+        VPN(SyncMonkeyConstants.PROPERTY_BANDWIDTH_SCHEDULE_VPN_KEY),
+        CELLULAR(SyncMonkeyConstants.PROPERTY_BANDWIDTH_SCHEDULE_CELLULAR_KEY);
+
+        private final String preferenceKey;
+
+        NetworkType(String preferenceKey)
+        {
+            this.preferenceKey = preferenceKey;
+        }
+    }
+
+    private final ConnectivityMonitor connectivityMonitor;
+    private final AppPreferences appPreferences;
+
+    BandwidthPolicy(Context context)
+    {
+        connectivityMonitor = ConnectivityMonitor.getInstance(context);
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * @return The schedule for the network the device is on right now, in a form that can be passed to {@code --bwlimit}, or null if uploads on this
+     * network are not limited.
+     */
+    public String getTimetable()
+    {
+        final NetworkType networkType = getActiveNetworkType();
+        final List<Slot> slots = getSlots(networkType);
+        if (slots.isEmpty()) return null;
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Using the " + networkType + " bandwidth schedule: " + slots);
+
+        final StringBuilder timetable = new StringBuilder();
+        for (Slot slot : slots)
+        {
+            if (timetable.length() > 0) timetable.append(' ');
+            timetable.append(slot);
+        }
+        return timetable.toString();
+    }
+
+    /**
+     * @return The rate that applies right now on the network the device is on, in the {@code upload:download} form that {@code core/bwlimit} takes, or
+     * {@link #RATE_OFF} if uploads are not limited.
+     */
+    public String getCurrentRate()
+    {
+        return getRateAt(getSlots(getActiveNetworkType()), Calendar.getInstance());
+    }
+
+    /**
+     * Looks up the rate in effect at the provided time.  Entries without a day are expanded to every day of the week, and the entry in effect is the last
+     * one that started at or before the time, wrapping around to the end of the week if none has started yet this week.
+     */
+    static String getRateAt(List<Slot> slots, Calendar time)
+    {
+        if (slots.isEmpty()) return RATE_OFF;
+
+        final int daysSinceMonday = (time.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        final int minuteOfWeek = daysSinceMonday * MINUTES_PER_DAY + time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+
+        Slot current = null;
+        int currentStart = -1;
+        Slot last = null;
+        int lastStart = -1;
+        for (Slot slot : slots)
+        {
+            for (int day = 0; day < 7; day++)
+            {
+                if (slot.day != Slot.EVERY_DAY && slot.day != day) continue;
+
+                final int start = day * MINUTES_PER_DAY + slot.minuteOfDay;
+                if (start <= minuteOfWeek && start > currentStart)
+                {
+                    current = slot;
+                    currentStart = start;
+                }
+                if (start > lastStart)
+                {
+                    last = slot;
+                    lastStart = start;
+                }
+            }
+        }
+
+        return (current != null ? current : last).rate;
+    }
+
+    /**
+     * @return The type of the network that traffic is currently routed over, taken from the {@link ConnectivityMonitor} snapshot.
+     */
+    public NetworkType getActiveNetworkType()
+    {
+        return connectivityMonitor.getState().getActiveNetworkType();
+    }
+
+    /**
+     * @return The type of a network with the provided capabilities.  A VPN takes precedence over the network underneath it, and a network that is not known
+     * is treated as cellular.
+     */
+    static NetworkType getNetworkType(NetworkCapabilities capabilities)
+    {
+        if (capabilities == null) return NetworkType.CELLULAR;
+
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) return NetworkType.VPN;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET))
+        {
+            return NetworkType.WIFI;
+        }
+        return NetworkType.CELLULAR;
+    }
+
+    private List<Slot> getSlots(NetworkType networkType)
+    {
+        return parseScheduleOrUnthrottled(appPreferences.getString(networkType.preferenceKey, null), networkType);
+    }
+
+    /**
+     * Parses the schedule for the provided network type, falling back to no slots, which leaves uploads unthrottled, if it is missing or invalid.
+     */
+    static List<Slot> parseScheduleOrUnthrottled(String schedule, NetworkType networkType)
+    {
+        if (schedule == null || schedule.trim().isEmpty()) return Collections.emptyList();
+
+        try
+        {
+            return parseSchedule(schedule);
+        } catch (IllegalArgumentException e)
+        {
+            Log.w(LOG_TAG, "Ignoring the invalid " + networkType + " bandwidth schedule \"" + schedule + "\"", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Parses a schedule in the rclone {@code --bwlimit} syntax.
+     *
+     * @throws IllegalArgumentException If the schedule is not valid.
+     */
+    static List<Slot> parseSchedule(String schedule)
+    {
+        final String[] tokens = schedule.trim().split("\\s+");
+
+        // A single rate without a time applies all day, every day
+        if (tokens.length == 1 && RATE_PATTERN.matcher(tokens[0]).matches())
+        {
+            return Collections.singletonList(new Slot(Slot.EVERY_DAY, 0, tokens[0]));
+        }
+
+        final List<Slot> slots = new ArrayList<>();
+        for (String token : tokens)
+        {
+            final Matcher matcher = ENTRY_PATTERN.matcher(token);
+            if (!matcher.matches()) throw new IllegalArgumentException("Not a timetable entry: " + token);
+
+            int day = Slot.EVERY_DAY;
+            if (matcher.group(1) != null)
+            {
+                final String dayName = matcher.group(1).toLowerCase(Locale.US);
+                day = dayName.length() >= 3 ? DAYS.indexOf(dayName.substring(0, 3)) : -1;
+                if (day < 0) throw new IllegalArgumentException("Not a day of the week: " + matcher.group(1));
+            }
+
+            final int hour = Integer.parseInt(matcher.group(2));
+            final int minute = Integer.parseInt(matcher.group(3));
+            if (hour > 23 || minute > 59) throw new IllegalArgumentException("Not a time of day: " + token);
+
+            final String rate = matcher.group(4);
+            if (!RATE_PATTERN.matcher(rate).matches()) throw new IllegalArgumentException("Not a bandwidth rate: " + rate);
+
+            slots.add(new Slot(day, hour * 60 + minute, rate));
+        }
+        return slots;
+    }
+
+    /**
+     * A single entry in a bandwidth timetable.
+     */
+    static class Slot
+    {
+        static final int EVERY_DAY = -1;
+
+        private final int day;
+        private final int minuteOfDay;
+        private final String rate;
+
+        Slot(int day, int minuteOfDay, String rate)
+        {
+            this.day = day;
+            this.minuteOfDay = minuteOfDay;
+            this.rate = rate;
+        }
+
+        @Override
+        public String toString()
+        {
+            final String dayPrefix = day == EVERY_DAY ? "" : Character.toUpperCase(DAYS.get(day).charAt(0)) + DAYS.get(day).substring(1) + "-";
+            return String.format(Locale.US, "%s%02d:%02d,%s", dayPrefix, minuteOfDay / 60, minuteOfDay % 60, rate);
+        }
+    }
+}
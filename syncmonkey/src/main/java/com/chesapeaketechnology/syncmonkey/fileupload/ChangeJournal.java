@@ -0,0 +1,147 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A journal of the local file paths that have changed since the last targeted sync.  The {@link SyncDirectoryWatcher} appends to the journal from the
+ * app's main process, and the {@link FileUploadSyncAdapter} drains it from the {@code :sync} process, so all access is guarded by an exclusive file lock.
+ * <p>
+ * Draining the journal moves it aside to a processing file instead of deleting it.  The processing file is only removed once the targeted sync succeeds,
+ * so that a failed or killed sync does not lose any of the changes it was handed.
+ *
+ * @since 0.0.10
+ */
+public class ChangeJournal
+{
+    private static final String LOG_TAG = ChangeJournal.class.getSimpleName();
+
+    private static final String JOURNAL_FILE_NAME = "change_journal.txt";
+    private static final String PROCESSING_FILE_NAME = "change_journal.processing";
+    private static final String LOCK_FILE_NAME = "change_journal.lock";
+
+    private final File journalFile;
+    private final File processingFile;
+    private final File lockFile;
+
+    public ChangeJournal(Context context)
+    {
+        final File filesDir = context.getFilesDir();
+        journalFile = new File(filesDir, JOURNAL_FILE_NAME);
+        processingFile = new File(filesDir, PROCESSING_FILE_NAME);
+        lockFile = new File(filesDir, LOCK_FILE_NAME);
+    }
+
+    /**
+     * Appends the provided path to the journal.
+     *
+     * @param path The absolute path of the local file that changed.
+     */
+    public void record(String path)
+    {
+        try (final RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+             final FileLock ignored = lock.getChannel().lock())
+        {
+            try (final FileOutputStream journalOutputStream = new FileOutputStream(journalFile, true))
+            {
+                journalOutputStream.write((path + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not record the changed file " + path + " in the change journal", e);
+        }
+    }
+
+    /**
+     * Takes all the paths currently in the journal, along with any paths left over from a previous drain that was never committed.
+     *
+     * @return The distinct changed paths, in the order they were first recorded.
+     */
+    public Set<String> drain()
+    {
+        final Set<String> changedPaths = new LinkedHashSet<>();
+
+        try (final RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+             final FileLock ignored = lock.getChannel().lock())
+        {
+            if (journalFile.exists())
+            {
+                if (processingFile.exists())
+                {
+                    // A previous drain was not committed, so fold the new entries into it
+                    readPaths(journalFile, changedPaths);
+                    try (final FileOutputStream processingOutputStream = new FileOutputStream(processingFile, true))
+                    {
+                        for (String path : changedPaths)
+                        {
+                            processingOutputStream.write((path + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    journalFile.delete();
+                    changedPaths.clear();
+                } else if (!journalFile.renameTo(processingFile))
+                {
+                    Log.e(LOG_TAG, "Could not move the change journal aside for processing");
+                    return changedPaths;
+                }
+            }
+
+            if (processingFile.exists()) readPaths(processingFile, changedPaths);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not drain the change journal", e);
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Drained " + changedPaths.size() + " changed paths from the journal");
+
+        return changedPaths;
+    }
+
+    /**
+     * Discards the paths returned by the last call to {@link #drain()}.  Call this only after all of them have been uploaded.
+     */
+    public void commitDrain()
+    {
+        try (final RandomAccessFile lock = new RandomAccessFile(lockFile, "rw");
+             final FileLock ignored = lock.getChannel().lock())
+        {
+            //noinspection ResultOfMethodCallIgnored
+            processingFile.delete();
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not commit the drained change journal", e);
+        }
+    }
+
+    /**
+     * @return True if there are no paths in the journal, including any left over from a previous drain that was never committed.
+     */
+    public boolean isEmpty()
+    {
+        return journalFile.length() == 0 && processingFile.length() == 0;
+    }
+
+    private static void readPaths(File file, Set<String> paths) throws IOException
+    {
+        try (final BufferedReader reader = new BufferedReader(new FileReader(file)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (!line.isEmpty()) paths.add(line);
+            }
+        }
+    }
+}
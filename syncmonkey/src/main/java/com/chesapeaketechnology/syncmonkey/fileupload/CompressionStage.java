@@ -0,0 +1,312 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An optional stage that runs before the upload and streams the compressible files in a {@link SyncPlan} through gzip into a staging directory in the
+ * cache.  The compressed copies keep their original names and are uploaded with a {@code Content-Encoding: gzip} header, so HTTP clients that download
+ * them see the original content.
+ * <p>
+ * Files that are already compressed, based on the MIME type from {@link FileItem#getMimeType(String, String)}, are skipped, as are small files and files
+ * that don't shrink by much.  The gzip level is picked by measuring how fast this device compresses a sample of the data, compared to the upload speed
+ * measured on the last sync, so that compression never becomes slower than the link.
+ *
+ * @since 0.0.10
+ */
+public class CompressionStage
+{
+    private static final String LOG_TAG = CompressionStage.class.getSimpleName();
+
+    public static final String CONTENT_ENCODING_HEADER = "Content-Encoding: gzip";
+
+    private static final String LINK_SPEED_PREFERENCE_KEY = "lastUploadBytesPerSecond";
+
+    private static final long MIN_COMPRESSIBLE_SIZE = 4 * 1024;
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final int SAMPLE_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Only use a level if it can compress at least this many times faster than the link can upload, so the upload stays limited by the link.
+     */
+    private static final double CPU_HEADROOM = 2.0;
+    private static final int[] CANDIDATE_LEVELS = {9, 6, 3, 1};
+
+    private static final String OCTET_STREAM = "application/octet-stream";
+    private static final List<String> COMPRESSED_MIME_TYPE_PREFIXES = Arrays.asList("image/", "video/", "audio/");
+    private static final Set<String> COMPRESSED_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/x-bzip2", "application/x-xz", "application/zstd", "application/java-archive", "application/vnd.android.package-archive",
+            "application/pdf"));
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "7z", "rar", "bz2", "xz", "zst", "jar", "apk", "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "m4a", "pdf"));
+
+    private final AppPreferences appPreferences;
+
+    CompressionStage(Context context)
+    {
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * Compresses each eligible file into the provided staging directory, using the file's path relative to its sync directory, and writes a files-from
+     * list for the compressed copies next to the staging directory.  Remove it with {@link SyncPlan#deleteStaging(File)}.
+     *
+     * @param fileEntries      The files that are about to be uploaded.
+     * @param stagingDirectory The directory to write the compressed copies to.
+     * @return The files that were compressed.
+     * @throws IOException If the staging directory could not be created.
+     */
+    public CompressedFiles compress(List<LocalFileEntry> fileEntries, File stagingDirectory) throws IOException
+    {
+        SyncPlan.deleteStaging(stagingDirectory);
+        if (!stagingDirectory.mkdirs()) throw new IOException("Could not create the compression staging directory " + stagingDirectory);
+
+        final List<LocalFileEntry> eligibleEntries = new ArrayList<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (isCompressible(fileEntry)) eligibleEntries.add(fileEntry);
+        }
+
+        final CompressedFiles compressedFiles = new CompressedFiles(
+                new File(stagingDirectory.getParentFile(), stagingDirectory.getName() + "-" + SyncPlan.FILES_FROM_LIST_NAME));
+        if (eligibleEntries.isEmpty()) return compressedFiles;
+
+        final int level = chooseLevel(eligibleEntries.get(0));
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Compressing " + eligibleEntries.size() + " files with gzip level " + level);
+
+        try (final BufferedWriter writer = new BufferedWriter(new FileWriter(compressedFiles.filesFromList)))
+        {
+            for (LocalFileEntry fileEntry : eligibleEntries)
+            {
+                final File compressedFile = new File(stagingDirectory, fileEntry.getRelativePath());
+
+                // Leave room in the cache for the rest of the sync rather than filling the disk
+                if (stagingDirectory.getUsableSpace() < fileEntry.getSize() * 2) break;
+
+                final long compressedSize = compressFile(fileEntry.getFile(), compressedFile, level);
+                if (compressedSize < 0 || compressedSize > fileEntry.getSize() * MAX_COMPRESSED_RATIO)
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    compressedFile.delete();
+                    continue;
+                }
+
+                compressedFiles.relativePaths.add(fileEntry.getRelativePath());
+                compressedFiles.originalBytes += fileEntry.getSize();
+                compressedFiles.compressedBytes += compressedSize;
+                writer.write(fileEntry.getRelativePath());
+                writer.newLine();
+            }
+        }
+
+        Log.i(LOG_TAG, "Compressed " + compressedFiles.relativePaths.size() + " files from " + compressedFiles.originalBytes + " to "
+                + compressedFiles.compressedBytes + " bytes");
+        return compressedFiles;
+    }
+
+    /**
+     * Records the upload speed that rclone reported, so that the next sync can pick a compression level that keeps up with the link.
+     */
+    public void recordLinkSpeed(TransferStats transferStats)
+    {
+        if (transferStats == null || transferStats.getBytes() < SAMPLE_SIZE || transferStats.getSpeedBytesPerSecond() <= 0) return;
+
+        appPreferences.put(LINK_SPEED_PREFERENCE_KEY, (float) transferStats.getSpeedBytesPerSecond());
+    }
+
+    private static boolean isCompressible(LocalFileEntry fileEntry)
+    {
+        if (fileEntry.getSize() < MIN_COMPRESSIBLE_SIZE) return false;
+
+        final String path = fileEntry.getPath();
+        final int extensionIndex = path.lastIndexOf('.');
+        if (extensionIndex >= 0 && COMPRESSED_EXTENSIONS.contains(path.substring(extensionIndex + 1).toLowerCase(Locale.US))) return false;
+
+        final String mimeType = FileItem.getMimeType(OCTET_STREAM, path);
+        if (COMPRESSED_MIME_TYPES.contains(mimeType)) return false;
+        for (String prefix : COMPRESSED_MIME_TYPE_PREFIXES)
+        {
+            if (mimeType.startsWith(prefix)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Picks the highest gzip level that this device can run at least {@link #CPU_HEADROOM} times faster than the last measured upload speed.
+     */
+    private int chooseLevel(LocalFileEntry sampleEntry)
+    {
+        final float linkBytesPerSecond = appPreferences.getFloat(LINK_SPEED_PREFERENCE_KEY, 0f);
+        if (linkBytesPerSecond <= 0) return Deflater.DEFAULT_COMPRESSION;
+
+        final byte[] sample = readSample(sampleEntry.getFile());
+        if (sample.length == 0) return Deflater.DEFAULT_COMPRESSION;
+
+        for (int level : CANDIDATE_LEVELS)
+        {
+            final double compressBytesPerSecond = measureCompressionSpeed(sample, level);
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            {
+                Log.d(LOG_TAG, "gzip level " + level + " compresses at " + (long) compressBytesPerSecond + " B/s, the link uploads at " + (long) linkBytesPerSecond + " B/s");
+            }
+            if (compressBytesPerSecond >= linkBytesPerSecond * CPU_HEADROOM) return level;
+        }
+
+        return Deflater.BEST_SPEED;
+    }
+
+    private static byte[] readSample(File file)
+    {
+        try (final InputStream inputStream = new FileInputStream(file))
+        {
+            final byte[] buffer = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+            int offset = 0;
+            int read;
+            while (offset < buffer.length && (read = inputStream.read(buffer, offset, buffer.length - offset)) > 0)
+            {
+                offset += read;
+            }
+            return offset == buffer.length ? buffer : Arrays.copyOf(buffer, offset);
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not read a sample of " + file + " to pick a compression level", e);
+            return new byte[0];
+        }
+    }
+
+    private static double measureCompressionSpeed(byte[] sample, int level)
+    {
+        final Deflater deflater = new Deflater(level, true);
+        try
+        {
+            final byte[] output = new byte[BUFFER_SIZE];
+            final long startNanos = System.nanoTime();
+            deflater.setInput(sample);
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                deflater.deflate(output);
+            }
+            final long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+            return sample.length * 1_000_000_000d / elapsedNanos;
+        } finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Streams the source file through gzip into the target file.
+     *
+     * @return The size of the compressed file, or -1 if it could not be compressed.
+     */
+    private static long compressFile(File source, File target, int level)
+    {
+        final File targetParent = target.getParentFile();
+        if (targetParent != null && !targetParent.isDirectory() && !targetParent.mkdirs())
+        {
+            Log.w(LOG_TAG, "Could not create the compression staging directory " + targetParent);
+            return -1;
+        }
+
+        try (final InputStream inputStream = new FileInputStream(source);
+             final OutputStream outputStream = new LevelGzipOutputStream(new FileOutputStream(target), level))
+        {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0)
+            {
+                outputStream.write(buffer, 0, read);
+            }
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not compress " + source, e);
+            return -1;
+        }
+
+        return target.length();
+    }
+
+    /**
+     * A {@link GZIPOutputStream} with a configurable compression level.
+     */
+    private static class LevelGzipOutputStream extends GZIPOutputStream
+    {
+        LevelGzipOutputStream(OutputStream outputStream, int level) throws IOException
+        {
+            super(outputStream, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * The files that were compressed into the staging directory.
+     */
+    public static class CompressedFiles
+    {
+        private final File filesFromList;
+        private final Set<String> relativePaths = new HashSet<>();
+        private long originalBytes;
+        private long compressedBytes;
+
+        private CompressedFiles(File filesFromList)
+        {
+            this.filesFromList = filesFromList;
+        }
+
+        /**
+         * @return The files-from list of the compressed copies, relative to the staging directory.
+         */
+        public File getFilesFromList()
+        {
+            return filesFromList;
+        }
+
+        /**
+         * @return The relative paths of the files that were compressed, which must not also be uploaded uncompressed.
+         */
+        public Set<String> getRelativePaths()
+        {
+            return Collections.unmodifiableSet(relativePaths);
+        }
+
+        public boolean isEmpty()
+        {
+            return relativePaths.isEmpty();
+        }
+
+        public long getOriginalBytes()
+        {
+            return originalBytes;
+        }
+
+        public long getCompressedBytes()
+        {
+            return compressedBytes;
+        }
+    }
+}
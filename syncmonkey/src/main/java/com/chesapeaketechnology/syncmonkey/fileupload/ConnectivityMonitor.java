@@ -0,0 +1,296 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps an up to date snapshot of the networks the device is connected to, maintained by a {@link ConnectivityManager.NetworkCallback}, so the sync
+ * adapter can check the Wi-Fi and VPN preferences, and the {@link BandwidthPolicy} can pick a schedule, without querying the connectivity manager each
+ * time.
+ * <p>
+ * When a sync is skipped because the network it needs is not connected, the sync adapter marks that it is waiting for the network.  Once this monitor is
+ * started, it requests a sync as soon as the required network comes up, after a short debounce so a VPN that is still settling or a flapping Wi-Fi link
+ * only results in a single sync.  The waiting flag is kept in the {@link AppPreferences}, since the sync adapter runs in the {@code :sync} process and the
+ * monitor that requests the sync runs in the app's main process.  The monitor is started by the {@link LiveSyncService}, which keeps the main process
+ * alive so a waiting sync is still requested after the UI is closed.
+ *
+ * @since 0.0.10
+ */
+public class ConnectivityMonitor
+{
+    private static final String LOG_TAG = ConnectivityMonitor.class.getSimpleName();
+
+    /**
+     * How long the required network has to stay up before a sync is requested.
+     */
+    private static final long SYNC_DEBOUNCE_MILLIS = 10_000;
+
+    private static final String WAITING_FOR_NETWORK_KEY = "connectivityMonitor.waitingForNetwork";
+
+    private static ConnectivityMonitor instance;
+
+    private final Context context;
+    private final AppPreferences appPreferences;
+    private final Handler handler;
+    private final Map<Network, NetworkCapabilities> networks = new HashMap<>();
+    private final Runnable requestSyncRunnable = this::requestSyncIfWaiting;
+    private NetworkCapabilities defaultNetworkCapabilities;
+    private volatile State state = new State(false, false, false, BandwidthPolicy.NetworkType.CELLULAR);
+    private volatile boolean started;
+
+    /**
+     * @return The single monitor for this process.
+     */
+    public static synchronized ConnectivityMonitor getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ConnectivityMonitor(Context context)
+    {
+        this.context = context;
+        appPreferences = new AppPreferences(context);
+
+        final HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null)
+        {
+            Log.e(LOG_TAG, "Could not get the connectivity manager, the device will always appear to be offline");
+            return;
+        }
+
+        // Seed the snapshot so it is correct before the first callback arrives
+        for (Network network : connectivityManager.getAllNetworks())
+        {
+            final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+            if (capabilities != null) networks.put(network, capabilities);
+        }
+        final Network activeNetwork = connectivityManager.getActiveNetwork();
+        if (activeNetwork != null) defaultNetworkCapabilities = connectivityManager.getNetworkCapabilities(activeNetwork);
+        updateState();
+
+        // A default request leaves out VPNs, so remove that capability to be told about them too
+        final NetworkRequest networkRequest = new NetworkRequest.Builder()
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        connectivityManager.registerNetworkCallback(networkRequest, new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities)
+            {
+                handler.post(() -> {
+                    networks.put(network, networkCapabilities);
+                    updateState();
+                });
+            }
+
+            @Override
+            public void onLost(Network network)
+            {
+                handler.post(() -> {
+                    networks.remove(network);
+                    updateState();
+                });
+            }
+        }, handler);
+
+        // The default network is the one that traffic is routed over, which is what the bandwidth schedule depends on
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback()
+        {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities)
+            {
+                handler.post(() -> {
+                    defaultNetworkCapabilities = networkCapabilities;
+                    updateState();
+                });
+            }
+
+            @Override
+            public void onLost(Network network)
+            {
+                handler.post(() -> {
+                    defaultNetworkCapabilities = null;
+                    updateState();
+                });
+            }
+        });
+    }
+
+    /**
+     * Starts requesting a sync when a network that a skipped sync was waiting on becomes available.
+     */
+    public void start()
+    {
+        started = true;
+        handler.post(requestSyncRunnable);
+    }
+
+    /**
+     * Stops requesting syncs when the network changes.  The snapshot is still kept up to date.
+     */
+    public void stop()
+    {
+        started = false;
+        handler.removeCallbacks(requestSyncRunnable);
+    }
+
+    /**
+     * @return The current snapshot of the connected networks.
+     */
+    public State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Records whether a sync was skipped because the network it needs is not connected, in which case a sync is requested once it is.
+     */
+    public void setWaitingForNetwork(boolean waitingForNetwork)
+    {
+        appPreferences.put(WAITING_FOR_NETWORK_KEY, waitingForNetwork);
+    }
+
+    /**
+     * Rebuilds the snapshot from the tracked networks.  Must be called on the handler thread.
+     */
+    private void updateState()
+    {
+        boolean wifiConnected = false;
+        boolean vpnConnected = false;
+        boolean unmeteredConnected = false;
+        for (NetworkCapabilities capabilities : networks.values())
+        {
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) wifiConnected = true;
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) vpnConnected = true;
+            if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) unmeteredConnected = true;
+        }
+
+        final State previousState = state;
+        state = new State(wifiConnected, vpnConnected, unmeteredConnected, BandwidthPolicy.getNetworkType(defaultNetworkCapabilities));
+        if (state.equals(previousState)) return;
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Connectivity changed: " + state);
+
+        // Restart the debounce window
+        handler.removeCallbacks(requestSyncRunnable);
+        if (started) handler.postDelayed(requestSyncRunnable, SYNC_DEBOUNCE_MILLIS);
+    }
+
+    private void requestSyncIfWaiting()
+    {
+        if (!started || !appPreferences.getBoolean(WAITING_FOR_NETWORK_KEY, false)) return;
+
+        final boolean wifiOnly = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true);
+        final boolean vpnOnly = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY, true);
+        final State currentState = state;
+        if ((wifiOnly && !currentState.isWifiConnected()) || (vpnOnly && !currentState.isVpnConnected())) return;
+
+        Log.i(LOG_TAG, "The network that a skipped sync was waiting on is now connected, requesting a sync");
+        setWaitingForNetwork(false);
+        FileUploadSyncAdapter.requestSync(context);
+    }
+
+    /**
+     * An immutable snapshot of the connected networks.
+     */
+    public static class State
+    {
+        private final boolean wifiConnected;
+        private final boolean vpnConnected;
+        private final boolean unmeteredConnected;
+        private final BandwidthPolicy.NetworkType activeNetworkType;
+
+        State(boolean wifiConnected, boolean vpnConnected, boolean unmeteredConnected, BandwidthPolicy.NetworkType activeNetworkType)
+        {
+            this.wifiConnected = wifiConnected;
+            this.vpnConnected = vpnConnected;
+            this.unmeteredConnected = unmeteredConnected;
+            this.activeNetworkType = activeNetworkType;
+        }
+
+        /**
+         * @return True if the device is connected to a Wi-Fi network.
+         */
+        public boolean isWifiConnected()
+        {
+            return wifiConnected;
+        }
+
+        /**
+         * @return True if the device is attached to a VPN.
+         */
+        public boolean isVpnConnected()
+        {
+            return vpnConnected;
+        }
+
+        /**
+         * @return True if the device is connected to a network that is not metered.
+         */
+        public boolean isUnmeteredConnected()
+        {
+            return unmeteredConnected;
+        }
+
+        /**
+         * @return The type of the default network, which traffic is currently routed over.
+         */
+        public BandwidthPolicy.NetworkType getActiveNetworkType()
+        {
+            return activeNetworkType;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final State other = (State) o;
+            return wifiConnected == other.wifiConnected && vpnConnected == other.vpnConnected && unmeteredConnected == other.unmeteredConnected
+                    && activeNetworkType == other.activeNetworkType;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = wifiConnected ? 1 : 0;
+            result = 31 * result + (vpnConnected ? 1 : 0);
+            result = 31 * result + (unmeteredConnected ? 1 : 0);
+            result = 31 * result + activeNetworkType.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "State{" +
+                    "wifiConnected=" + wifiConnected +
+                    ", vpnConnected=" + vpnConnected +
+                    ", unmeteredConnected=" + unmeteredConnected +
+                    ", activeNetworkType=" + activeNetworkType +
+                    '}';
+        }
+    }
+}
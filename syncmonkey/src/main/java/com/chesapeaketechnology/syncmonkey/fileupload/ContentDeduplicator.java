@@ -0,0 +1,235 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.RemoteItem;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the same content from being uploaded more than once.  The same file often ends up in several places, such as a file that is shared with this
+ * app while it is also in a sync directory, or the {@code name(1).ext} copies made by the sharing activity, and without this every copy is uploaded in
+ * full.
+ * <p>
+ * The files in a sync plan are hashed with the {@link LocalFileHasher}, and each one is checked against the earlier files in the plan and against the
+ * content hashes recorded in the {@link UploadManifest}.  Only the first file with each content is uploaded.  Every other copy is created from it with a
+ * server side copy on the remote, which Azure Blob Storage does without the content being sent from the device again.  If a copy fails, such as when the
+ * uploaded file has since been deleted from the remote, the duplicate is uploaded normally instead.  A duplicate that can't be copied yet, because the
+ * file it would be copied from was not uploaded by this sync, is recorded in the {@link ChangeJournal} so it is picked up again by the next targeted sync.
+ *
+ * @since 0.0.10
+ */
+public class ContentDeduplicator
+{
+    private static final String LOG_TAG = ContentDeduplicator.class.getSimpleName();
+
+    /**
+     * Each copy on the remote is a request of its own, so only files at least this large are worth deduplicating.
+     */
+    static final long MIN_FILE_SIZE = 64 * 1024;
+
+    private final AppPreferences appPreferences;
+    private final Rclone rclone;
+    private final UploadManifest uploadManifest;
+    private final UploadQueue uploadQueue;
+    private final LocalFileHasher localFileHasher;
+    private final ChangeJournal changeJournal;
+
+    ContentDeduplicator(Context context, Rclone rclone, UploadManifest uploadManifest, UploadQueue uploadQueue)
+    {
+        appPreferences = new AppPreferences(context);
+        this.rclone = rclone;
+        this.uploadManifest = uploadManifest;
+        this.uploadQueue = uploadQueue;
+        localFileHasher = new LocalFileHasher(context);
+        changeJournal = new ChangeJournal(context);
+    }
+
+    /**
+     * @return True if duplicate files should be copied on the remote instead of uploaded, as set in the user preferences.
+     */
+    public boolean isEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_DEDUPLICATE_KEY, false);
+    }
+
+    /**
+     * Finds the files in the plan that have the same content as a file that was already uploaded, or as an earlier file in the plan.
+     *
+     * @param syncPlan        The files that are about to be uploaded.
+     * @param bundleThreshold The size in bytes below which files are bundled by the {@link SmallFileBundler}.  A bundled file is not on the remote on its
+     *                        own, so it can't be copied, and smaller files are left alone.
+     * @return The duplicates in the plan, which is empty if deduplication is disabled.
+     */
+    public Duplicates findDuplicates(SyncPlan syncPlan, long bundleThreshold)
+    {
+        final Duplicates duplicates = new Duplicates(syncPlan.getEntries());
+        if (!isEnabled()) return duplicates;
+
+        final long minFileSize = Math.max(MIN_FILE_SIZE, bundleThreshold);
+        final List<LocalFileEntry> candidates = new ArrayList<>();
+        final List<LocalFileEntry> unhashedCandidates = new ArrayList<>();
+        for (LocalFileEntry fileEntry : syncPlan.getEntries())
+        {
+            if (fileEntry.getSize() < minFileSize) continue;
+
+            candidates.add(fileEntry);
+            if (fileEntry.getHash() == null) unhashedCandidates.add(fileEntry);
+        }
+        localFileHasher.hashFiles(unhashedCandidates);
+
+        final Map<String, LocalFileEntry> firstEntryByContent = new HashMap<>();
+        for (LocalFileEntry fileEntry : candidates)
+        {
+            if (fileEntry.getHash() == null) continue; // Could not be read, so it is uploaded like any other file
+
+            final String contentKey = fileEntry.getHash() + "/" + fileEntry.getSize();
+            final LocalFileEntry firstEntry = firstEntryByContent.get(contentKey);
+            if (firstEntry != null)
+            {
+                duplicates.add(fileEntry, firstEntry.getRelativePath(), firstEntry);
+                continue;
+            }
+
+            final String uploadedRelativePath = uploadManifest.findUploadedRelativePath(fileEntry.getHash(), fileEntry.getSize());
+            if (uploadedRelativePath != null)
+            {
+                duplicates.add(fileEntry, uploadedRelativePath, null);
+            } else
+            {
+                firstEntryByContent.put(contentKey, fileEntry);
+            }
+        }
+
+        if (!duplicates.isEmpty()) Log.i(LOG_TAG, "Found " + duplicates.size() + " files whose content is already uploaded or planned");
+        return duplicates;
+    }
+
+    /**
+     * Copies each duplicate on the remote from the file with the same content, and records the copies as uploaded.  A duplicate of another file in the
+     * same plan is only copied once that file has been uploaded, otherwise it is recorded in the {@link ChangeJournal} for the next sync.
+     *
+     * @param duplicates The duplicates from {@link #findDuplicates(SyncPlan, long)}.
+     * @param deviceId   The device ID which is used as the folder name on the remote server.
+     * @param remote     The remote server that the files are uploaded to.
+     * @return The duplicates that could not be copied, which should be uploaded instead.
+     */
+    public List<LocalFileEntry> copyDuplicates(Duplicates duplicates, String deviceId, RemoteItem remote)
+    {
+        final List<LocalFileEntry> copiedEntries = new ArrayList<>();
+        final List<LocalFileEntry> failedEntries = new ArrayList<>();
+        int deferredCount = 0;
+        for (Duplicate duplicate : duplicates.duplicates)
+        {
+            if (Thread.currentThread().isInterrupted() || (duplicate.sourceEntry != null && !uploadManifest.isUploaded(duplicate.sourceEntry)))
+            {
+                changeJournal.record(duplicate.fileEntry.getPath());
+                deferredCount++;
+                continue;
+            }
+
+            final String sourcePath = "/" + deviceId + "/" + duplicate.sourceRelativePath;
+            final String destinationPath = "/" + deviceId + "/" + duplicate.fileEntry.getRelativePath();
+
+            // The remote already has this content at the same path, such as when only the modified time of the file changed
+            if (sourcePath.equals(destinationPath) || rclone.copyFile(remote, sourcePath, destinationPath))
+            {
+                copiedEntries.add(duplicate.fileEntry);
+            } else
+            {
+                Log.w(LOG_TAG, "Could not copy " + sourcePath + " to " + destinationPath + " on the remote, uploading it instead");
+                failedEntries.add(duplicate.fileEntry);
+            }
+        }
+
+        uploadManifest.markUploaded(copiedEntries);
+        uploadQueue.remove(copiedEntries);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            long savedBytes = 0;
+            for (LocalFileEntry copiedEntry : copiedEntries)
+            {
+                savedBytes += copiedEntry.getSize();
+            }
+            Log.i(LOG_TAG, "Copied " + copiedEntries.size() + " duplicate files on the remote instead of uploading " + savedBytes + " bytes, "
+                    + deferredCount + " are left for the next sync because the file with the same content was not uploaded");
+        }
+        return failedEntries;
+    }
+
+    /**
+     * The files in a sync plan that don't need to be uploaded because their content is already on the remote, or will be once an earlier file in the
+     * plan is uploaded.
+     */
+    public static class Duplicates
+    {
+        private final List<LocalFileEntry> plannedEntries;
+        private final List<Duplicate> duplicates = new ArrayList<>();
+        private final Set<String> duplicatePaths = new HashSet<>();
+
+        private Duplicates(List<LocalFileEntry> plannedEntries)
+        {
+            this.plannedEntries = plannedEntries;
+        }
+
+        private void add(LocalFileEntry fileEntry, String sourceRelativePath, LocalFileEntry sourceEntry)
+        {
+            duplicates.add(new Duplicate(fileEntry, sourceRelativePath, sourceEntry));
+            duplicatePaths.add(fileEntry.getPath());
+        }
+
+        public boolean isEmpty()
+        {
+            return duplicates.isEmpty();
+        }
+
+        public int size()
+        {
+            return duplicates.size();
+        }
+
+        /**
+         * @return The planned files that need to be uploaded, which is every planned file that is not a duplicate.
+         */
+        public List<LocalFileEntry> getUniqueEntries()
+        {
+            if (duplicates.isEmpty()) return Collections.unmodifiableList(plannedEntries);
+
+            final List<LocalFileEntry> uniqueEntries = new ArrayList<>();
+            for (LocalFileEntry plannedEntry : plannedEntries)
+            {
+                if (!duplicatePaths.contains(plannedEntry.getPath())) uniqueEntries.add(plannedEntry);
+            }
+            return uniqueEntries;
+        }
+    }
+
+    private static class Duplicate
+    {
+        private final LocalFileEntry fileEntry;
+        private final String sourceRelativePath;
+
+        /**
+         * The file in the same plan that the content is copied from, or null if the content was uploaded by an earlier sync.
+         */
+        private final LocalFileEntry sourceEntry;
+
+        Duplicate(LocalFileEntry fileEntry, String sourceRelativePath, LocalFileEntry sourceEntry)
+        {
+            this.fileEntry = fileEntry;
+            this.sourceRelativePath = sourceRelativePath;
+            this.sourceEntry = sourceEntry;
+        }
+    }
+}
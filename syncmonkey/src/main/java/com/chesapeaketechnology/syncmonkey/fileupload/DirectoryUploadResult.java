@@ -0,0 +1,99 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+/**
+ * The outcome of uploading a single sync directory to the remote server.
+ *
+ * @since 0.0.10
+ */
+public class DirectoryUploadResult
+{
+    /**
+     * The exit code used when the rclone process could not be started, when waiting on it was interrupted, or when an rclone daemon job failed.
+     */
+    public static final int EXIT_CODE_NOT_RUN = -1;
+
+    private final String syncDirectoryPath;
+    private final int exitCode;
+    private final long durationMillis;
+    private final int fileCount;
+    private final long byteCount;
+    private final int collisionCount;
+
+    DirectoryUploadResult(String syncDirectoryPath, int exitCode, long durationMillis, int fileCount)
+    {
+        this(syncDirectoryPath, exitCode, durationMillis, fileCount, 0, 0);
+    }
+
+    DirectoryUploadResult(String syncDirectoryPath, int exitCode, long durationMillis, int fileCount, long byteCount, int collisionCount)
+    {
+        this.syncDirectoryPath = syncDirectoryPath;
+        this.exitCode = exitCode;
+        this.durationMillis = durationMillis;
+        this.fileCount = fileCount;
+        this.byteCount = byteCount;
+        this.collisionCount = collisionCount;
+    }
+
+    public String getSyncDirectoryPath()
+    {
+        return syncDirectoryPath;
+    }
+
+    /**
+     * @return The exit code of the rclone process, or {@link #EXIT_CODE_NOT_RUN} if the process never completed.
+     */
+    public int getExitCode()
+    {
+        return exitCode;
+    }
+
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    /**
+     * @return The number of new or changed files that were handed to rclone for this directory.  Zero means the directory was skipped.
+     */
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+
+    /**
+     * @return The total size of the new or changed files that were handed to rclone for this directory.
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * @return The number of files that were not uploaded because a file from another sync directory has the same remote path.
+     */
+    public int getCollisionCount()
+    {
+        return collisionCount;
+    }
+
+    /**
+     * @return True if the rclone process completed with an exit code of zero.
+     */
+    public boolean isSuccessful()
+    {
+        return exitCode == 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DirectoryUploadResult{" +
+                "syncDirectoryPath='" + syncDirectoryPath + '\'' +
+                ", exitCode=" + exitCode +
+                ", durationMillis=" + durationMillis +
+                ", fileCount=" + fileCount +
+                ", byteCount=" + byteCount +
+                ", collisionCount=" + collisionCount +
+                '}';
+    }
+}
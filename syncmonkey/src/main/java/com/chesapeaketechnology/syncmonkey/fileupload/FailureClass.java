@@ -0,0 +1,156 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.FileNotFoundException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * The kinds of upload failure that the sync adapter backs off from differently.  Each class has its own base and maximum backoff, because retrying a
+ * dropped network in a minute is reasonable, but retrying an expired SAS token every minute only wastes the battery until someone pushes a new one.
+ * <p>
+ * The classes are declared from the most to the least severe, which is the order used to pick a single class when a sync fails in more than one way.
+ *
+ * @since 0.0.10
+ */
+public enum FailureClass
+{
+    /**
+     * The remote server rejected the credentials, such as an expired or revoked SAS token.  Retrying won't help until the configuration changes, so this
+     * opens the circuit breaker on the first failure.
+     */
+    AUTHENTICATION(30 * 60 * 1000L, 24 * 60 * 60 * 1000L, true),
+
+    /**
+     * The remote server asked the client to slow down, with an HTTP 429 or 503.
+     */
+    THROTTLED(2 * 60 * 1000L, 60 * 60 * 1000L, false),
+
+    /**
+     * The files could not be read or staged on the device, such as when the storage is full.
+     */
+    LOCAL_IO(5 * 60 * 1000L, 6 * 60 * 60 * 1000L, false),
+
+    /**
+     * The remote server could not be reached, such as when the connection drops or DNS fails.
+     */
+    NETWORK(30 * 1000L, 30 * 60 * 1000L, false),
+
+    /**
+     * A failure that did not match any of the other classes.
+     */
+    UNKNOWN(60 * 1000L, 60 * 60 * 1000L, false);
+
+    private static final Pattern AUTHENTICATION_PATTERN = Pattern.compile("(?i)(status(code)?[=: ]+40[13]\\b|http 40[13]\\b|authenticationfailed"
+            + "|authorizationfailure|authorizationpermissionmismatch|signature (fields )?not well formed|signature did not match|signed expiry"
+            + "|sas.*expired|expired.*sas|invalid credentials)");
+    private static final Pattern THROTTLED_PATTERN = Pattern.compile("(?i)(status(code)?[=: ]+(429|503)\\b|http (429|503)\\b|serverbusy|too many requests"
+            + "|operationtimedout|(ingress|egress) is over the account limit|rate limit)");
+    private static final Pattern LOCAL_IO_PATTERN = Pattern.compile("(?i)(no space left|disk quota|read-only file system|permission denied"
+            + "|input/output error|failed to open source|enospc|erofs|eacces)");
+    private static final Pattern NETWORK_PATTERN = Pattern.compile("(?i)(no such host|connection refused|connection reset|network is unreachable"
+            + "|no route to host|i/o timeout|timed out|timeout awaiting|dial tcp|broken pipe|unexpected eof|tls handshake|unable to resolve host)");
+
+    /**
+     * The rclone exit code for a temporary error that a retry might fix.
+     */
+    private static final int RCLONE_EXIT_CODE_TEMPORARY = 5;
+
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final boolean opensCircuitImmediately;
+
+    FailureClass(long baseBackoffMillis, long maxBackoffMillis, boolean opensCircuitImmediately)
+    {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.opensCircuitImmediately = opensCircuitImmediately;
+    }
+
+    /**
+     * @return The backoff after the first failure, which is doubled for each consecutive failure.
+     */
+    public long getBaseBackoffMillis()
+    {
+        return baseBackoffMillis;
+    }
+
+    /**
+     * @return The longest backoff, no matter how many times in a row the sync has failed.
+     */
+    public long getMaxBackoffMillis()
+    {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * @return True if a single failure of this class should stop automatic syncs until the backoff has passed.
+     */
+    public boolean opensCircuitImmediately()
+    {
+        return opensCircuitImmediately;
+    }
+
+    /**
+     * Classifies an error message from rclone or from an HTTP request.
+     *
+     * @return The class of the failure, or null if the message does not match any class.
+     */
+    public static FailureClass fromMessage(String message)
+    {
+        if (message == null || message.isEmpty()) return null;
+
+        if (AUTHENTICATION_PATTERN.matcher(message).find()) return AUTHENTICATION;
+        if (THROTTLED_PATTERN.matcher(message).find()) return THROTTLED;
+        if (LOCAL_IO_PATTERN.matcher(message).find()) return LOCAL_IO;
+        if (NETWORK_PATTERN.matcher(message).find()) return NETWORK;
+        return null;
+    }
+
+    /**
+     * Classifies an exception by its type, or by its message and the messages of its causes when the type is not specific enough.
+     *
+     * @return The class of the failure, which is {@link #UNKNOWN} if nothing about the exception matches a class.
+     */
+    public static FailureClass fromException(Throwable throwable)
+    {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof UnknownHostException || cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                    || cause instanceof SocketTimeoutException)
+            {
+                return NETWORK;
+            }
+
+            final FailureClass messageClass = fromMessage(cause.getMessage());
+            if (messageClass != null) return messageClass;
+
+            if (cause instanceof FileNotFoundException) return LOCAL_IO;
+            if (cause instanceof SocketException) return NETWORK;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Classifies the exit code of an rclone process, which is only used when none of its output could be classified.  The fatal error exit code is
+     * {@link #UNKNOWN} rather than {@link #AUTHENTICATION}, because rclone uses it for anything that it won't retry, such as a bad path or flag, and
+     * opening the circuit for those would stop syncs for hours over something the next configuration change might not even touch.
+     */
+    public static FailureClass fromExitCode(int exitCode)
+    {
+        return exitCode == RCLONE_EXIT_CODE_TEMPORARY ? NETWORK : UNKNOWN;
+    }
+
+    /**
+     * @return The more severe of the two classes, where null is treated as no failure.
+     */
+    static FailureClass mostSevere(FailureClass first, FailureClass second)
+    {
+        if (first == null) return second;
+        if (second == null) return first;
+        return first.ordinal() <= second.ordinal() ? first : second;
+    }
+}
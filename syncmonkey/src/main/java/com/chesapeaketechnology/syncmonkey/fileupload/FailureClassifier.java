@@ -0,0 +1,93 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Collects the failures seen during a single sync and reduces them to the most severe {@link FailureClass}.  It listens to the rclone output for error
+ * messages, and is also handed the exceptions and exit codes of the uploads that don't go through an rclone process.
+ * <p>
+ * The directories can be uploaded in parallel, so every method is synchronized.
+ *
+ * @since 0.0.10
+ */
+public class FailureClassifier implements RcloneOutputListener
+{
+    private static final String LOG_TAG = FailureClassifier.class.getSimpleName();
+
+    private FailureClass messageFailureClass;
+    private FailureClass exitCodeFailureClass;
+    private String firstMessage;
+
+    /**
+     * Forgets the failures from the previous sync.
+     */
+    public synchronized void reset()
+    {
+        messageFailureClass = null;
+        exitCodeFailureClass = null;
+        firstMessage = null;
+    }
+
+    @Override
+    public synchronized void onError(String objectPath, String message)
+    {
+        if (firstMessage == null) firstMessage = message;
+
+        final FailureClass failureClass = FailureClass.fromMessage(message);
+        if (failureClass != null) messageFailureClass = FailureClass.mostSevere(messageFailureClass, failureClass);
+    }
+
+    /**
+     * Records a failure that was caught as an exception.
+     */
+    public synchronized void recordException(Throwable throwable)
+    {
+        if (firstMessage == null) firstMessage = String.valueOf(throwable);
+
+        messageFailureClass = FailureClass.mostSevere(messageFailureClass, FailureClass.fromException(throwable));
+    }
+
+    /**
+     * Records a failure whose class is already known, such as a sync plan that could not be staged.
+     */
+    public synchronized void recordFailure(FailureClass failureClass)
+    {
+        messageFailureClass = FailureClass.mostSevere(messageFailureClass, failureClass);
+    }
+
+    /**
+     * Records the exit code of a failed rclone process.  The exit code is only used if none of the error messages could be classified.
+     *
+     * @param outputLines The most recent raw output of the process.  A fatal error is not always logged as JSON, so when none of the error messages
+     *                    could be classified these lines are classified instead, before falling back on the exit code.
+     */
+    public synchronized void recordExitCode(int exitCode, List<String> outputLines)
+    {
+        if (exitCode == 0) return;
+
+        if (messageFailureClass == null)
+        {
+            for (String outputLine : outputLines)
+            {
+                final FailureClass failureClass = FailureClass.fromMessage(outputLine);
+                if (failureClass != null) messageFailureClass = FailureClass.mostSevere(messageFailureClass, failureClass);
+            }
+        }
+
+        exitCodeFailureClass = FailureClass.mostSevere(exitCodeFailureClass, FailureClass.fromExitCode(exitCode));
+    }
+
+    /**
+     * @return The most severe class of the failures seen since the last {@link #reset()}, or {@link FailureClass#UNKNOWN} if there were none that could
+     * be classified.
+     */
+    public synchronized FailureClass getFailureClass()
+    {
+        final FailureClass failureClass = messageFailureClass != null ? messageFailureClass
+                : exitCodeFailureClass != null ? exitCodeFailureClass : FailureClass.UNKNOWN;
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Classified the sync failure as " + failureClass + ", first error: " + firstMessage);
+        return failureClass;
+    }
+}
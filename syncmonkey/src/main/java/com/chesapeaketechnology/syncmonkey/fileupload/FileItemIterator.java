@@ -0,0 +1,288 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.RemoteItem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads the entries of an {@code rclone lsjson} listing straight from the process output, one {@link FileItem} at a time.  Only the entry that is
+ * currently being read is held in memory, and rclone is naturally held back by the pipe when the consumer stops pulling entries.
+ * <p>
+ * An entry that is missing one of its required fields is skipped instead of failing the whole listing.  If the output itself can't be parsed, the
+ * iteration ends early and {@link #isSuccessful()} returns false.
+ * <p>
+ * If the listing was run with {@code --hash}, the hashes of the entry most recently returned by {@link #next()} are available from
+ * {@link #getCurrentHashes()}.
+ * <p>
+ * The iterator must be closed, which stops rclone if the listing was not read to the end.
+ *
+ * @since 0.0.10
+ */
+public class FileItemIterator implements Iterator<FileItem>, Closeable
+{
+    private static final String LOG_TAG = FileItemIterator.class.getSimpleName();
+
+    private final Process process;
+    private final JsonReader jsonReader;
+    private final RemoteItem remote;
+    private final String path;
+
+    private FileItem nextFileItem;
+    private Map<String, String> nextHashes = Collections.emptyMap();
+    private Map<String, String> currentHashes = Collections.emptyMap();
+    private boolean finished;
+    private boolean readFailed;
+    private int skippedEntryCount;
+    private Integer exitCode;
+
+    /**
+     * @param process The {@code lsjson} process, whose output has not been read yet.
+     * @param remote  The remote that is being listed.
+     * @param path    The path that is being listed, as passed to {@link Rclone#getDirectoryContent(RemoteItem, String, boolean)}.
+     */
+    FileItemIterator(Process process, RemoteItem remote, String path)
+    {
+        this.process = process;
+        this.remote = remote;
+        this.path = path;
+        jsonReader = new JsonReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        try
+        {
+            jsonReader.beginArray();
+        } catch (IOException | IllegalStateException e)
+        {
+            Log.e(LOG_TAG, "The rclone listing did not start with a JSON array", e);
+            readFailed = true;
+            finished = true;
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (nextFileItem == null && !finished)
+        {
+            try
+            {
+                if (!jsonReader.hasNext())
+                {
+                    jsonReader.endArray();
+                    finished = true;
+                    break;
+                }
+
+                nextFileItem = readEntry();
+            } catch (IOException | IllegalStateException | NumberFormatException e)
+            {
+                Log.e(LOG_TAG, "Could not parse the rclone listing, stopping early", e);
+                readFailed = true;
+                finished = true;
+            }
+        }
+
+        return nextFileItem != null;
+    }
+
+    @Override
+    public FileItem next()
+    {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        final FileItem fileItem = nextFileItem;
+        currentHashes = nextHashes;
+        nextFileItem = null;
+        return fileItem;
+    }
+
+    /**
+     * Reads a single entry from the listing.
+     *
+     * @return The entry, or null if it was missing a required field and was skipped.
+     */
+    private FileItem readEntry() throws IOException
+    {
+        String entryPath = null;
+        String name = null;
+        long size = 0;
+        String modTime = null;
+        String mimeType = null;
+        boolean isDir = false;
+        Map<String, String> hashes = Collections.emptyMap();
+
+        jsonReader.beginObject();
+        while (jsonReader.hasNext())
+        {
+            final String fieldName = jsonReader.nextName();
+            if (jsonReader.peek() == JsonToken.NULL)
+            {
+                jsonReader.skipValue();
+                continue;
+            }
+
+            switch (fieldName)
+            {
+                case "Path":
+                    entryPath = jsonReader.nextString();
+                    break;
+                case "Name":
+                    name = jsonReader.nextString();
+                    break;
+                case "Size":
+                    size = jsonReader.nextLong();
+                    break;
+                case "ModTime":
+                    modTime = jsonReader.nextString();
+                    break;
+                case "MimeType":
+                    mimeType = jsonReader.nextString();
+                    break;
+                case "IsDir":
+                    isDir = jsonReader.nextBoolean();
+                    break;
+                case "Hashes":
+                    hashes = readHashes();
+                    break;
+                default:
+                    jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+
+        if (entryPath == null || name == null || modTime == null)
+        {
+            skippedEntryCount++;
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Skipping an rclone listing entry with missing fields: " + entryPath);
+            return null;
+        }
+
+        nextHashes = hashes;
+        return createFileItem(remote, path, entryPath, name, size, modTime, mimeType == null ? "" : mimeType, isDir);
+    }
+
+    private Map<String, String> readHashes() throws IOException
+    {
+        final Map<String, String> hashes = new HashMap<>();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext())
+        {
+            final String hashType = jsonReader.nextName();
+            if (jsonReader.peek() == JsonToken.STRING)
+            {
+                hashes.put(hashType.toLowerCase(Locale.US), jsonReader.nextString());
+            } else
+            {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return hashes;
+    }
+
+    /**
+     * @return The hashes of the entry most recently returned by {@link #next()}, keyed by the lower case hash type, or an empty map if the listing did
+     * not include hashes.
+     */
+    public Map<String, String> getCurrentHashes()
+    {
+        return currentHashes;
+    }
+
+    /**
+     * Creates a {@link FileItem} from the fields of a single listing entry.
+     *
+     * @param remote    The remote that is being listed.
+     * @param path      The path that is being listed.
+     * @param entryPath The path of the entry, relative to the listed path.
+     */
+    static FileItem createFileItem(RemoteItem remote, String path, String entryPath, String name, long size, String modTime, String mimeType, boolean isDir)
+    {
+        String filePath = (path.compareTo("//" + remote.getName()) == 0) ? "" : path + "/";
+        filePath += entryPath;
+
+        if (remote.isCrypt())
+        {
+            String extension = name.substring(name.lastIndexOf(".") + 1);
+            String type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            if (type != null)
+            {
+                mimeType = type;
+            }
+        }
+
+        return new FileItem(remote, filePath, name, size, modTime, mimeType, isDir);
+    }
+
+    /**
+     * @return The number of entries that were skipped because they were missing a required field.
+     */
+    public int getSkippedEntryCount()
+    {
+        return skippedEntryCount;
+    }
+
+    /**
+     * Only valid after the iterator has been closed.
+     *
+     * @return True if the whole listing was read and rclone exited successfully.
+     */
+    public boolean isSuccessful()
+    {
+        return !readFailed && exitCode != null && exitCode == 0;
+    }
+
+    /**
+     * @return The rclone process, which can be used to read its error output after the iterator is closed.
+     */
+    Process getProcess()
+    {
+        return process;
+    }
+
+    /**
+     * Closes the listing.  If it was read to the end this waits for rclone to exit, otherwise rclone is stopped.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            jsonReader.close();
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not close the rclone listing", e);
+        }
+
+        if (!finished || readFailed)
+        {
+            process.destroy();
+            readFailed = readFailed || !finished;
+            finished = true;
+        }
+
+        try
+        {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e)
+        {
+            Log.w(LOG_TAG, "Interrupted while waiting for the rclone listing to exit", e);
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.accounts.Account;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SyncResult;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An alternative to scheduling the {@link FileUploadSyncAdapter} with a fixed periodic {@link android.content.SyncRequest}.  The syncs are scheduled as
+ * {@link JobScheduler} jobs instead, so the constraints from the user preferences, such as Wi-Fi only or charging only, are enforced by the platform before
+ * the {@code :sync} process is even started.  The jobs run the same upload engine as the sync adapter, so both backends behave the same once a sync
+ * starts.
+ * <p>
+ * The syncs are split into lanes:
+ * <ul>
+ * <li>A periodic job, whose period is picked by the {@link AdaptiveSyncInterval}, and which holds back the files queued as
+ * {@link UploadQueue.Priority#BULK} for the bulk lane.</li>
+ * <li>A bulk job, which uploads everything but only runs when the device is idle and charging.</li>
+ * <li>A one-shot job for the targeted syncs requested by the {@link SyncDirectoryWatcher}.</li>
+ * <li>A one-shot job for the full syncs requested by the {@link ConnectivityMonitor} when the network that a skipped sync was waiting on is connected.
+ * It has its own job ID so that a pending targeted sync can't swallow it, or the other way around.</li>
+ * <li>A one-shot job for manual syncs, which only requires a network connection.</li>
+ * </ul>
+ * A job whose {@link SyncSession} runs out of budget asks to be rescheduled, so the rest of the backlog is picked up shortly after.
+ * <p>
+ * A one-shot sync that is requested while the same kind of job is running marks the job to run again, since the request may have come in after the
+ * running job read its input.  A one-shot job that fails is scheduled again once the backoff from the {@link RetryPolicy} is over, instead of after the
+ * short backoff of the job itself, and new one-shot jobs wait out that backoff as well unless they are manual.
+ * <p>
+ * This backend is only used when it is enabled in the user preferences, otherwise the sync adapter is scheduled as before.
+ *
+ * @since 0.0.10
+ */
+public class FileUploadJobService extends JobService
+{
+    private static final String LOG_TAG = FileUploadJobService.class.getSimpleName();
+
+    private static final int PERIODIC_JOB_ID = 1;
+    private static final int BULK_JOB_ID = 2;
+    private static final int TARGETED_JOB_ID = 3;
+    private static final int MANUAL_JOB_ID = 4;
+    private static final int FULL_JOB_ID = 5;
+
+    private static final long BULK_INTERVAL_MILLIS = 6 * SyncMonkeyConstants.SECONDS_IN_HOUR * 1000L;
+
+    /**
+     * How long to wait before continuing a job that ran out of budget.  The backoff is linear so the follow-up is never pushed out by much.
+     */
+    private static final long FOLLOW_UP_BACKOFF_MILLIS = 30 * 1000L;
+
+    private static final String RERUN_KEY_PREFIX = "fileUploadJobService.rerun.";
+
+    private final Map<Integer, Thread> runningJobs = new ConcurrentHashMap<>();
+    private FileUploadSyncAdapter syncAdapter;
+    private AppPreferences appPreferences;
+    private ChangeJournal changeJournal;
+    private Handler mainHandler;
+
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+
+        syncAdapter = new FileUploadSyncAdapter(getApplicationContext(), false);
+        appPreferences = new AppPreferences(getApplicationContext());
+        changeJournal = new ChangeJournal(getApplicationContext());
+        mainHandler = new Handler(getMainLooper());
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params)
+    {
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Starting the upload job " + params.getJobId());
+
+        final Bundle extras = new Bundle();
+        extras.putAll(params.getExtras());
+        extras.putBoolean(FileUploadSyncAdapter.SYNC_EXTRAS_JOB, true);
+
+        // Any request made before now is covered by this run
+        appPreferences.remove(getRerunKey(params.getJobId()));
+
+        final Thread worker = new Thread(() -> runSync(params, extras), LOG_TAG + "-" + params.getJobId());
+        runningJobs.put(params.getJobId(), worker);
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        Log.i(LOG_TAG, "The upload job " + params.getJobId() + " was stopped because its constraints are no longer met");
+
+        final Thread worker = runningJobs.remove(params.getJobId());
+        if (worker != null) worker.interrupt();
+        return true;
+    }
+
+    private void runSync(JobParameters params, Bundle extras)
+    {
+        final int jobId = params.getJobId();
+        final SyncResult syncResult = new SyncResult();
+        try
+        {
+            syncAdapter.onPerformSync(new Account(SyncMonkeyConstants.ACCOUNT, SyncMonkeyConstants.ACCOUNT_TYPE), extras, SyncMonkeyConstants.AUTHORITY,
+                    null, syncResult);
+        } finally
+        {
+            // A job that was stopped has already been released by the platform, so it must not be finished again
+            if (runningJobs.remove(jobId) != null)
+            {
+                if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Finished the upload job " + jobId + ": " + syncResult);
+
+                final boolean oneShot = jobId != PERIODIC_JOB_ID && jobId != BULK_JOB_ID;
+                final long delayMillis = syncResult.delayUntil * 1000 - System.currentTimeMillis();
+                if (oneShot && delayMillis > 0)
+                {
+                    // The backoff of the job itself is much shorter than the one from the retry policy, so schedule a new job that waits it out
+                    jobFinished(params, false);
+                    appPreferences.remove(getRerunKey(jobId));
+                    rescheduleOneShotJob(jobId, delayMillis);
+                } else if (oneShot && !syncResult.moreRecordsToGet && shouldRerun(jobId, syncResult))
+                {
+                    jobFinished(params, false);
+                    rescheduleOneShotJob(jobId, 0);
+                } else
+                {
+                    jobFinished(params, syncResult.moreRecordsToGet);
+                }
+
+                // Now that the periodic job is no longer running, it can be rescheduled if the adaptive sync interval changed
+                if (jobId == PERIODIC_JOB_ID) schedulePeriodicJobs(getApplicationContext());
+            }
+        }
+    }
+
+    /**
+     * @return True if a one-shot job should run again because it was requested while it was running, or because it is a targeted job and more changes
+     * were recorded in the {@link ChangeJournal} while it ran.  The journal is only checked if this run uploaded something, so a sync that keeps being
+     * skipped, such as while waiting for the VPN, does not keep rescheduling itself.
+     */
+    private boolean shouldRerun(int jobId, SyncResult syncResult)
+    {
+        final String rerunKey = getRerunKey(jobId);
+        if (appPreferences.getBoolean(rerunKey, false))
+        {
+            appPreferences.remove(rerunKey);
+            Log.i(LOG_TAG, "The upload job " + jobId + " was requested while it was running, running it again");
+            return true;
+        }
+
+        if (jobId == TARGETED_JOB_ID && syncResult.stats.numInserts > 0 && !syncResult.hasError() && !changeJournal.isEmpty())
+        {
+            Log.i(LOG_TAG, "More files changed while the targeted upload job was running, running it again");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Schedules a one-shot job again once the running job with the same ID has been finished.  {@link #jobFinished(JobParameters, boolean)} is handled
+     * on the main thread, and scheduling a job with the ID of one that is still running would stop it, so the new job is scheduled from there too.
+     */
+    private void rescheduleOneShotJob(int jobId, long delayMillis)
+    {
+        mainHandler.post(() -> {
+            final JobScheduler jobScheduler = (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            if (jobScheduler != null) scheduleOneShotJob(getApplicationContext(), jobScheduler, jobId, delayMillis);
+        });
+    }
+
+    /**
+     * @return True if syncs should be scheduled as {@link JobScheduler} jobs instead of with the sync framework, as set in the user preferences.
+     */
+    public static boolean isEnabled(Context context)
+    {
+        return new AppPreferences(context).getBoolean(SyncMonkeyConstants.PROPERTY_JOB_SCHEDULER_KEY, false);
+    }
+
+    /**
+     * Schedules the periodic and bulk jobs.  A job that is already scheduled with the same constraints is left alone, so calling this each time the app
+     * starts neither resets the period nor stops a job that is running.
+     */
+    public static void schedulePeriodicJobs(Context context)
+    {
+        final JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) return;
+
+        final AppPreferences appPreferences = new AppPreferences(context);
+        final long intervalMillis = new AdaptiveSyncInterval(context).getIntervalSeconds() * 1000;
+
+        final PersistableBundle periodicExtras = new PersistableBundle();
+        periodicExtras.putBoolean(FileUploadSyncAdapter.SYNC_EXTRAS_DEFER_BULK, true);
+        scheduleIfChanged(jobScheduler, createJobBuilder(context, PERIODIC_JOB_ID, periodicExtras)
+                .setPeriodic(intervalMillis, intervalMillis / 2)
+                .setPersisted(true)
+                .setRequiredNetworkType(getRequiredNetworkType(appPreferences))
+                .setRequiresCharging(isChargingRequired(appPreferences))
+                .build());
+
+        final JobInfo.Builder bulkJobBuilder = createJobBuilder(context, BULK_JOB_ID, new PersistableBundle())
+                .setPeriodic(BULK_INTERVAL_MILLIS)
+                .setPersisted(true)
+                .setRequiredNetworkType(getRequiredNetworkType(appPreferences))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) bulkJobBuilder.setRequiresStorageNotLow(true);
+        scheduleIfChanged(jobScheduler, bulkJobBuilder.build());
+    }
+
+    /**
+     * Cancels the periodic and bulk jobs, which is done when the sync framework is used to schedule the syncs instead.
+     */
+    public static void cancelPeriodicJobs(Context context)
+    {
+        final JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) return;
+
+        jobScheduler.cancel(PERIODIC_JOB_ID);
+        jobScheduler.cancel(BULK_JOB_ID);
+    }
+
+    /**
+     * Schedules a one-shot sync.  If the same kind of sync is already scheduled or running, it is not replaced, because replacing a job stops it if it is
+     * running.  Instead, it is marked to run again once it finishes.  The paths in the {@link ChangeJournal} are kept until a targeted sync succeeds, so
+     * none of them are lost.
+     * <p>
+     * Unless the sync is manual, it does not start before the backoff from the {@link RetryPolicy} is over, so it is not started only to be skipped by an
+     * open circuit breaker.
+     *
+     * @param targeted True if only the paths recorded in the {@link ChangeJournal} should be uploaded.
+     * @param manual   True if the user asked for the sync, in which case it only requires a network connection and runs as soon as possible.
+     */
+    public static void scheduleSync(Context context, boolean targeted, boolean manual)
+    {
+        final JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) return;
+
+        final int jobId = manual ? MANUAL_JOB_ID : targeted ? TARGETED_JOB_ID : FULL_JOB_ID;
+        if (jobScheduler.getPendingJob(jobId) != null)
+        {
+            // A running job is returned too, and it may have read its input before this request, so it is asked to run again when it finishes
+            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "The upload job " + jobId + " is already scheduled or running, marking it to run again");
+            new AppPreferences(context).put(getRerunKey(jobId), true);
+            return;
+        }
+
+        final long delayMillis = manual ? 0 : RetryPolicy.getConfiguredRemoteRetryAt(context) - System.currentTimeMillis();
+        scheduleOneShotJob(context, jobScheduler, jobId, delayMillis);
+    }
+
+    private static void scheduleOneShotJob(Context context, JobScheduler jobScheduler, int jobId, long delayMillis)
+    {
+        final boolean manual = jobId == MANUAL_JOB_ID;
+        final boolean targeted = jobId == TARGETED_JOB_ID;
+
+        final AppPreferences appPreferences = new AppPreferences(context);
+        final PersistableBundle extras = new PersistableBundle();
+        if (manual)
+        {
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+            extras.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        } else
+        {
+            extras.putBoolean(FileUploadSyncAdapter.SYNC_EXTRAS_DEFER_BULK, true);
+        }
+        if (targeted) extras.putBoolean(FileUploadSyncAdapter.SYNC_EXTRAS_TARGETED, true);
+
+        final JobInfo.Builder jobBuilder = createJobBuilder(context, jobId, extras);
+        if (manual)
+        {
+            jobBuilder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY);
+        } else
+        {
+            jobBuilder.setRequiredNetworkType(getRequiredNetworkType(appPreferences)).setRequiresCharging(isChargingRequired(appPreferences));
+        }
+
+        if (delayMillis > 0)
+        {
+            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Delaying the upload job " + jobId + " by " + delayMillis / 1000 + " seconds to back off");
+            jobBuilder.setMinimumLatency(delayMillis);
+        }
+
+        jobScheduler.schedule(jobBuilder.build());
+    }
+
+    private static String getRerunKey(int jobId)
+    {
+        return RERUN_KEY_PREFIX + jobId;
+    }
+
+    private static JobInfo.Builder createJobBuilder(Context context, int jobId, PersistableBundle extras)
+    {
+        return new JobInfo.Builder(jobId, new ComponentName(context, FileUploadJobService.class))
+                .setExtras(extras)
+                .setBackoffCriteria(FOLLOW_UP_BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_LINEAR);
+    }
+
+    private static void scheduleIfChanged(JobScheduler jobScheduler, JobInfo jobInfo)
+    {
+        final JobInfo scheduledJob = jobScheduler.getPendingJob(jobInfo.getId());
+        if (scheduledJob != null && scheduledJob.getIntervalMillis() == jobInfo.getIntervalMillis()
+                && scheduledJob.getNetworkType() == jobInfo.getNetworkType() && scheduledJob.isRequireCharging() == jobInfo.isRequireCharging()
+                && scheduledJob.isRequireDeviceIdle() == jobInfo.isRequireDeviceIdle())
+        {
+            return;
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Scheduling the upload job " + jobInfo);
+        jobScheduler.schedule(jobInfo);
+    }
+
+    /**
+     * Only the Wi-Fi only preference can be expressed as a job constraint.  The VPN only preference is still checked when the sync starts.
+     */
+    private static int getRequiredNetworkType(AppPreferences appPreferences)
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true) ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY;
+    }
+
+    private static boolean isChargingRequired(AppPreferences appPreferences)
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_REQUIRE_CHARGING_KEY, false);
+    }
+}
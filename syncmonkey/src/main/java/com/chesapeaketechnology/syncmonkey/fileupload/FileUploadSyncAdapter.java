@@ -8,10 +8,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncRequest;
 import android.content.SyncResult;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
-import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -22,10 +18,21 @@ import com.chesapeaketechnology.syncmonkey.fileupload.Items.RemoteItem;
 
 import net.grandcentrix.tray.AppPreferences;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Handle the transfer of data between a server and an
@@ -35,10 +42,67 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 {
     private static final String LOG_TAG = FileUploadSyncAdapter.class.getSimpleName();
 
+    /**
+     * A sync extra that marks the sync as targeted, meaning only the paths in the {@link ChangeJournal} are uploaded instead of every sync directory.
+     */
+    public static final String SYNC_EXTRAS_TARGETED = "com.chesapeaketechnology.syncmonkey.TARGETED";
+
+    /**
+     * A sync extra that holds back the files queued as {@link UploadQueue.Priority#BULK} for the bulk lane of the {@link FileUploadJobService}.
+     */
+    public static final String SYNC_EXTRAS_DEFER_BULK = "com.chesapeaketechnology.syncmonkey.DEFER_BULK";
+
+    /**
+     * A sync extra that marks the sync as run by the {@link FileUploadJobService}, which reschedules the job itself when there is more to upload.
+     */
+    public static final String SYNC_EXTRAS_JOB = "com.chesapeaketechnology.syncmonkey.JOB";
+
+    private static final String STAGING_DIRECTORY_NAME = "upload-staging";
+    private static final String COMPRESSED_STAGING_DIRECTORY_NAME = "upload-staging-gzip";
+    private static final String BUNDLE_DIRECTORY_NAME = "upload-bundles";
+
     private final Rclone rclone;
+    private final UploadManifest uploadManifest;
+    private final SyncDirectoryScanner syncDirectoryScanner;
+    private final SyncPlanner syncPlanner;
+    private final ChangeJournal changeJournal;
+    private final CompressionStage compressionStage;
+    private final SmallFileBundler smallFileBundler;
+    private final UploadQueue uploadQueue;
+    private final ResumableBlobUploader resumableBlobUploader;
+    private final RetryPolicy retryPolicy;
+    private final AdaptiveSyncInterval adaptiveSyncInterval;
+    private final RetentionPolicy retentionPolicy;
+    private final ContentDeduplicator contentDeduplicator;
+    private final FailureClassifier failureClassifier = new FailureClassifier();
+    private final ConnectivityMonitor connectivityMonitor;
     private final String dataDirectoryPath;
     private AppPreferences appPreferences;
 
+    /**
+     * Logs the progress of each rclone upload.  Stats are only logged at the debug level since rclone reports them every second.
+     */
+    private final RcloneOutputListener uploadProgressLogger = new RcloneOutputListener()
+    {
+        @Override
+        public void onStats(TransferStats stats)
+        {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Upload progress: " + stats);
+        }
+
+        @Override
+        public void onFileTransferred(String objectPath, String message)
+        {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, message + ": " + objectPath);
+        }
+
+        @Override
+        public void onError(String objectPath, String message)
+        {
+            Log.w(LOG_TAG, "rclone error" + (objectPath == null ? "" : " for " + objectPath) + ": " + message);
+        }
+    };
+
     /**
      * Set up the sync adapter
      */
@@ -59,13 +123,29 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
         appPreferences = new AppPreferences(context);
 
         rclone = new Rclone(context);
+        uploadManifest = new UploadManifest(context);
+        syncDirectoryScanner = new SyncDirectoryScanner(context);
+        syncPlanner = new SyncPlanner(uploadManifest, new LocalFileHasher(context), syncDirectoryScanner, new StabilityGate(context));
+        changeJournal = new ChangeJournal(context);
+        compressionStage = new CompressionStage(context);
+        smallFileBundler = new SmallFileBundler();
+        uploadQueue = new UploadQueue(context);
+        resumableBlobUploader = new ResumableBlobUploader(context);
+        retryPolicy = new RetryPolicy(context);
+        adaptiveSyncInterval = new AdaptiveSyncInterval(context);
+        connectivityMonitor = ConnectivityMonitor.getInstance(context);
         dataDirectoryPath = Environment.getExternalStorageDirectory().getPath() + "/";
+        retentionPolicy = new RetentionPolicy(context, rclone, uploadManifest, syncDirectoryScanner, dataDirectoryPath);
+        contentDeduplicator = new ContentDeduplicator(context, rclone, uploadManifest, uploadQueue);
     }
 
     /**
      * Specify the code you want to run in the sync adapter. The entire
      * sync adapter runs in a background thread, so you don't have to set
      * up your own background processing.
+     * <p>
+     * Failures are classified and reported in the {@link SyncResult}, along with a {@link SyncResult#delayUntil} from the {@link RetryPolicy}, so that
+     * the platform backs off instead of retrying a failing sync at the normal cadence.
      */
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult)
@@ -78,6 +158,9 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 
             Log.i(LOG_TAG, "Running the SyncMonkey Sync Adapter");
 
+            // The watcher only runs in the main process, so bring its service back if the process was killed since the last sync
+            LiveSyncService.ensureRunning(getContext());
+
             final boolean transmitOnlyOnVpn = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY, true);
             final boolean transmitOnlyOnWiFi = appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true);
 
@@ -87,120 +170,162 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
                 Log.i(LOG_TAG, "VPN Only Upload Preference: " + transmitOnlyOnVpn);
             }
 
-            if (transmitOnlyOnWiFi && !isWiFiConnected())
+            final ConnectivityMonitor.State connectivityState = connectivityMonitor.getState();
+            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Connectivity: " + connectivityState);
+
+            if (transmitOnlyOnWiFi && !connectivityState.isWifiConnected())
             {
                 Log.i(LOG_TAG, "Skipping upload because wifi is not connected and the wifiOnly property is true");
+                connectivityMonitor.setWaitingForNetwork(true);
                 return;
             }
 
-            if (transmitOnlyOnVpn)
+            if (transmitOnlyOnVpn && !connectivityState.isVpnConnected())
             {
-                if (isVpnEnabled()) uploadFiles();
-            } else
+                Log.i(LOG_TAG, "Skipping upload because the VPN is not connected and the vpnOnly property is true");
+                connectivityMonitor.setWaitingForNetwork(true);
+                return;
+            }
+            connectivityMonitor.setWaitingForNetwork(false);
+
+            final boolean targeted = extras.getBoolean(SYNC_EXTRAS_TARGETED, false);
+            final boolean manual = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+            final boolean deferBulk = extras.getBoolean(SYNC_EXTRAS_DEFER_BULK, false);
+            final boolean job = extras.getBoolean(SYNC_EXTRAS_JOB, false);
+            final long intervalSeconds = adaptiveSyncInterval.getIntervalSeconds();
+
+            final UploadSummary uploadSummary = uploadFiles(targeted, manual, deferBulk, syncResult);
+            if (uploadSummary != null && uploadSummary.isBudgetExhausted())
             {
-                uploadFiles();
+                syncResult.moreRecordsToGet = true;
+                if (!job) requestFollowUpSync(account, extras);
             }
+
+            // The periodic jobs are rescheduled by the job service once the job has finished, since rescheduling a running job stops it
+            if (!job && adaptiveSyncInterval.getIntervalSeconds() != intervalSeconds) addPeriodicSync(getContext());
         } catch (Exception e)
         {
             Log.e(LOG_TAG, "Caught an exception when trying to perform a sync", e);
+            recordFailure(getRemote(), FailureClass.fromException(e), syncResult);
         }
     }
 
     /**
-     * Check if the Android device is currently connected to a Wi-Fi network.
+     * Generates and submits a {@link SyncRequest} that can be used to schedule periodic sync updates.  Most changes are uploaded by the targeted syncs
+     * requested by the {@link SyncDirectoryWatcher}, so the periodic sync is a safety net for changes that were missed while the watcher was not running.
+     * The period is picked by the {@link AdaptiveSyncInterval}, and this is called again whenever it changes.
+     * <p>
+     * When the {@link FileUploadJobService} is enabled, the periodic jobs are scheduled with the {@link android.app.job.JobScheduler} instead, and any
+     * periodic sync that was added before is removed.
      *
-     * @return If the device is connected to a Wi-Fi Network return true.
+     * @param context The context to use when creating the Sync {@link Account}.
      */
-    private boolean isWiFiConnected()
+    public static void addPeriodicSync(Context context)
     {
-        final ConnectivityManager connectivityManager = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager == null) return false;
-
-        boolean wifiConnected = false;
+        final Account dummyAccount = getSyncAccount(context);
 
-        for (Network network : connectivityManager.getAllNetworks())
+        if (FileUploadJobService.isEnabled(context))
         {
-            NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
-            if (networkInfo == null) continue;
-
-            if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI)
-            {
-                wifiConnected = networkInfo.isConnected();
-                break;
-            }
+            Log.i(LOG_TAG, "Scheduling the periodic upload jobs for Sync Monkey");
+            ContentResolver.removePeriodicSync(dummyAccount, SyncMonkeyConstants.AUTHORITY, new Bundle());
+            FileUploadJobService.schedulePeriodicJobs(context);
+            return;
         }
-        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Wifi connected: " + wifiConnected);
 
-        return wifiConnected;
+        final AdaptiveSyncInterval adaptiveSyncInterval = new AdaptiveSyncInterval(context);
+        final long intervalSeconds = adaptiveSyncInterval.getIntervalSeconds();
+        Log.i(LOG_TAG, "Adding the periodic sync adapter for Sync Monkey every " + intervalSeconds + " seconds because " + adaptiveSyncInterval.getReason());
+        FileUploadJobService.cancelPeriodicJobs(context);
+
+        final SyncRequest syncRequest = new SyncRequest.Builder()
+                .syncPeriodic(intervalSeconds, intervalSeconds / 2)
+                .setSyncAdapter(dummyAccount, SyncMonkeyConstants.AUTHORITY)
+                .setExtras(new Bundle()) // I think there is a bug in Android that makes setting this empty Bundle a requirement
+                .build();
+
+        ContentResolver.requestSync(syncRequest);
+        ContentResolver.setSyncAutomatically(dummyAccount, SyncMonkeyConstants.AUTHORITY, true);
     }
 
     /**
-     * Check if the Android device is currently attached to a VPN.
+     * Run the sync adapter immediately.
      *
-     * @return If the device is connected to a VPN return true.
+     * @param context The context to use when creating the Sync {@link Account}.
      */
-    private boolean isVpnEnabled()
+    public static void runSyncAdapterNow(Context context)
     {
-        final ConnectivityManager connectivityManager = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager == null) return false;
-
-        final Network[] networks = connectivityManager.getAllNetworks();
-
-        boolean vpnEnabled = false;
-
-        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Network count: " + networks.length);
-        for (int i = 0; i < networks.length; i++)
+        if (FileUploadJobService.isEnabled(context))
         {
-            final NetworkCapabilities caps = connectivityManager.getNetworkCapabilities(networks[i]);
-            if (caps == null) continue;
+            Log.i(LOG_TAG, "Scheduling a manual upload job for Sync Monkey");
+            FileUploadJobService.scheduleSync(context, false, true);
+            return;
+        }
 
-            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Network " + i + ": " + networks[i].toString());
-            if (caps.hasTransport(NetworkCapabilities.TRANSPORT_VPN) && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN))
-            {
-                vpnEnabled = true;
-            }
+        Log.i(LOG_TAG, "Running the sync adapter for Sync Monkey immediately");
 
-            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "VPN transport?: " + vpnEnabled);
-        }
+        Bundle settingsBundle = new Bundle();
+        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
 
-        return vpnEnabled;
+        ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, settingsBundle);
     }
 
     /**
-     * Generates and submits a {@link SyncRequest} that can be used to schedule periodic sync updates.
+     * Request a sync that only uploads the files recorded in the {@link ChangeJournal}.  Unlike {@link #runSyncAdapterNow(Context)} this is not a manual
+     * sync, so it still honors the auto sync preference and is scheduled by the sync framework when the network is available.
      *
      * @param context The context to use when creating the Sync {@link Account}.
+     * @since 0.0.10
      */
-    public static void addPeriodicSync(Context context)
+    public static void requestTargetedSync(Context context)
     {
-        Log.i(LOG_TAG, "Adding the periodic sync adapter for Sync Monkey");
+        if (FileUploadJobService.isEnabled(context))
+        {
+            Log.i(LOG_TAG, "Scheduling a targeted upload job for the changed files");
+            FileUploadJobService.scheduleSync(context, true, false);
+            return;
+        }
 
-        final Account dummyAccount = getSyncAccount(context);
+        Log.i(LOG_TAG, "Requesting a targeted sync of the changed files");
 
-        final SyncRequest syncRequest = new SyncRequest.Builder()
-                .syncPeriodic(SyncMonkeyConstants.SECONDS_IN_HOUR, (SyncMonkeyConstants.SECONDS_IN_HOUR) / 2)
-                .setSyncAdapter(dummyAccount, SyncMonkeyConstants.AUTHORITY)
-                .setExtras(new Bundle()) // I think there is a bug in Android that makes setting this empty Bundle a requirement
-                .build();
+        final Bundle settingsBundle = new Bundle();
+        settingsBundle.putBoolean(SYNC_EXTRAS_TARGETED, true);
 
-        ContentResolver.requestSync(syncRequest);
-        ContentResolver.setSyncAutomatically(dummyAccount, SyncMonkeyConstants.AUTHORITY, true);
+        ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, settingsBundle);
     }
 
     /**
-     * Run the sync adapter immediately.
+     * Request a full sync that is not manual, so it still honors the auto sync preference.  This is used by the {@link ConnectivityMonitor} to retry a
+     * sync that was skipped as soon as the network it needs is connected, instead of waiting for the next periodic sync.
      *
      * @param context The context to use when creating the Sync {@link Account}.
+     * @since 0.0.10
      */
-    public static void runSyncAdapterNow(Context context)
+    public static void requestSync(Context context)
     {
-        Log.i(LOG_TAG, "Running the sync adapter for Sync Monkey immediately");
+        if (FileUploadJobService.isEnabled(context))
+        {
+            Log.i(LOG_TAG, "Scheduling an upload job for Sync Monkey");
+            FileUploadJobService.scheduleSync(context, false, false);
+            return;
+        }
 
-        Bundle settingsBundle = new Bundle();
-        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
-        settingsBundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        Log.i(LOG_TAG, "Requesting a sync for Sync Monkey");
 
-        ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, settingsBundle);
+        ContentResolver.requestSync(getSyncAccount(context), SyncMonkeyConstants.AUTHORITY, new Bundle());
+    }
+
+    /**
+     * Requests another sync with the same extras as the current one, so that the files left when a {@link SyncSession} runs out of budget are picked up
+     * in the next sync window instead of waiting for the next periodic sync.
+     *
+     * @since 0.0.10
+     */
+    private static void requestFollowUpSync(Account account, Bundle extras)
+    {
+        Log.i(LOG_TAG, "Requesting a follow-up sync for the files left by the time-boxed sync session");
+
+        ContentResolver.requestSync(account, SyncMonkeyConstants.AUTHORITY, new Bundle(extras));
     }
 
     /**
@@ -235,100 +360,711 @@ public class FileUploadSyncAdapter extends AbstractThreadedSyncAdapter
 
     /**
      * Pull the upload preferences from the PreferenceManager, and then upload any files that are not already present on the remote server.
+     * <p>
+     * The new and changed files from every sync directory are uploaded by a single rclone process, which transfers up to
+     * {@link SyncMonkeyConstants#PROPERTY_UPLOAD_PARALLELISM_KEY} files at the same time so that one slow directory does not hold up the rest.  If the
+     * single upload can't be staged, each sync directory is uploaded by its own rclone process on a worker pool instead.  When deduplication is enabled,
+     * files whose content is already on the remote are copied there by the {@link ContentDeduplicator} instead of being uploaded.
+     *
+     * @param targeted   True if only the paths recorded in the {@link ChangeJournal} should be considered, false to scan every sync directory.
+     * @param manual     True if the user asked for this sync, in which case it is attempted even if the circuit breaker for the remote is open.
+     * @param deferBulk  True if the files queued as {@link UploadQueue.Priority#BULK} should be left for the bulk lane.
+     * @param syncResult The result to report the upload stats and any failure in.
+     * @return The aggregated results of uploading each sync directory, or null if the upload could not be attempted.
      */
-    private void uploadFiles()
+    private UploadSummary uploadFiles(boolean targeted, boolean manual, boolean deferBulk, SyncResult syncResult)
     {
         synchronized (SyncMonkeyMainActivity.class)
         {
-            final String containerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
             final String localSyncDirectories = appPreferences.getString(SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY, "");
             final String deviceId = appPreferences.getString(SyncMonkeyConstants.PROPERTY_DEVICE_ID_KEY, SyncMonkeyConstants.DEFAULT_DEVICE_ID);
 
-            if (containerName == null)
+            final RemoteItem remote = getRemote();
+            if (remote == null)
             {
                 Log.e(LOG_TAG, "Could not upload any files because the containerName was null");
-                return;
+                return null;
             }
 
-            final RemoteItem remote = new RemoteItem(SyncMonkeyConstants.AZURE_CONFIG_NAME + SyncMonkeyConstants.COLON_SEPARATOR + containerName, SyncMonkeyConstants.AZURE_REMOTE_TYPE);
+            final long circuitOpenUntil = retryPolicy.getCircuitOpenUntil(remote.getName());
+            if (circuitOpenUntil > 0 && !manual)
+            {
+                Log.i(LOG_TAG, "Skipping the sync because the circuit breaker for " + remote.getName() + " is open for another "
+                        + (circuitOpenUntil - System.currentTimeMillis()) / 1000 + " seconds");
+                syncResult.delayUntil = circuitOpenUntil / 1000;
+                return null;
+            }
+            failureClassifier.reset();
 
-            // First, sync any files in the private shared directory
-            final String privateAppFilesSyncDirectory = new File(getContext().getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath();
-            processDirectoryForUpload(privateAppFilesSyncDirectory, deviceId, remote);
+            // The private shared directory is listed first so that it wins any remote path collisions and is the first to be picked up
+            final List<String> syncDirectoryPaths = new ArrayList<>();
+            syncDirectoryPaths.add(new File(getContext().getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath());
 
             //noinspection ConstantConditions
             for (String relativeSyncDirectory : localSyncDirectories.split(SyncMonkeyConstants.COLON_SEPARATOR))
             {
                 if (relativeSyncDirectory.isEmpty()) continue;
 
-                processDirectoryForUpload(dataDirectoryPath + relativeSyncDirectory, deviceId, remote);
+                syncDirectoryPaths.add(dataDirectoryPath + relativeSyncDirectory);
             }
+
+            final Set<String> changedPaths = targeted ? changeJournal.drain() : null;
+            if (targeted && changedPaths.isEmpty())
+            {
+                Log.i(LOG_TAG, "Skipping the targeted sync because there are no changed files in the journal");
+                return new UploadSummary();
+            }
+
+            final SyncSession syncSession = SyncSession.fromPreferences(appPreferences);
+            final SyncPlan plannedFiles = syncPlanner.plan(syncDirectoryPaths, changedPaths, isChecksumEnabled());
+            final ContentDeduplicator.Duplicates duplicates = contentDeduplicator.findDuplicates(plannedFiles, getBundleThreshold());
+            final SyncPlan syncPlan = duplicates.isEmpty() ? plannedFiles : plannedFiles.subset(duplicates.getUniqueEntries());
+            long planBytes = 0;
+            for (SyncPlan.SourcePlan sourcePlan : syncPlan.getSourcePlans())
+            {
+                planBytes += sourcePlan.getByteCount();
+            }
+
+            UploadSummary uploadSummary = uploadPlanByPriority(syncPlan, syncDirectoryPaths, deviceId, remote, syncSession, deferBulk);
+            long backlogBytes = Math.max(0, planBytes - syncSession.getBytesUploaded());
+            if (uploadSummary == null)
+            {
+                Log.w(LOG_TAG, "Could not stage a single upload for all the sync directories, falling back to one rclone process per directory");
+                uploadSummary = uploadDirectoriesInParallel(syncDirectoryPaths, deviceId, remote, changedPaths);
+                backlogBytes = uploadSummary.isSuccessful() ? 0 : planBytes;
+            } else if (!duplicates.isEmpty())
+            {
+                uploadDuplicates(duplicates, plannedFiles, deviceId, remote, syncSession, uploadSummary);
+            }
+            adaptiveSyncInterval.update(syncPlan, backlogBytes);
+            uploadSummary.setBudgetExhausted(syncSession.isBudgetExhausted());
+            Log.i(LOG_TAG, "Finished the upload: " + uploadSummary + ", " + syncSession);
+            reportSyncResult(remote, uploadSummary, syncResult);
+
+            // Leave the journal in place after a failure, or when the session ran out of budget, so the changed paths are retried on the next targeted sync
+            if (targeted && uploadSummary.isSuccessful() && !uploadSummary.isBudgetExhausted()) changeJournal.commitDrain();
+
+            // Retention walks every sync directory, so it only runs after a full sync that uploaded everything
+            if (!targeted && uploadSummary.isSuccessful() && !uploadSummary.isBudgetExhausted() && retentionPolicy.isEnabled())
+            {
+                retentionPolicy.apply(syncDirectoryPaths, deviceId, remote);
+            }
+
+            return uploadSummary;
         }
     }
 
     /**
-     * Given a directory path, sync all the files in the directory with the provided remote server.
+     * @return The remote for the configured container, or null if the container name has not been set.
+     */
+    private RemoteItem getRemote()
+    {
+        final String containerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
+        if (containerName == null) return null;
+
+        return new RemoteItem(SyncMonkeyConstants.AZURE_CONFIG_NAME + SyncMonkeyConstants.COLON_SEPARATOR + containerName, SyncMonkeyConstants.AZURE_REMOTE_TYPE);
+    }
+
+    /**
+     * Fills in the stats of the provided sync result from the upload summary, and records the outcome with the {@link RetryPolicy}.  A sync that was
+     * cancelled is not counted as a failure, because the platform interrupts the sync thread when it cancels a sync, such as when the network drops.
+     */
+    private void reportSyncResult(RemoteItem remote, UploadSummary uploadSummary, SyncResult syncResult)
+    {
+        for (DirectoryUploadResult directoryResult : uploadSummary.getDirectoryResults())
+        {
+            syncResult.stats.numEntries += directoryResult.getFileCount();
+            if (directoryResult.isSuccessful())
+            {
+                syncResult.stats.numInserts += directoryResult.getFileCount();
+            } else
+            {
+                syncResult.stats.numSkippedEntries += directoryResult.getFileCount();
+            }
+        }
+        syncResult.stats.numEntries += uploadSummary.getNotAttemptedCount();
+        syncResult.stats.numSkippedEntries += uploadSummary.getNotAttemptedCount();
+
+        if (uploadSummary.isSuccessful())
+        {
+            retryPolicy.recordSuccess(remote.getName());
+        } else if (!Thread.currentThread().isInterrupted())
+        {
+            recordFailure(remote, failureClassifier.getFailureClass(), syncResult);
+        }
+    }
+
+    /**
+     * Reports a failed sync in the provided sync result.  Authentication failures are hard errors, which the platform does not retry on its own, and the
+     * rest are soft errors.  Either way, the {@link SyncResult#delayUntil} is set from the {@link RetryPolicy} so the next attempt waits out the backoff.
      *
-     * @param syncDirectoryPath The directory to sync.
-     * @param deviceId          The device ID which will be used as the folder name on the remote server.
-     * @param remote            The remote server to sync the files with.
+     * @param remote The remote that the sync failed to upload to, or null if it is not known.
      */
-    private void processDirectoryForUpload(String syncDirectoryPath, String deviceId, RemoteItem remote)
+    private void recordFailure(RemoteItem remote, FailureClass failureClass, SyncResult syncResult)
     {
-        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Syncing the directory: " + syncDirectoryPath);
+        if (failureClass == FailureClass.AUTHENTICATION)
+        {
+            syncResult.stats.numAuthExceptions++;
+        } else
+        {
+            syncResult.stats.numIoExceptions++;
+        }
 
-        Process currentProcess = rclone.uploadFile(remote, "/" + deviceId, syncDirectoryPath);
+        if (remote != null) syncResult.delayUntil = Math.max(syncResult.delayUntil, retryPolicy.recordFailure(remote.getName(), failureClass) / 1000);
+    }
 
-        if (currentProcess != null)
+    /**
+     * Uploads the provided plan in the batches scheduled by the {@link UploadQueue}, most urgent first.  Before each batch after the first, the queue is
+     * checked for files that were shared while this sync was running, and those are uploaded ahead of the remaining batches.  A failed batch ends the
+     * upload, and the files that were not uploaded stay queued for the next sync.  Once the sync session runs out of budget, the upload stops cleanly
+     * between batches and the remaining batches are left for a follow-up sync.
+     * <p>
+     * The summary is made up of the results of each batch that was uploaded, so a failed batch does not mark the batches before it as failed, and the
+     * files in the batches that were never started, including any bulk files that were deferred, are reported as not attempted rather than uploaded.
+     *
+     * @param syncPlan           The files to upload across all of the sync directories.
+     * @param syncDirectoryPaths The sync directories, which are used to plan any newly shared files.
+     * @param deviceId           The device ID which will be used as the folder name on the remote server.
+     * @param remote             The remote server to sync the files with.
+     * @param syncSession        The time and byte budget of this sync.
+     * @param deferBulk          True if the files queued as {@link UploadQueue.Priority#BULK} should be left for the bulk lane.
+     * @return The per-directory results of the upload, or null if the first batch could not be staged.
+     */
+    private UploadSummary uploadPlanByPriority(SyncPlan syncPlan, List<String> syncDirectoryPaths, String deviceId, RemoteItem remote,
+                                               SyncSession syncSession, boolean deferBulk)
+    {
+        if (syncPlan.isEmpty()) return uploadPlan(syncPlan, deviceId, remote, syncSession);
+
+        final Set<String> plannedPaths = new HashSet<>();
+        for (LocalFileEntry fileEntry : syncPlan.getEntries())
         {
-            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(currentProcess.getErrorStream())))
+            plannedPaths.add(fileEntry.getPath());
+        }
+
+        final UploadSummary uploadSummary = new UploadSummary();
+        final Set<LocalFileEntry> attemptedFiles = new HashSet<>();
+        boolean firstBatch = true;
+        for (List<LocalFileEntry> batch : uploadQueue.schedule(syncPlan.getEntries(), deferBulk))
+        {
+            if (!firstBatch) uploadNewlySharedFiles(syncDirectoryPaths, plannedPaths, deviceId, remote, uploadSummary, syncSession);
+
+            long batchBytes = 0;
+            for (LocalFileEntry fileEntry : batch)
+            {
+                batchBytes += fileEntry.getSize();
+            }
+            if (!syncSession.canStart(batchBytes))
+            {
+                Log.i(LOG_TAG, "Stopping the upload because the sync session is out of budget: " + syncSession);
+                break;
+            }
+
+            final SyncPlan batchPlan = syncPlan.subset(batch);
+            UploadSummary batchSummary = uploadPlan(batchPlan, deviceId, remote, syncSession);
+            if (batchSummary == null)
+            {
+                if (firstBatch) return null;
+                batchSummary = batchPlan.createSummary(DirectoryUploadResult.EXIT_CODE_NOT_RUN, 0);
+            }
+            firstBatch = false;
+
+            attemptedFiles.addAll(batch);
+            for (DirectoryUploadResult directoryResult : batchSummary.getDirectoryResults())
+            {
+                uploadSummary.addDirectoryResult(directoryResult);
+            }
+            if (!batchSummary.isSuccessful()) break;
+        }
+
+        for (LocalFileEntry fileEntry : syncPlan.getEntries())
+        {
+            if (!attemptedFiles.contains(fileEntry)) uploadSummary.addNotAttempted(fileEntry);
+        }
+        return uploadSummary;
+    }
+
+    /**
+     * Creates the duplicate files on the remote by copying the files with the same content, and uploads the duplicates that could not be copied.  Any
+     * of those that can't be uploaded either are recorded in the {@link ChangeJournal}, so committing the drain of a targeted sync does not lose them.
+     *
+     * @param plannedFiles The plan that the duplicates were found in.
+     * @param summary      The summary to add the results of uploading the duplicates that could not be copied to.
+     */
+    private void uploadDuplicates(ContentDeduplicator.Duplicates duplicates, SyncPlan plannedFiles, String deviceId, RemoteItem remote,
+                                  SyncSession syncSession, UploadSummary summary)
+    {
+        final List<LocalFileEntry> failedCopies = contentDeduplicator.copyDuplicates(duplicates, deviceId, remote);
+        if (failedCopies.isEmpty()) return;
+
+        long failedCopyBytes = 0;
+        for (LocalFileEntry fileEntry : failedCopies)
+        {
+            failedCopyBytes += fileEntry.getSize();
+        }
+        final UploadSummary failedCopiesSummary = syncSession.canStart(failedCopyBytes)
+                ? uploadPlan(plannedFiles.subset(failedCopies), deviceId, remote, syncSession) : null;
+        if (failedCopiesSummary == null)
+        {
+            Log.i(LOG_TAG, "Leaving " + failedCopies.size() + " duplicates that could not be copied for the next sync");
+            for (LocalFileEntry fileEntry : failedCopies)
             {
-                String line;
-                //String notificationContent = "";
-                //String[] notificationBigText = new String[5];
-                while ((line = reader.readLine()) != null)
+                changeJournal.record(fileEntry.getPath());
+            }
+            return;
+        }
+
+        for (DirectoryUploadResult directoryResult : failedCopiesSummary.getDirectoryResults())
+        {
+            summary.addDirectoryResult(directoryResult);
+        }
+    }
+
+    /**
+     * Uploads the files that were queued as {@link UploadQueue.Priority#INTERACTIVE} after the current sync was planned.
+     *
+     * @param plannedPaths The paths already handled by this sync.  The newly shared paths are added to it so they are only tried once.
+     * @param summary      The summary to add the results to.
+     */
+    private void uploadNewlySharedFiles(List<String> syncDirectoryPaths, Set<String> plannedPaths, String deviceId, RemoteItem remote,
+                                        UploadSummary summary, SyncSession syncSession)
+    {
+        final Set<String> sharedPaths = uploadQueue.getInteractivePaths();
+        sharedPaths.removeAll(plannedPaths);
+        if (sharedPaths.isEmpty()) return;
+
+        plannedPaths.addAll(sharedPaths);
+
+        final SyncPlan sharedFilesPlan = syncPlanner.plan(syncDirectoryPaths, sharedPaths, isChecksumEnabled());
+        if (sharedFilesPlan.isEmpty()) return;
+
+        Log.i(LOG_TAG, "Uploading " + sharedFilesPlan.getFileCount() + " newly shared files ahead of the remaining batches");
+        final UploadSummary sharedFilesSummary = uploadPlan(sharedFilesPlan, deviceId, remote, syncSession);
+        if (sharedFilesSummary == null) return;
+
+        for (DirectoryUploadResult directoryResult : sharedFilesSummary.getDirectoryResults())
+        {
+            summary.addDirectoryResult(directoryResult);
+        }
+    }
+
+    /**
+     * Uploads every file in the provided plan using a single rclone process, or a single job on the {@link RcloneDaemon} when it is enabled.  When
+     * compression is enabled, the files compressed by the {@link CompressionStage} are uploaded by a second rclone run that sets the content encoding.
+     * When bundling is enabled, small files are uploaded inside the bundles built by the {@link SmallFileBundler} instead of on their own.  When resumable
+     * uploads are enabled, large files are uploaded first by the {@link ResumableBlobUploader} and are left out of the rclone run.
+     *
+     * @param syncPlan    The files to upload across all of the sync directories.
+     * @param deviceId    The device ID which will be used as the folder name on the remote server.
+     * @param remote      The remote server to sync the files with.
+     * @param syncSession The time and byte budget of this sync, which the uploaded bytes are counted against.
+     * @return The per-directory results of the upload, or null if the plan could not be staged.
+     */
+    private UploadSummary uploadPlan(SyncPlan syncPlan, String deviceId, RemoteItem remote, SyncSession syncSession)
+    {
+        if (syncPlan.isEmpty())
+        {
+            Log.i(LOG_TAG, "Skipping the upload because all the files in the sync directories have already been uploaded");
+            return syncPlan.createSummary(0, 0);
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final File stagingDirectory = new File(getContext().getCacheDir(), STAGING_DIRECTORY_NAME);
+        final File compressedStagingDirectory = new File(getContext().getCacheDir(), COMPRESSED_STAGING_DIRECTORY_NAME);
+        final File bundleDirectory = new File(getContext().getCacheDir(), BUNDLE_DIRECTORY_NAME);
+
+        try
+        {
+            final boolean resumable = isResumableUploadEnabled() && resumableBlobUploader.isAvailable();
+            final List<LocalFileEntry> resumableEntries = new ArrayList<>();
+            final List<LocalFileEntry> rcloneEntries = new ArrayList<>();
+            final Set<String> resumableRelativePaths = new HashSet<>();
+            for (LocalFileEntry fileEntry : syncPlan.getEntries())
+            {
+                if (resumable && fileEntry.getSize() >= ResumableBlobUploader.MIN_FILE_SIZE)
                 {
-                    Log.d(LOG_TAG, line);
-
-                    // This code might be useful to show toasts with specific transfer information
-                        /*if (line.startsWith("Transferred:") && !line.matches("Transferred:\\s+\\d+\\s+/\\s+\\d+,\\s+\\d+%$"))
-                        {
-                            String s = line.substring(12).trim();
-                            notificationBigText[0] = s;
-                            notificationContent = s;
-                        } else if (line.startsWith(" *"))
-                        {
-                            String s = line.substring(2).trim();
-                            notificationBigText[1] = s;
-                        } else if (line.startsWith("Errors:"))
-                        {
-                            notificationBigText[2] = line;
-                        } else if (line.startsWith("Checks:"))
-                        {
-                            notificationBigText[3] = line;
-                        } else if (line.matches("Transferred:\\s+\\d+\\s+/\\s+\\d+,\\s+\\d+%$"))
-                        {
-                            notificationBigText[4] = line;
-                        } else if (isLoggingEnable && line.startsWith("ERROR :"))
-                        {
-                            log2File.log(line);
-                        }*/
+                    resumableEntries.add(fileEntry);
+                    resumableRelativePaths.add(fileEntry.getRelativePath());
+                } else
+                {
+                    rcloneEntries.add(fileEntry);
                 }
-            } catch (IOException e)
+            }
+            final int resumableExitCode = resumable ? uploadResumably(resumableEntries, deviceId, remote, syncSession) : 0;
+
+            List<LocalFileEntry> unbundledEntries = rcloneEntries;
+            SmallFileBundler.Bundles bundles = null;
+            final int bundleThreshold = getBundleThreshold();
+            if (bundleThreshold > 0)
             {
-                Log.e(LOG_TAG, "Caught an exception when trying to read the output from the upload process", e);
+                try
+                {
+                    bundles = smallFileBundler.bundle(unbundledEntries, bundleThreshold, isCompressionEnabled(), bundleDirectory);
+
+                    final Set<String> bundledRelativePaths = bundles.getBundledRelativePaths();
+                    unbundledEntries = new ArrayList<>();
+                    for (LocalFileEntry fileEntry : rcloneEntries)
+                    {
+                        if (!bundledRelativePaths.contains(fileEntry.getRelativePath())) unbundledEntries.add(fileEntry);
+                    }
+                } catch (IOException e)
+                {
+                    Log.w(LOG_TAG, "Could not bundle the small files in the sync plan, uploading them individually", e);
+                }
             }
 
+            CompressionStage.CompressedFiles compressedFiles = null;
+            if (isCompressionEnabled())
+            {
+                try
+                {
+                    compressedFiles = compressionStage.compress(unbundledEntries, compressedStagingDirectory);
+                } catch (IOException e)
+                {
+                    Log.w(LOG_TAG, "Could not compress the sync plan, uploading the files uncompressed", e);
+                }
+            }
+            final Set<String> compressedRelativePaths = compressedFiles == null ? Collections.emptySet() : compressedFiles.getRelativePaths();
+
+            final Set<String> excludedRelativePaths = new HashSet<>(compressedRelativePaths);
+            excludedRelativePaths.addAll(resumableRelativePaths);
+            Map<String, File> bundleFiles = Collections.emptyMap();
+            if (bundles != null)
+            {
+                excludedRelativePaths.addAll(bundles.getBundledRelativePaths());
+                bundleFiles = bundles.getBundleFilesByRelativePath();
+            }
+
+            final File filesFromList;
             try
             {
-                currentProcess.waitFor();
-            } catch (InterruptedException e)
+                filesFromList = syncPlan.stage(stagingDirectory, excludedRelativePaths, bundleFiles);
+            } catch (IOException e)
+            {
+                Log.e(LOG_TAG, "Could not stage the sync plan", e);
+                return null;
+            }
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Uploading " + rcloneEntries.size() + " files with a single rclone process");
+
+            int exitCode = 0;
+            if (syncPlan.getFileCount() > excludedRelativePaths.size() || !bundleFiles.isEmpty())
+            {
+                exitCode = runUpload(remote, deviceId, stagingDirectory, filesFromList, Collections.emptyList());
+            }
+            if (exitCode == 0 && compressedFiles != null && !compressedFiles.isEmpty())
+            {
+                exitCode = runUpload(remote, deviceId, compressedStagingDirectory, compressedFiles.getFilesFromList(),
+                        Collections.singletonList(CompressionStage.CONTENT_ENCODING_HEADER));
+            }
+
+            if (exitCode == 0)
+            {
+                uploadManifest.markUploaded(rcloneEntries);
+                uploadQueue.remove(rcloneEntries);
+                for (LocalFileEntry fileEntry : rcloneEntries)
+                {
+                    syncSession.recordUploaded(fileEntry.getSize());
+                }
+                exitCode = resumableExitCode;
+            }
+
+            return syncPlan.createSummary(exitCode, System.currentTimeMillis() - startTime);
+        } finally
+        {
+            SyncPlan.deleteStaging(stagingDirectory);
+            SyncPlan.deleteStaging(compressedStagingDirectory);
+            SyncPlan.deleteStaging(bundleDirectory);
+        }
+    }
+
+    /**
+     * Uploads each of the provided large files with the {@link ResumableBlobUploader}, recording each one in the {@link UploadManifest} as soon as it is
+     * committed so that the progress of a long sync is not lost if a later file fails.  When the sync session runs out of budget part way through a file,
+     * the uploads stop and the file is resumed by the follow-up sync.
+     *
+     * @return Zero if every file was uploaded or the session ran out of budget, otherwise {@link DirectoryUploadResult#EXIT_CODE_NOT_RUN}.
+     */
+    private int uploadResumably(List<LocalFileEntry> fileEntries, String deviceId, RemoteItem remote, SyncSession syncSession)
+    {
+        resumableBlobUploader.pruneAbandonedUploads();
+        if (fileEntries.isEmpty()) return 0;
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Uploading " + fileEntries.size() + " large files with resumable block uploads");
+
+        int exitCode = 0;
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (resumableBlobUploader.upload(fileEntry, deviceId + "/" + fileEntry.getRelativePath(), syncSession, failureClassifier))
+            {
+                uploadManifest.markUploaded(Collections.singletonList(fileEntry));
+                uploadQueue.remove(Collections.singletonList(fileEntry));
+            } else if (syncSession.isBudgetExhausted())
+            {
+                break;
+            } else
+            {
+                exitCode = DirectoryUploadResult.EXIT_CODE_NOT_RUN;
+            }
+
+            if (Thread.currentThread().isInterrupted()) break;
+        }
+
+        rclone.invalidateRemotePath(remote, "/" + deviceId);
+        return exitCode;
+    }
+
+    /**
+     * @return True if large files should be uploaded with resumable block uploads instead of rclone, as set in the user preferences.
+     */
+    private boolean isResumableUploadEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_RESUMABLE_UPLOADS_KEY, false);
+    }
+
+    /**
+     * Runs a single files-from upload, on the {@link RcloneDaemon} if it is enabled, or otherwise with a new rclone process.
+     *
+     * @return The exit code of the upload, where zero means success.
+     */
+    private int runUpload(RemoteItem remote, String deviceId, File sourceDirectory, File filesFromList, List<String> uploadHeaders)
+    {
+        final Boolean daemonResult = rclone.uploadFilesWithDaemon(remote, "/" + deviceId, sourceDirectory.getAbsolutePath(), filesFromList,
+                getUploadParallelism(), uploadHeaders, failureClassifier);
+        if (daemonResult != null) return daemonResult ? 0 : DirectoryUploadResult.EXIT_CODE_NOT_RUN;
+
+        final Process currentProcess = rclone.uploadFiles(remote, "/" + deviceId, sourceDirectory.getAbsolutePath(), filesFromList,
+                getUploadParallelism(), uploadHeaders);
+        return waitForUploadProcess(currentProcess);
+    }
+
+    /**
+     * @return The size in bytes below which files are bundled by the {@link SmallFileBundler}, or zero if bundling is disabled, as set in the user
+     * preferences.
+     */
+    private int getBundleThreshold()
+    {
+        try
+        {
+            return appPreferences.getInt(SyncMonkeyConstants.PROPERTY_BUNDLE_THRESHOLD_KEY, 0);
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The bundle threshold preference is not a valid integer, bundling is disabled", e);
+            return 0;
+        }
+    }
+
+    /**
+     * @return True if compressible files should be gzipped before they are uploaded, as set in the user preferences.
+     */
+    private boolean isCompressionEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_COMPRESSION_KEY, false);
+    }
+
+    /**
+     * Uploads each of the provided directories on a bounded worker pool and waits for all of them to finish.
+     *
+     * @param syncDirectoryPaths The directories to sync.
+     * @param deviceId           The device ID which will be used as the folder name on the remote server.
+     * @param remote             The remote server to sync the files with.
+     * @param changedPaths       If not null, only these paths are considered instead of walking each directory.
+     * @return The results of uploading each directory, in the same order as the provided directories.
+     */
+    private UploadSummary uploadDirectoriesInParallel(List<String> syncDirectoryPaths, String deviceId, RemoteItem remote, Set<String> changedPaths)
+    {
+        final int parallelism = Math.max(1, Math.min(getUploadParallelism(), syncDirectoryPaths.size()));
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Uploading " + syncDirectoryPaths.size() + " directories with a parallelism of " + parallelism);
+
+        final ExecutorService executorService = Executors.newFixedThreadPool(parallelism);
+        final UploadSummary uploadSummary = new UploadSummary();
+
+        try
+        {
+            final List<Future<DirectoryUploadResult>> futures = new ArrayList<>();
+            for (String syncDirectoryPath : syncDirectoryPaths)
+            {
+                futures.add(executorService.submit(() -> processDirectoryForUpload(syncDirectoryPath, syncDirectoryPaths, deviceId, remote,
+                        changedPaths)));
+            }
+
+            for (int i = 0; i < futures.size(); i++)
             {
-                Log.e(LOG_TAG, "Caught an exception when waiting for the rclone upload process to finish", e);
+                try
+                {
+                    uploadSummary.addDirectoryResult(futures.get(i).get());
+                } catch (ExecutionException e)
+                {
+                    Log.e(LOG_TAG, "Caught an exception when uploading the directory " + syncDirectoryPaths.get(i), e);
+                    failureClassifier.recordException(e.getCause());
+                    uploadSummary.addDirectoryResult(new DirectoryUploadResult(syncDirectoryPaths.get(i), DirectoryUploadResult.EXIT_CODE_NOT_RUN, 0, 0));
+                }
             }
+        } catch (InterruptedException e)
+        {
+            Log.e(LOG_TAG, "Interrupted while waiting for the directory uploads to finish", e);
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            executorService.shutdownNow();
+        }
+
+        return uploadSummary;
+    }
+
+    /**
+     * @return The maximum number of files, or rclone upload processes when falling back to one process per directory, that can be uploaded at the same
+     * time, as set in the user preferences.
+     */
+    private int getUploadParallelism()
+    {
+        try
+        {
+            return appPreferences.getInt(SyncMonkeyConstants.PROPERTY_UPLOAD_PARALLELISM_KEY, SyncMonkeyConstants.DEFAULT_UPLOAD_PARALLELISM);
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The upload parallelism preference is not a valid integer, using the default", e);
+            return SyncMonkeyConstants.DEFAULT_UPLOAD_PARALLELISM;
+        }
+    }
+
+    /**
+     * @return True if files should be compared by content hash instead of by size and modified time, as set in the user preferences.
+     */
+    private boolean isChecksumEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_CHECKSUM_KEY, false);
+    }
+
+    /**
+     * Given a directory path, sync all the files in the directory with the provided remote server.  Only the files that are not already recorded in the
+     * {@link UploadManifest} are handed to rclone, and the directory is skipped entirely if nothing has changed.
+     *
+     * @param syncDirectoryPath  The directory to sync.
+     * @param syncDirectoryPaths All the sync directories, so that a sync directory inside this one is not scanned twice.
+     * @param deviceId           The device ID which will be used as the folder name on the remote server.
+     * @param remote             The remote server to sync the files with.
+     * @param changedPaths       If not null, only these paths are checked against the manifest instead of walking the directory.
+     * @return The result of the upload for the provided directory.
+     */
+    private DirectoryUploadResult processDirectoryForUpload(String syncDirectoryPath, List<String> syncDirectoryPaths, String deviceId, RemoteItem remote,
+                                                          Set<String> changedPaths)
+    {
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Syncing the directory: " + syncDirectoryPath);
+
+        final long startTime = System.currentTimeMillis();
+
+        // Only spawn rclone if something in the directory has changed since it was last uploaded
+        List<LocalFileEntry> changedFiles = syncPlanner.findChangedFiles(new File(syncDirectoryPath), syncDirectoryPaths, changedPaths,
+                syncDirectoryScanner.loadFilter());
+        if (isChecksumEnabled()) changedFiles = syncPlanner.dropUnchangedContent(changedFiles);
+        if (changedFiles.isEmpty())
+        {
+            Log.i(LOG_TAG, "Skipping the upload of " + syncDirectoryPath + " because all of its files have already been uploaded");
+            return new DirectoryUploadResult(syncDirectoryPath, 0, System.currentTimeMillis() - startTime, 0);
+        }
+
+        final File filesFromList = writeFilesFromList(changedFiles);
+        if (filesFromList == null)
+        {
+            failureClassifier.recordFailure(FailureClass.LOCAL_IO);
+            return new DirectoryUploadResult(syncDirectoryPath, DirectoryUploadResult.EXIT_CODE_NOT_RUN, System.currentTimeMillis() - startTime, changedFiles.size());
         }
 
-        boolean result = currentProcess != null && currentProcess.exitValue() == 0;
-        Log.i(LOG_TAG, "rclone upload result=" + result);
+        try
+        {
+            final Process currentProcess = rclone.uploadFiles(remote, "/" + deviceId, syncDirectoryPath, filesFromList);
+
+            final int exitCode = waitForUploadProcess(currentProcess);
+            final DirectoryUploadResult result = new DirectoryUploadResult(syncDirectoryPath, exitCode, System.currentTimeMillis() - startTime, changedFiles.size());
+            Log.i(LOG_TAG, "rclone upload result=" + result);
+
+            if (result.isSuccessful())
+            {
+                uploadManifest.markUploaded(changedFiles);
+                uploadQueue.remove(changedFiles);
+            }
+
+            return result;
+        } finally
+        {
+            //noinspection ResultOfMethodCallIgnored
+            filesFromList.delete();
+        }
+    }
+
+    /**
+     * Parses the JSON log output of the provided rclone upload process and waits for it to finish.  The stats and errors are handed to the
+     * {@link #uploadProgressLogger}, the errors are classified by the {@link #failureClassifier}, and the most recent output is logged if the process
+     * fails.
+     *
+     * @param currentProcess The rclone upload process, or null if it could not be started.
+     * @return The exit code of the process, or {@link DirectoryUploadResult#EXIT_CODE_NOT_RUN} if it was never started or the wait was interrupted.
+     */
+    private int waitForUploadProcess(Process currentProcess)
+    {
+        if (currentProcess == null)
+        {
+            failureClassifier.recordFailure(FailureClass.LOCAL_IO);
+            return DirectoryUploadResult.EXIT_CODE_NOT_RUN;
+        }
+
+        final RcloneOutputParser outputParser = new RcloneOutputParser(Arrays.asList(uploadProgressLogger, failureClassifier));
+        try
+        {
+            outputParser.parse(currentProcess.getErrorStream());
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Caught an exception when trying to read the output from the upload process", e);
+        }
+
+        try
+        {
+            currentProcess.waitFor();
+        } catch (InterruptedException e)
+        {
+            Log.e(LOG_TAG, "Caught an exception when waiting for the rclone upload process to finish", e);
+            currentProcess.destroy();
+            Thread.currentThread().interrupt();
+            return DirectoryUploadResult.EXIT_CODE_NOT_RUN;
+        }
+
+        final int exitCode = currentProcess.exitValue();
+        if (exitCode == 0) compressionStage.recordLinkSpeed(outputParser.getLastStats());
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "rclone exited with code " + exitCode + ", final stats: " + outputParser.getLastStats());
+        if (exitCode != 0)
+        {
+            failureClassifier.recordExitCode(exitCode, outputParser.getRetainedLines());
+            Log.e(LOG_TAG, "The rclone upload failed with " + outputParser.getErrorCount() + " errors, the most recent output follows");
+            outputParser.logRetainedLines();
+        }
+
+        return exitCode;
+    }
+
+    /**
+     * Writes the relative path of each of the provided files to a temporary rclone files-from list in the app's cache directory.
+     *
+     * @param fileEntries The files to include in the list.
+     * @return The files-from list, or null if it could not be written.
+     */
+    private File writeFilesFromList(List<LocalFileEntry> fileEntries)
+    {
+        try
+        {
+            final File filesFromList = File.createTempFile("files-from", ".txt", getContext().getCacheDir());
+            try (final BufferedWriter writer = new BufferedWriter(new FileWriter(filesFromList)))
+            {
+                for (LocalFileEntry fileEntry : fileEntries)
+                {
+                    writer.write(fileEntry.getRelativePath());
+                    writer.newLine();
+                }
+            }
+            return filesFromList;
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not write the rclone files-from list", e);
+            return null;
+        }
     }
 }
\ No newline at end of file
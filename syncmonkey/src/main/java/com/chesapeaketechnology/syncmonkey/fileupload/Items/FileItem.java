@@ -118,7 +118,14 @@ public class FileItem implements Parcelable
         return isDir;
     }
 
-    private String getMimeType(String mimeType, String path)
+    /**
+     * Resolves the MIME type of a file, falling back to the file extension when the provided type is the generic {@code application/octet-stream}.
+     *
+     * @param mimeType The MIME type reported for the file, such as by rclone.
+     * @param path     The path of the file.
+     * @return The resolved MIME type.
+     */
+    public static String getMimeType(String mimeType, String path)
     {
         if ("application/octet-stream".equals(mimeType))
         {
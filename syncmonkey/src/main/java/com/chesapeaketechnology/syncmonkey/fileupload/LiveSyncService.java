@@ -0,0 +1,156 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.IBinder;
+import android.util.Log;
+
+import androidx.core.app.NotificationCompat;
+
+import com.chesapeaketechnology.syncmonkey.R;
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+/**
+ * A foreground service that keeps the app's main process alive for the work that has to happen as files change, rather than at the next scheduled sync.
+ * Without it, the {@link SyncDirectoryWatcher}, the {@link TailStreamer}, and the {@link ConnectivityMonitor} only run until the OS reclaims the process,
+ * which is usually minutes after boot or after the activity is closed, so new files and skipped syncs would silently wait for the periodic sync once the
+ * UI is gone.
+ * <p>
+ * The service runs while automatic syncs are enabled.  Call {@link #update(Context)} whenever a preference that the watcher or the streamer uses changes,
+ * and the service is started or stopped to match and its components pick up the change.  The sync adapter calls {@link #ensureRunning(Context)} from the
+ * {@code :sync} process on every sync, so the service is brought back even if it was stopped without the preferences changing.
+ *
+ * @since 0.0.10
+ */
+public class LiveSyncService extends Service
+{
+    private static final String LOG_TAG = LiveSyncService.class.getSimpleName();
+
+    private static final String NOTIFICATION_CHANNEL_ID = "live_sync";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * Asks a running service to restart its components so they pick up changed preferences.
+     */
+    private static final String ACTION_UPDATE = "com.chesapeaketechnology.syncmonkey.action.UPDATE_LIVE_SYNC";
+
+    private boolean componentsStarted;
+
+    /**
+     * Starts or stops the service to match the current user preferences.  If it is already running, its components are restarted to pick up any change.
+     */
+    public static void update(Context context)
+    {
+        startOrStop(context, ACTION_UPDATE);
+    }
+
+    /**
+     * Starts the service if it should be running and is not.  A service that is already running is left as it is.
+     */
+    public static void ensureRunning(Context context)
+    {
+        startOrStop(context, null);
+    }
+
+    private static void startOrStop(Context context, String action)
+    {
+        final Context applicationContext = context.getApplicationContext();
+        final Intent serviceIntent = new Intent(applicationContext, LiveSyncService.class).setAction(action);
+
+        if (!isNeeded(new AppPreferences(applicationContext)))
+        {
+            applicationContext.stopService(serviceIntent);
+            return;
+        }
+
+        try
+        {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            {
+                applicationContext.startForegroundService(serviceIntent);
+            } else
+            {
+                applicationContext.startService(serviceIntent);
+            }
+        } catch (RuntimeException e)
+        {
+            Log.w(LOG_TAG, "Could not start the live sync service, changes will be picked up by the periodic sync", e);
+        }
+    }
+
+    private static boolean isNeeded(AppPreferences appPreferences)
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId)
+    {
+        startForeground(NOTIFICATION_ID, createNotification());
+
+        if (!isNeeded(new AppPreferences(getApplicationContext())))
+        {
+            Log.i(LOG_TAG, "Live syncing is no longer needed, stopping the service");
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        // A null intent means the process was killed and the service was recreated, in which case the components have to be started again
+        if (!componentsStarted || (intent != null && ACTION_UPDATE.equals(intent.getAction())))
+        {
+            Log.i(LOG_TAG, "Starting the live sync components");
+            ConnectivityMonitor.getInstance(getApplicationContext()).start();
+            SyncDirectoryWatcher.getInstance(getApplicationContext()).start();
+            TailStreamer.getInstance(getApplicationContext()).start();
+            componentsStarted = true;
+        }
+
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        Log.i(LOG_TAG, "Stopping the live sync components");
+        ConnectivityMonitor.getInstance(getApplicationContext()).stop();
+        SyncDirectoryWatcher.getInstance(getApplicationContext()).stop();
+        TailStreamer.getInstance(getApplicationContext()).stop();
+
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        return null;
+    }
+
+    private Notification createNotification()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+        {
+            final NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            if (notificationManager != null)
+            {
+                notificationManager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                        getString(R.string.live_sync_notification_channel_name), NotificationManager.IMPORTANCE_LOW));
+            }
+        }
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.live_sync_notification_text))
+                .setSmallIcon(R.drawable.ic_auto_start)
+                .setOngoing(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setCategory(NotificationCompat.CATEGORY_SERVICE)
+                .build();
+    }
+}
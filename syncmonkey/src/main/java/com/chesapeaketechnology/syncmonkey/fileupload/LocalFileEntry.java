@@ -0,0 +1,97 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.io.File;
+
+/**
+ * A snapshot of a local file in one of the sync directories, taken when the sync directory was scanned.  The size and modified time are captured at scan
+ * time so that a file that changes while it is being uploaded is not recorded as uploaded with its newer state.
+ *
+ * @since 0.0.10
+ */
+public class LocalFileEntry
+{
+    private final File file;
+    private final String relativePath;
+    private final long size;
+    private final long lastModified;
+    private String hash;
+    private String md5;
+
+    LocalFileEntry(File file, String relativePath, long size, long lastModified)
+    {
+        this.file = file;
+        this.relativePath = relativePath;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * @return The absolute path of the file, which is used as the key in the {@link UploadManifest}.
+     */
+    public String getPath()
+    {
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * @return The path of the file relative to the sync directory it was found in, using '/' as the separator.
+     */
+    public String getRelativePath()
+    {
+        return relativePath;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * @return The fast content hash of the file, which is an {@link XxHash64} hex string when set by the {@link LocalFileHasher}, or null if it has not
+     * been calculated.
+     */
+    public String getHash()
+    {
+        return hash;
+    }
+
+    void setHash(String hash)
+    {
+        this.hash = hash;
+    }
+
+    /**
+     * @return The MD5 hex string of the file, which can be compared with the MD5 that Azure stores for each blob, or null if it has not been calculated.
+     */
+    public String getMd5()
+    {
+        return md5;
+    }
+
+    void setMd5(String md5)
+    {
+        this.md5 = md5;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LocalFileEntry{" +
+                "path='" + getPath() + '\'' +
+                ", size=" + size +
+                ", lastModified=" + lastModified +
+                ", hash='" + hash + '\'' +
+                ", md5='" + md5 + '\'' +
+                '}';
+    }
+}
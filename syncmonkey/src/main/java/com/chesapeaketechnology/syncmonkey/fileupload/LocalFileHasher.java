@@ -0,0 +1,216 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_CACHED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_MD5;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_MODIFIED;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SIZE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_XXH64;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_LOCAL_HASH_CACHE;
+
+/**
+ * Hashes local files so that a change in content can be told apart from a change in the modified time alone, which some external storage reports
+ * unreliably.  Each file is read once through memory mapped windows, and both an MD5, which is what Azure stores for each blob, and an {@link XxHash64},
+ * which is used for local change detection, are calculated in the same pass.  Files are hashed in parallel, one file per core.
+ * <p>
+ * The hashes are cached in the {@link SyncMonkeyDatabaseHelper} database by path, size, and modified time, so a file is only read again once one of those
+ * changes.
+ *
+ * @since 0.0.10
+ */
+public class LocalFileHasher
+{
+    private static final String LOG_TAG = LocalFileHasher.class.getSimpleName();
+
+    /**
+     * The size of each memory mapped window.  Mapping the whole file at once could exhaust the address space for very large captures.
+     */
+    private static final long MAP_WINDOW_SIZE = 32L * 1024 * 1024;
+
+    private static final String[] HASH_COLUMNS = {COLUMN_MD5, COLUMN_XXH64};
+    private static final String CACHE_SELECTION = COLUMN_PATH + " = ? AND " + COLUMN_SIZE + " = ? AND " + COLUMN_MODIFIED + " = ?";
+
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+
+    LocalFileHasher(Context context)
+    {
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Sets the {@link LocalFileEntry#getHash() xxHash} and {@link LocalFileEntry#getMd5() MD5} of each of the provided files, using the cached hashes for
+     * any file that has not changed, and hashing the rest in parallel.  A file that can't be read, or that changes while it is being hashed, is left
+     * without hashes.
+     *
+     * @param fileEntries The files to hash.
+     */
+    public void hashFiles(Collection<LocalFileEntry> fileEntries)
+    {
+        final List<LocalFileEntry> uncachedEntries = new ArrayList<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (!applyCachedHashes(fileEntry)) uncachedEntries.add(fileEntry);
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+        {
+            Log.d(LOG_TAG, "Hashing " + uncachedEntries.size() + " of " + fileEntries.size() + " files, the rest were cached");
+        }
+        if (uncachedEntries.isEmpty()) return;
+
+        final int threadCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), uncachedEntries.size()));
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        final List<LocalFileEntry> hashedEntries = new ArrayList<>();
+
+        try
+        {
+            final List<Future<Boolean>> futures = new ArrayList<>();
+            for (LocalFileEntry fileEntry : uncachedEntries)
+            {
+                futures.add(executorService.submit(() -> hashFile(fileEntry)));
+            }
+
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    if (futures.get(i).get()) hashedEntries.add(uncachedEntries.get(i));
+                } catch (ExecutionException e)
+                {
+                    Log.e(LOG_TAG, "Could not hash " + uncachedEntries.get(i).getPath(), e);
+                }
+            }
+        } catch (InterruptedException e)
+        {
+            Log.e(LOG_TAG, "Interrupted while hashing the local files", e);
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            executorService.shutdownNow();
+        }
+
+        cacheHashes(hashedEntries);
+    }
+
+    /**
+     * Reads the file once and calculates both of its hashes.
+     *
+     * @return True if the file was hashed, false if it could not be read or it changed while it was being read.
+     */
+    private static boolean hashFile(LocalFileEntry fileEntry)
+    {
+        final File file = fileEntry.getFile();
+        if (file.length() != fileEntry.getSize() || file.lastModified() != fileEntry.getLastModified()) return false;
+
+        final MessageDigest md5Digest;
+        try
+        {
+            md5Digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e)
+        {
+            Log.wtf(LOG_TAG, "MD5 is not available on this device", e);
+            return false;
+        }
+        final XxHash64 xxHash64 = new XxHash64();
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             final FileChannel channel = randomAccessFile.getChannel())
+        {
+            final long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW_SIZE)
+            {
+                final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, size - position));
+                md5Digest.update(window.duplicate());
+                xxHash64.update(window);
+            }
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not read " + fileEntry.getPath() + " to hash it", e);
+            return false;
+        }
+
+        // Don't trust a hash of a file that was still being written
+        if (file.length() != fileEntry.getSize() || file.lastModified() != fileEntry.getLastModified()) return false;
+
+        fileEntry.setMd5(toHex(md5Digest.digest()));
+        fileEntry.setHash(xxHash64.getHexValue());
+        return true;
+    }
+
+    /**
+     * @return True if the file's hashes were found in the cache and set on the entry.
+     */
+    private boolean applyCachedHashes(LocalFileEntry fileEntry)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try (final Cursor cursor = database.query(TABLE_LOCAL_HASH_CACHE, HASH_COLUMNS, CACHE_SELECTION,
+                new String[]{fileEntry.getPath(), String.valueOf(fileEntry.getSize()), String.valueOf(fileEntry.getLastModified())}, null, null, null))
+        {
+            if (!cursor.moveToFirst()) return false;
+
+            fileEntry.setMd5(cursor.getString(0));
+            fileEntry.setHash(cursor.getString(1));
+            return true;
+        }
+    }
+
+    private void cacheHashes(List<LocalFileEntry> hashedEntries)
+    {
+        if (hashedEntries.isEmpty()) return;
+
+        final long cachedAt = System.currentTimeMillis();
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try
+        {
+            final ContentValues values = new ContentValues();
+            for (LocalFileEntry fileEntry : hashedEntries)
+            {
+                values.clear();
+                values.put(COLUMN_PATH, fileEntry.getPath());
+                values.put(COLUMN_SIZE, fileEntry.getSize());
+                values.put(COLUMN_MODIFIED, fileEntry.getLastModified());
+                values.put(COLUMN_MD5, fileEntry.getMd5());
+                values.put(COLUMN_XXH64, fileEntry.getHash());
+                values.put(COLUMN_CACHED_AT, cachedAt);
+
+                database.insertWithOnConflict(TABLE_LOCAL_HASH_CACHE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
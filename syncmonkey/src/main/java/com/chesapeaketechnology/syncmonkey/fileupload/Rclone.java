@@ -6,7 +6,6 @@ import android.net.Uri;
 import android.os.Environment;
 import androidx.preference.PreferenceManager;
 import android.util.Log;
-import android.webkit.MimeTypeMap;
 
 import com.chesapeaketechnology.syncmonkey.Log2File;
 import com.chesapeaketechnology.syncmonkey.R;
@@ -14,6 +13,8 @@ import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
 import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
 import com.chesapeaketechnology.syncmonkey.fileupload.Items.RemoteItem;
 
+import net.grandcentrix.tray.AppPreferences;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,13 +29,26 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A wrapper for calling the rclone native library commands.
  * <p>
  * The class originally came from https://github.com/x0b/rcloneExplorer/blob/master-x0b/app/src/main/java/ca/pkay/rcloneexplorer/Rclone.java
+ * <p>
+ * When the {@link SyncMonkeyConstants#PROPERTY_RCLONE_DAEMON_KEY} preference is enabled, the methods that wait for a result are sent to the shared
+ * {@link RcloneDaemon} instead of starting a new rclone process.  If the daemon can't be reached they fall back to running the command directly.  The
+ * methods that return a {@link Process} always run the command directly because their callers read the process output.
+ * <p>
+ * Directory listings, the list of remotes, and file hashes are kept in the shared {@link RemoteListingCache} for a short time.  The methods that change
+ * a remote path invalidate it when the change is started, so a listing that is read while the change is still running can be stale until it expires.
+ * File hashes are also kept in the persistent {@link RemoteHashCache} for as long as the remote object keeps the same size and modified time.
  *
  * @since 0.0.1
  */
@@ -47,10 +61,17 @@ public class Rclone
     public static final int SERVE_PROTOCOL_HTTP = 1;
     public static final int SERVE_PROTOCOL_WEBDAV = 2;
     public static final int SERVE_PROTOCOL_FTP = 3;
+    public static final String HASH_TYPE_MD5 = "md5";
+    public static final String HASH_TYPE_SHA1 = "sha1";
+
     private Context context;
     private final String rclone;
     private final String rcloneConf;
     private Log2File log2File;
+    private final AppPreferences appPreferences;
+    private final RemoteListingCache listingCache = RemoteListingCache.getInstance();
+    private final RemoteHashCache remoteHashCache;
+    private final BandwidthPolicy bandwidthPolicy;
 
     Rclone(Context context)
     {
@@ -67,6 +88,81 @@ public class Rclone
             rcloneConf = "";
         }
         log2File = new Log2File(context);
+        appPreferences = new AppPreferences(context);
+        remoteHashCache = new RemoteHashCache(context);
+        bandwidthPolicy = new BandwidthPolicy(context);
+    }
+
+    /**
+     * @return True if commands should be sent to the {@link RcloneDaemon}, as set in the user preferences.
+     * @since 0.0.10
+     */
+    public boolean isDaemonEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_RCLONE_DAEMON_KEY, false);
+    }
+
+    /**
+     * Drops the cached listings and hashes for the provided path, its parents, and anything below it.  The remote and the path are passed separately
+     * because a remote name can itself contain a ':', such as {@code azureconfig:container}, so a combined rclone path can't be split reliably.
+     *
+     * @param remote The remote that is changing.
+     * @param path   The path on the remote that is changing, which is keyed the same way with or without leading and trailing slashes.
+     */
+    private void invalidateCache(RemoteItem remote, String path)
+    {
+        listingCache.invalidate(remote.getName(), path);
+        remoteHashCache.invalidate(remote.getName(), path);
+    }
+
+    /**
+     * Drops the cached listings and hashes for the provided remote path, for use after the remote was changed without going through rclone, such as by
+     * the {@link ResumableBlobUploader}.
+     *
+     * @param remoteCloudDefinition The definition of the Remote Cloud.
+     * @param path                  The path on the remote that changed.
+     * @since 0.0.10
+     */
+    void invalidateRemotePath(RemoteItem remoteCloudDefinition, String path)
+    {
+        invalidateCache(remoteCloudDefinition, path);
+    }
+
+    /**
+     * @return The shared cache of listings and hashes, which exposes hit and miss counters.
+     * @since 0.0.10
+     */
+    public RemoteListingCache getListingCache()
+    {
+        return listingCache;
+    }
+
+    /**
+     * @return True if uploads should compare files by checksum instead of modified time, as set in the user preferences.
+     * @since 0.0.10
+     */
+    public boolean isChecksumEnabled()
+    {
+        return appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_CHECKSUM_KEY, false);
+    }
+
+    /**
+     * Sends the provided rc call to the {@link RcloneDaemon} if it is enabled.
+     *
+     * @return The response from the daemon, or null if the daemon is disabled or the call failed, in which case the caller should run the command directly.
+     */
+    private JSONObject callDaemon(String method, JSONObject parameters)
+    {
+        if (!isDaemonEnabled()) return null;
+
+        try
+        {
+            return RcloneDaemon.getInstance(context).call(method, parameters);
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "The rclone daemon call " + method + " failed, running the command directly instead", e);
+            return null;
+        }
     }
 
     private String[] createCommand(String... args)
@@ -141,7 +237,114 @@ public class Rclone
         log2File.log(stringBuilder.toString());
     }
 
+    /**
+     * Lists the contents of a remote directory.  This reads the whole listing into memory, so use
+     * {@link #iterateDirectoryContent(RemoteItem, String, boolean)} for directories that might be very large.
+     *
+     * @return The contents of the directory, or null if it could not be listed.
+     */
     public List<FileItem> getDirectoryContent(RemoteItem remote, String path, boolean startAtRoot)
+    {
+        final String cachePath = path.compareTo("//" + remote.getName()) == 0 ? "" : path;
+        final String cacheKind = startAtRoot ? RemoteListingCache.KIND_ROOT_LISTING : RemoteListingCache.KIND_LISTING;
+        @SuppressWarnings("unchecked") final List<FileItem> cachedFileItems = (List<FileItem>) listingCache.get(cacheKind, remote.getName(), cachePath);
+        if (cachedFileItems != null) return new ArrayList<>(cachedFileItems);
+
+        final List<FileItem> fileItems = getDirectoryContentUncached(remote, path, startAtRoot);
+        if (fileItems != null) listingCache.put(cacheKind, remote.getName(), cachePath, new ArrayList<>(fileItems));
+        return fileItems;
+    }
+
+    private List<FileItem> getDirectoryContentUncached(RemoteItem remote, String path, boolean startAtRoot)
+    {
+        final List<FileItem> daemonFileItems = getDirectoryContentWithDaemon(remote, path, getRemoteAndPath(remote, path, startAtRoot));
+        if (daemonFileItems != null) return daemonFileItems;
+
+        final FileItemIterator fileItemIterator = iterateDirectoryContent(remote, path, startAtRoot);
+        if (fileItemIterator == null) return null;
+
+        final List<FileItem> fileItemList = new ArrayList<>();
+        try
+        {
+            while (fileItemIterator.hasNext())
+            {
+                fileItemList.add(fileItemIterator.next());
+            }
+        } finally
+        {
+            fileItemIterator.close();
+        }
+
+        if (!fileItemIterator.isSuccessful())
+        {
+            logErrorOutput(fileItemIterator.getProcess());
+            return null;
+        }
+        return fileItemList;
+    }
+
+    /**
+     * Lists the contents of a remote directory lazily.  Entries are parsed from the rclone output as they are requested, so the listing is never held in
+     * memory all at once.  The returned iterator must be closed.
+     *
+     * @return An iterator over the contents of the directory, or null if rclone could not be started.
+     * @since 0.0.10
+     */
+    public FileItemIterator iterateDirectoryContent(RemoteItem remote, String path, boolean startAtRoot)
+    {
+        String[] command = createCommandWithOptions("lsjson", getRemoteAndPath(remote, path, startAtRoot));
+
+        try
+        {
+            return new FileItemIterator(Runtime.getRuntime().exec(command), remote, path);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not start the rclone listing", e);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the files directly inside a directory on the remote, along with the hash of each one, which is available from
+     * {@link FileItemIterator#getCurrentHashes()}.  The listing is not recursive, so it is suited to checking a few files
+     * without listing everything below them.  The returned iterator must be closed.
+     *
+     * @param remote   The remote to list.
+     * @param path     The path of the directory, relative to the remote, such as {@code /deviceId/logs}.
+     * @param hashType {@link #HASH_TYPE_MD5} or {@link #HASH_TYPE_SHA1}.
+     * @return An iterator over the files in the directory, or null if rclone could not be started.
+     * @since 0.0.10
+     */
+    public FileItemIterator iterateFilesWithHashes(RemoteItem remote, String path, String hashType)
+    {
+        final String[] command = createCommandWithOptions("lsjson", "--files-only", "--hash", "--hash-type", hashType, remote.getName() + path);
+
+        try
+        {
+            return new FileItemIterator(Runtime.getRuntime().exec(command), remote, path);
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not start the rclone hash listing", e);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the contents of a remote directory as a lazy {@link Stream}.  The stream must be closed, which stops rclone if it was not read to the end.
+     *
+     * @return A stream over the contents of the directory, which is empty if rclone could not be started.
+     * @since 0.0.10
+     */
+    public Stream<FileItem> streamDirectoryContent(RemoteItem remote, String path, boolean startAtRoot)
+    {
+        final FileItemIterator fileItemIterator = iterateDirectoryContent(remote, path, startAtRoot);
+        if (fileItemIterator == null) return Stream.empty();
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(fileItemIterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(fileItemIterator::close);
+    }
+
+    private String getRemoteAndPath(RemoteItem remote, String path, boolean startAtRoot)
     {
         String remoteAndPath = remote.getName() + ":";
         if (startAtRoot)
@@ -156,67 +359,39 @@ public class Rclone
         {
             remoteAndPath += path;
         }
+        return remoteAndPath;
+    }
 
-        String[] command = createCommandWithOptions("lsjson", remoteAndPath);
-
-        JSONArray results;
-        Process process;
+    /**
+     * Lists the contents of a remote directory with an {@code operations/list} call on the {@link RcloneDaemon}.  Malformed entries are skipped.
+     *
+     * @return The contents of the directory, or null if the daemon is disabled or the call failed.
+     */
+    private List<FileItem> getDirectoryContentWithDaemon(RemoteItem remote, String path, String remoteAndPath)
+    {
+        final JSONArray results;
         try
         {
-            process = Runtime.getRuntime().exec(command);
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            StringBuilder output = new StringBuilder();
-            while ((line = reader.readLine()) != null)
-            {
-                output.append(line);
-            }
-
-            process.waitFor();
-            if (process.exitValue() != 0)
-            {
-                logErrorOutput(process);
-                return null;
-            }
-
-            results = new JSONArray(output.toString());
-        } catch (IOException | InterruptedException | JSONException e)
+            final JSONObject daemonResponse = callDaemon("operations/list", new JSONObject().put("fs", remoteAndPath).put("remote", ""));
+            if (daemonResponse == null) return null;
+            results = daemonResponse.getJSONArray("list");
+        } catch (JSONException e)
         {
-            e.printStackTrace();
+            Log.w(LOG_TAG, "The rclone daemon returned an invalid listing, running the command directly instead", e);
             return null;
         }
 
-        List<FileItem> fileItemList = new ArrayList<>();
+        final List<FileItem> fileItemList = new ArrayList<>(results.length());
         for (int i = 0; i < results.length(); i++)
         {
             try
             {
-                JSONObject jsonObject = results.getJSONObject(i);
-                String filePath = (path.compareTo("//" + remote.getName()) == 0) ? "" : path + "/";
-                filePath += jsonObject.getString("Path");
-                String fileName = jsonObject.getString("Name");
-                long fileSize = jsonObject.getLong("Size");
-                String fileModTime = jsonObject.getString("ModTime");
-                boolean fileIsDir = jsonObject.getBoolean("IsDir");
-                String mimeType = jsonObject.getString("MimeType");
-
-                if (remote.isCrypt())
-                {
-                    String extension = fileName.substring(fileName.lastIndexOf(".") + 1);
-                    String type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-                    if (type != null)
-                    {
-                        mimeType = type;
-                    }
-                }
-
-                FileItem fileItem = new FileItem(remote, filePath, fileName, fileSize, fileModTime, mimeType, fileIsDir);
-                fileItemList.add(fileItem);
+                final JSONObject jsonObject = results.getJSONObject(i);
+                fileItemList.add(FileItemIterator.createFileItem(remote, path, jsonObject.getString("Path"), jsonObject.getString("Name"),
+                        jsonObject.getLong("Size"), jsonObject.getString("ModTime"), jsonObject.optString("MimeType"), jsonObject.getBoolean("IsDir")));
             } catch (JSONException e)
             {
-                e.printStackTrace();
-                return null;
+                Log.w(LOG_TAG, "Skipping a malformed entry in the rclone daemon listing", e);
             }
         }
         return fileItemList;
@@ -224,39 +399,23 @@ public class Rclone
 
     public List<RemoteItem> getRemotes()
     {
-        String[] command = createCommand("config", "dump");
-        StringBuilder output = new StringBuilder();
-        Process process;
-        JSONObject remotesJSON;
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-        //Set<String> pinnedRemotes = sharedPreferences.getStringSet(context.getString(R.string.shared_preferences_pinned_remotes), new HashSet<String>());
-        //Set<String> favoriteRemotes = sharedPreferences.getStringSet(context.getString(R.string.shared_preferences_drawer_pinned_remotes), new HashSet<String>());
+        @SuppressWarnings("unchecked") final List<RemoteItem> cachedRemotes = (List<RemoteItem>) listingCache.get(RemoteListingCache.KIND_REMOTES, "", "");
+        if (cachedRemotes != null) return new ArrayList<>(cachedRemotes);
 
-        try
-        {
-            process = Runtime.getRuntime().exec(command);
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null)
-            {
-                output.append(line);
-            }
+        final List<RemoteItem> remotes = getRemotesUncached();
+        if (!remotes.isEmpty()) listingCache.put(RemoteListingCache.KIND_REMOTES, "", "", new ArrayList<>(remotes));
+        return remotes;
+    }
 
-            process.waitFor();
-            if (process.exitValue() != 0)
-            {
-                // TODO Toasty.error(context, context.getString(R.string.error_getting_remotes), Toast.LENGTH_SHORT, true).show();
-                logErrorOutput(process);
-                return new ArrayList<>();
-            }
+    private List<RemoteItem> getRemotesUncached()
+    {
+        JSONObject remotesJSON = callDaemon("config/dump", null);
+        if (remotesJSON == null) remotesJSON = dumpConfig();
+        if (remotesJSON == null) return new ArrayList<>();
 
-            remotesJSON = new JSONObject(output.toString());
-        } catch (IOException | InterruptedException | JSONException e)
-        {
-            e.printStackTrace();
-            return new ArrayList<>();
-        }
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        //Set<String> pinnedRemotes = sharedPreferences.getStringSet(context.getString(R.string.shared_preferences_pinned_remotes), new HashSet<String>());
+        //Set<String> favoriteRemotes = sharedPreferences.getStringSet(context.getString(R.string.shared_preferences_drawer_pinned_remotes), new HashSet<String>());
 
         List<RemoteItem> remoteItemList = new ArrayList<>();
         Iterator<String> iterator = remotesJSON.keys();
@@ -302,6 +461,44 @@ public class Rclone
         return remoteItemList;
     }
 
+    /**
+     * Runs {@code rclone config dump}.
+     *
+     * @return The remote definitions from the rclone config file, or null if they could not be read.
+     */
+    private JSONObject dumpConfig()
+    {
+        String[] command = createCommand("config", "dump");
+        StringBuilder output = new StringBuilder();
+        Process process;
+
+        try
+        {
+            process = Runtime.getRuntime().exec(command);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                output.append(line);
+            }
+
+            process.waitFor();
+            if (process.exitValue() != 0)
+            {
+                // TODO Toasty.error(context, context.getString(R.string.error_getting_remotes), Toast.LENGTH_SHORT, true).show();
+                logErrorOutput(process);
+                return null;
+            }
+
+            return new JSONObject(output.toString());
+        } catch (IOException | InterruptedException | JSONException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     private RemoteItem getRemoteType(JSONObject remotesJSON, RemoteItem remoteItem, String remoteName)
     {
         Iterator<String> iterator = remotesJSON.keys();
@@ -372,6 +569,8 @@ public class Rclone
 
     public Process configCreate(List<String> options)
     {
+        listingCache.clear();
+
         String[] command = createCommand("config", "create");
         String[] opt = options.toArray(new String[0]);
         String[] commandWithOptions = new String[command.length + options.size()];
@@ -392,6 +591,8 @@ public class Rclone
 
     public void deleteRemote(String remoteName)
     {
+        listingCache.clear();
+
         String[] command = createCommandWithOptions("config", "delete", remoteName);
         Process process;
 
@@ -407,6 +608,15 @@ public class Rclone
 
     public String obscure(String pass)
     {
+        try
+        {
+            final JSONObject daemonResponse = callDaemon("core/obscure", new JSONObject().put("clear", pass));
+            if (daemonResponse != null && daemonResponse.has("obscured")) return daemonResponse.getString("obscured");
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "The rclone daemon returned an invalid obscure response, running the command directly instead", e);
+        }
+
         String[] command = createCommand("obscure", pass);
 
         Process process;
@@ -566,6 +776,7 @@ public class Rclone
     public Process uploadFile(RemoteItem remoteCloudDefinition, String destinationPath, String fileOrFolderToUpload)
     {
         final String fullDestinationPath = remoteCloudDefinition.getName() + destinationPath;
+        invalidateCache(remoteCloudDefinition, destinationPath);
 
         final String[] command = createCommandWithOptions("copy", fileOrFolderToUpload, fullDestinationPath, "--transfers", "1", "--stats=1s", "--stats-log-level", "NOTICE");
 
@@ -581,6 +792,190 @@ public class Rclone
         }
     }
 
+    /**
+     * Upload only the files listed in the provided files-from list to the server specified by the {@code remoteItem}.
+     * <p>
+     * The {@code --no-traverse} flag is used so that rclone checks each listed file individually instead of listing the entire destination directory, which
+     * is much cheaper when only a handful of files have changed.
+     *
+     * @param remoteCloudDefinition The definition of the Remote Cloud.
+     * @param destinationPath       The destination path to upload the file(s) to on the remote server.
+     * @param sourceDirectory       The local directory that the paths in the files-from list are relative to.
+     * @param filesFromList         A file containing the relative path of each file to upload, one per line.
+     * @return The process that the rclone command is being executed on.
+     * @since 0.0.10
+     */
+    public Process uploadFiles(RemoteItem remoteCloudDefinition, String destinationPath, String sourceDirectory, File filesFromList)
+    {
+        return uploadFiles(remoteCloudDefinition, destinationPath, sourceDirectory, filesFromList, 1);
+    }
+
+    /**
+     * Upload only the files listed in the provided files-from list, transferring up to {@code transfers} files at the same time.
+     * <p>
+     * Symbolic links in the source directory are followed, which allows the source to be a staging tree of links to files that live in different
+     * directories.
+     * <p>
+     * rclone logs in JSON so that its output can be read with an {@link RcloneOutputParser}.  When the
+     * {@link SyncMonkeyConstants#PROPERTY_CHECKSUM_KEY} preference is enabled, rclone compares files by size and MD5 instead of size and modified time.
+     * The upload is throttled by the {@link BandwidthPolicy} schedule for the network the device is on when the upload starts.
+     *
+     * @param remoteCloudDefinition The definition of the Remote Cloud.
+     * @param destinationPath       The destination path to upload the file(s) to on the remote server.
+     * @param sourceDirectory       The local directory that the paths in the files-from list are relative to.
+     * @param filesFromList         A file containing the relative path of each file to upload, one per line.
+     * @param transfers             The number of file transfers to run in parallel.
+     * @return The process that the rclone command is being executed on.
+     * @since 0.0.10
+     */
+    public Process uploadFiles(RemoteItem remoteCloudDefinition, String destinationPath, String sourceDirectory, File filesFromList, int transfers)
+    {
+        return uploadFiles(remoteCloudDefinition, destinationPath, sourceDirectory, filesFromList, transfers, Collections.emptyList());
+    }
+
+    /**
+     * Upload only the files listed in the provided files-from list, setting the provided HTTP headers on every uploaded object.
+     *
+     * @param remoteCloudDefinition The definition of the Remote Cloud.
+     * @param destinationPath       The destination path to upload the file(s) to on the remote server.
+     * @param sourceDirectory       The local directory that the paths in the files-from list are relative to.
+     * @param filesFromList         A file containing the relative path of each file to upload, one per line.
+     * @param transfers             The number of file transfers to run in parallel.
+     * @param uploadHeaders         Headers in the form {@code Name: value}, such as {@link CompressionStage#CONTENT_ENCODING_HEADER}.
+     * @return The process that the rclone command is being executed on.
+     * @since 0.0.10
+     */
+    public Process uploadFiles(RemoteItem remoteCloudDefinition, String destinationPath, String sourceDirectory, File filesFromList, int transfers,
+                               List<String> uploadHeaders)
+    {
+        final String fullDestinationPath = remoteCloudDefinition.getName() + destinationPath;
+        invalidateCache(remoteCloudDefinition, destinationPath);
+
+        final List<String> arguments = new ArrayList<>(Arrays.asList("copy", sourceDirectory, fullDestinationPath, "--files-from",
+                filesFromList.getAbsolutePath(), "--no-traverse", "--copy-links", "--transfers", String.valueOf(Math.max(1, transfers)), "--use-json-log",
+                "--log-level", "INFO", "--stats=1s", "--stats-log-level", "NOTICE"));
+        if (isChecksumEnabled()) arguments.add("--checksum");
+        final String bandwidthTimetable = bandwidthPolicy.getTimetable();
+        if (bandwidthTimetable != null)
+        {
+            arguments.add("--bwlimit");
+            arguments.add(bandwidthTimetable);
+        }
+        for (String uploadHeader : uploadHeaders)
+        {
+            arguments.add("--header-upload");
+            arguments.add(uploadHeader);
+        }
+
+        final String[] command = createCommandWithOptions(arguments.toArray(new String[0]));
+
+        Log.d(LOG_TAG, "Calling the rclone command: " + Arrays.toString(command));
+
+        try
+        {
+            return Runtime.getRuntime().exec(command);
+        } catch (Exception e)
+        {
+            Log.e(LOG_TAG, "Exception when calling the rclone command", e);
+            return null;
+        }
+    }
+
+    /**
+     * Upload only the files listed in the provided files-from list using a {@code sync/copy} job on the {@link RcloneDaemon}.  This is the daemon
+     * equivalent of {@link #uploadFiles(RemoteItem, String, String, File, int)}, and the job is polled until it finishes.  The daemon's bandwidth limit is
+     * kept in line with the {@link BandwidthPolicy} while the job runs, so it follows both the schedule and changes in the network type.
+     *
+     * @param remoteCloudDefinition The definition of the Remote Cloud.
+     * @param destinationPath       The destination path to upload the file(s) to on the remote server.
+     * @param sourceDirectory       The local directory that the paths in the files-from list are relative to.
+     * @param filesFromList         A file containing the relative path of each file to upload, one per line.
+     * @param transfers             The number of file transfers to run in parallel.
+     * @param uploadHeaders         Headers in the form {@code Name: value} to set on every uploaded object.
+     * @param errorListener         Receives the error message if the upload fails.
+     * @return True if the upload succeeded, false if it failed, or null if the daemon is disabled or could not be started, in which case the caller should
+     * fall back to {@link #uploadFiles(RemoteItem, String, String, File, int, List)}.
+     * @since 0.0.10
+     */
+    public Boolean uploadFilesWithDaemon(RemoteItem remoteCloudDefinition, String destinationPath, String sourceDirectory, File filesFromList, int transfers,
+                                         List<String> uploadHeaders, RcloneOutputListener errorListener)
+    {
+        if (!isDaemonEnabled()) return null;
+
+        invalidateCache(remoteCloudDefinition, destinationPath);
+
+        final RcloneDaemon daemon = RcloneDaemon.getInstance(context);
+        try
+        {
+            daemon.start();
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not start the rclone daemon for the upload", e);
+            return null;
+        }
+
+        final String statsGroup = "upload-" + System.currentTimeMillis();
+        try
+        {
+            final JSONArray uploadHeadersJson = new JSONArray();
+            for (String uploadHeader : uploadHeaders)
+            {
+                final int separatorIndex = uploadHeader.indexOf(':');
+                uploadHeadersJson.put(new JSONObject().put("Key", uploadHeader.substring(0, separatorIndex).trim())
+                        .put("Value", uploadHeader.substring(separatorIndex + 1).trim()));
+            }
+
+            final JSONObject parameters = new JSONObject()
+                    // The local backend option is the equivalent of --copy-links, so the links in a staging tree are followed
+                    .put("srcFs", ":local,copy_links:" + sourceDirectory)
+                    .put("dstFs", remoteCloudDefinition.getName() + destinationPath)
+                    .put("_group", statsGroup)
+                    .put("_filter", new JSONObject().put("FilesFrom", new JSONArray().put(filesFromList.getAbsolutePath())))
+                    .put("_config", new JSONObject().put("Transfers", Math.max(1, transfers)).put("NoTraverse", true).put("CheckSum", isChecksumEnabled())
+                            .put("UploadHeaders", uploadHeadersJson));
+
+            final String[] appliedRate = {null};
+            daemon.callAsync("sync/copy", parameters, () -> {
+                final String rate = bandwidthPolicy.getCurrentRate();
+                if (rate.equals(appliedRate[0])) return;
+                try
+                {
+                    daemon.setBandwidthLimit(rate);
+                    appliedRate[0] = rate;
+                    if (Log.isLoggable(LOG_TAG, Log.INFO)) Log.i(LOG_TAG, "Set the rclone daemon bandwidth limit to " + rate);
+                } catch (IOException e)
+                {
+                    Log.w(LOG_TAG, "Could not set the rclone daemon bandwidth limit to " + rate, e);
+                }
+            });
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "rclone daemon upload stats: " + TransferStats.fromJson(daemon.getStats(statsGroup)));
+            return true;
+        } catch (IOException | JSONException e)
+        {
+            Log.e(LOG_TAG, "The rclone daemon upload failed", e);
+            errorListener.onError(null, e.getMessage());
+            return false;
+        } finally
+        {
+            clearDaemonBandwidthLimit(daemon);
+        }
+    }
+
+    /**
+     * The daemon's bandwidth limit applies to every command sent to it, so it is removed after an upload to keep listings and other commands unthrottled.
+     */
+    private static void clearDaemonBandwidthLimit(RcloneDaemon daemon)
+    {
+        try
+        {
+            daemon.setBandwidthLimit(BandwidthPolicy.RATE_OFF);
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not remove the rclone daemon bandwidth limit", e);
+        }
+    }
+
     public Process deleteItems(RemoteItem remote, FileItem deleteItem)
     {
         String[] command;
@@ -597,6 +992,7 @@ public class Rclone
         }
 
         filePath = remote.getName() + ":" + localRemotePath + deleteItem.getPath();
+        invalidateCache(remote, deleteItem.getPath());
         if (deleteItem.isDir())
         {
             command = createCommandWithOptions("purge", filePath);
@@ -628,6 +1024,19 @@ public class Rclone
         }
 
         String newDir = remote.getName() + ":" + localRemotePath + path;
+        invalidateCache(remote, path);
+
+        try
+        {
+            if (callDaemon("operations/mkdir", new JSONObject().put("fs", remote.getName() + ":" + localRemotePath).put("remote", path)) != null)
+            {
+                return true;
+            }
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "Could not build the rclone daemon mkdir request", e);
+        }
+
         String[] command = createCommandWithOptions("mkdir", newDir);
         try
         {
@@ -665,6 +1074,8 @@ public class Rclone
 
         oldFilePath = remoteName + ":" + localRemotePath + moveItem.getPath();
         newFilePath = (newLocation.compareTo("//" + remoteName) == 0) ? remoteName + ":" + localRemotePath + moveItem.getName() : remoteName + ":" + localRemotePath + newLocation + "/" + moveItem.getName();
+        invalidateCache(remote, moveItem.getPath());
+        invalidateCache(remote, (newLocation.compareTo("//" + remoteName) == 0) ? moveItem.getName() : newLocation + "/" + moveItem.getName());
         command = createCommandWithOptions("moveto", oldFilePath, newFilePath);
         try
         {
@@ -692,6 +1103,21 @@ public class Rclone
 
         String oldFilePath = remoteName + ":" + localRemotePath + oldFile;
         String newFilePath = remoteName + ":" + localRemotePath + newFile;
+        invalidateCache(remote, oldFile);
+        invalidateCache(remote, newFile);
+
+        try
+        {
+            final String fs = remoteName + ":" + localRemotePath;
+            if (callDaemon("operations/movefile", new JSONObject().put("srcFs", fs).put("srcRemote", oldFile).put("dstFs", fs).put("dstRemote", newFile)) != null)
+            {
+                return true;
+            }
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "Could not build the rclone daemon movefile request", e);
+        }
+
         String[] command = createCommandWithOptions("moveto", oldFilePath, newFilePath);
         try
         {
@@ -710,8 +1136,65 @@ public class Rclone
         return true;
     }
 
+    /**
+     * Copies a file to another path on the same remote.  Backends that support it, such as Azure Blob Storage, copy the file on the server side, so the
+     * content is not sent from the device again.
+     *
+     * @param remote          The remote that both files are on.
+     * @param sourcePath      The path of the existing file, relative to the remote, such as {@code /deviceId/sharedfiles/report.pdf}.
+     * @param destinationPath The path to copy the file to, relative to the remote.
+     * @return True if the file was copied.
+     * @since 0.0.10
+     */
+    public boolean copyFile(RemoteItem remote, String sourcePath, String destinationPath)
+    {
+        invalidateCache(remote, destinationPath);
+
+        try
+        {
+            // The daemon takes the paths relative to the fs, without the leading slash
+            if (callDaemon("operations/copyfile", new JSONObject().put("srcFs", remote.getName()).put("srcRemote", sourcePath.replaceFirst("^/+", ""))
+                    .put("dstFs", remote.getName()).put("dstRemote", destinationPath.replaceFirst("^/+", ""))) != null)
+            {
+                return true;
+            }
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "Could not build the rclone daemon copyfile request", e);
+        }
+
+        final String[] command = createCommandWithOptions("copyto", remote.getName() + sourcePath, remote.getName() + destinationPath);
+        try
+        {
+            final Process process = Runtime.getRuntime().exec(command);
+            process.waitFor();
+            if (process.exitValue() != 0)
+            {
+                logErrorOutput(process);
+                return false;
+            }
+        } catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Could not copy " + sourcePath + " to " + destinationPath, e);
+            return false;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
     public boolean emptyTrashCan(String remote)
     {
+        try
+        {
+            if (callDaemon("operations/cleanup", new JSONObject().put("fs", remote + ":")) != null) return true;
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "Could not build the rclone daemon cleanup request", e);
+        }
+
         String[] command = createCommandWithOptions("cleanup", remote + ":");
         Process process = null;
 
@@ -731,10 +1214,22 @@ public class Rclone
     {
         String linkPath = remote.getName() + ":";
         linkPath += (remote.isRemoteType(RemoteItem.LOCAL)) ? Environment.getExternalStorageDirectory().getAbsolutePath() + "/" : "";
+        final String linkFs = linkPath;
         if (!filePath.equals("//" + remote.getName()))
         {
             linkPath += filePath;
         }
+
+        try
+        {
+            final JSONObject daemonResponse = callDaemon("operations/publiclink",
+                    new JSONObject().put("fs", linkFs).put("remote", filePath.equals("//" + remote.getName()) ? "" : filePath));
+            if (daemonResponse != null && daemonResponse.has("url")) return daemonResponse.getString("url");
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "The rclone daemon returned an invalid public link response, running the command directly instead", e);
+        }
+
         String[] command = createCommandWithOptions("link", linkPath);
         Process process = null;
 
@@ -762,6 +1257,24 @@ public class Rclone
     }
 
     public String calculateMD5(RemoteItem remote, FileItem fileItem)
+    {
+        final String cachedHash = (String) listingCache.get(RemoteListingCache.KIND_MD5, remote.getName(), fileItem.getPath());
+        if (cachedHash != null) return cachedHash;
+
+        final String persistedHash = remoteHashCache.getHash(remote.getName(), fileItem.getPath(), HASH_TYPE_MD5, fileItem.getSize(), fileItem.getModTime());
+        if (persistedHash != null)
+        {
+            listingCache.put(RemoteListingCache.KIND_MD5, remote.getName(), fileItem.getPath(), persistedHash);
+            return persistedHash;
+        }
+
+        final String hash = calculateMD5Uncached(remote, fileItem);
+        if (!context.getString(R.string.hash_error).equals(hash)) listingCache.put(RemoteListingCache.KIND_MD5, remote.getName(), fileItem.getPath(), hash);
+        if (isCacheableHash(hash)) remoteHashCache.putHash(remote.getName(), fileItem.getPath(), HASH_TYPE_MD5, fileItem.getSize(), fileItem.getModTime(), hash);
+        return hash;
+    }
+
+    private String calculateMD5Uncached(RemoteItem remote, FileItem fileItem)
     {
         String localRemotePath;
 
@@ -774,6 +1287,10 @@ public class Rclone
         }
 
         String remoteAndPath = remote.getName() + ":" + localRemotePath + fileItem.getName();
+
+        final String daemonHash = hashWithDaemon(remoteAndPath, HASH_TYPE_MD5);
+        if (daemonHash != null) return daemonHash;
+
         String[] command = createCommandWithOptions("md5sum", remoteAndPath);
         Process process;
         try
@@ -803,6 +1320,24 @@ public class Rclone
     }
 
     public String calculateSHA1(RemoteItem remote, FileItem fileItem)
+    {
+        final String cachedHash = (String) listingCache.get(RemoteListingCache.KIND_SHA1, remote.getName(), fileItem.getPath());
+        if (cachedHash != null) return cachedHash;
+
+        final String persistedHash = remoteHashCache.getHash(remote.getName(), fileItem.getPath(), HASH_TYPE_SHA1, fileItem.getSize(), fileItem.getModTime());
+        if (persistedHash != null)
+        {
+            listingCache.put(RemoteListingCache.KIND_SHA1, remote.getName(), fileItem.getPath(), persistedHash);
+            return persistedHash;
+        }
+
+        final String hash = calculateSHA1Uncached(remote, fileItem);
+        if (!context.getString(R.string.hash_error).equals(hash)) listingCache.put(RemoteListingCache.KIND_SHA1, remote.getName(), fileItem.getPath(), hash);
+        if (isCacheableHash(hash)) remoteHashCache.putHash(remote.getName(), fileItem.getPath(), HASH_TYPE_SHA1, fileItem.getSize(), fileItem.getModTime(), hash);
+        return hash;
+    }
+
+    private String calculateSHA1Uncached(RemoteItem remote, FileItem fileItem)
     {
         String localRemotePath;
 
@@ -815,6 +1350,10 @@ public class Rclone
         }
 
         String remoteAndPath = remote.getName() + ":" + localRemotePath + fileItem.getName();
+
+        final String daemonHash = hashWithDaemon(remoteAndPath, HASH_TYPE_SHA1);
+        if (daemonHash != null) return daemonHash;
+
         String[] command = createCommandWithOptions("sha1sum", remoteAndPath);
         Process process;
         try
@@ -843,8 +1382,40 @@ public class Rclone
         }
     }
 
+    private boolean isCacheableHash(String hash)
+    {
+        return hash != null && !hash.equals(context.getString(R.string.hash_error)) && !hash.equals(context.getString(R.string.hash_unsupported));
+    }
+
+    /**
+     * Calculates the hash of a single remote file with the {@link RcloneDaemon}.
+     *
+     * @return The hash, or null if it could not be calculated by the daemon.
+     */
+    private String hashWithDaemon(String remoteAndPath, String hashType)
+    {
+        try
+        {
+            final JSONObject daemonResponse = callDaemon("operations/hashsum", new JSONObject().put("fs", remoteAndPath).put("hashType", hashType));
+            if (daemonResponse == null) return null;
+
+            final JSONArray hashSums = daemonResponse.getJSONArray("hashsum");
+            if (hashSums.length() == 0) return null;
+
+            final String hash = hashSums.getString(0).split("\\s+")[0];
+            return hash.trim().isEmpty() ? context.getString(R.string.hash_unsupported) : hash;
+        } catch (JSONException e)
+        {
+            Log.w(LOG_TAG, "The rclone daemon returned an invalid hashsum response, running the command directly instead", e);
+            return null;
+        }
+    }
+
     public String getRcloneVersion()
     {
+        final JSONObject daemonResponse = callDaemon("core/version", null);
+        if (daemonResponse != null && daemonResponse.has("version")) return daemonResponse.optString("version");
+
         String[] command = createCommand("--version");
         ArrayList<String> result = new ArrayList<>();
         try
@@ -895,6 +1466,8 @@ public class Rclone
 
     public Boolean decryptConfig(String password)
     {
+        listingCache.clear();
+
         String[] command = createCommand("--ask-password=false", "config", "show");
         String[] environmentalVars = {"RCLONE_CONFIG_PASS=" + password};
         Process process;
@@ -987,6 +1560,8 @@ public class Rclone
 
     public boolean copyConfigFile(Uri uri) throws IOException
     {
+        listingCache.clear();
+
         String appsFileDir = context.getFilesDir().getPath();
         InputStream inputStream = context.getContentResolver().openInputStream(uri);
         File tempFile = new File(appsFileDir, "rclone.conf-tmp");
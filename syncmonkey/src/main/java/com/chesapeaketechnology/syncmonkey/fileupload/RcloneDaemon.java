@@ -0,0 +1,499 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived {@code rclone rcd} remote control daemon that is shared by everything in the current process.  Starting one daemon and talking to it over
+ * its HTTP API avoids loading the rclone binary and its config file for every command.
+ * <p>
+ * The daemon only listens on the loopback interface and is protected by a random user name and password that are generated each time it is started.  It
+ * is started lazily on the first call, restarted if a call can't connect to it and it is no longer responding, and shut down after it has been idle for
+ * {@link #IDLE_TIMEOUT_MILLIS}.  The daemon is never considered idle while a call is waiting on a response, however long that call takes.
+ *
+ * @since 0.0.10
+ */
+public class RcloneDaemon
+{
+    private static final String LOG_TAG = RcloneDaemon.class.getSimpleName();
+
+    private static final String LOOPBACK_ADDRESS = "127.0.0.1";
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long STARTUP_TIMEOUT_MILLIS = 15_000;
+    private static final long STARTUP_POLL_MILLIS = 250;
+    private static final long JOB_POLL_MILLIS = 1_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+    private static final int MAX_START_ATTEMPTS = 3;
+
+    private static RcloneDaemon instance;
+
+    private final String rcloneBinary;
+    private final String rcloneConf;
+    private final String cachePath;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ScheduledExecutorService idleExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, LOG_TAG + "-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Process process;
+    private String baseUrl;
+    private String authorizationHeader;
+    private ScheduledFuture<?> idleShutdownFuture;
+    private int inFlightCallCount;
+
+    /**
+     * @return The single daemon for this process.
+     */
+    public static synchronized RcloneDaemon getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new RcloneDaemon(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private RcloneDaemon(Context context)
+    {
+        rcloneBinary = context.getApplicationInfo().nativeLibraryDir + "/librclone.so";
+        rcloneConf = new File(context.getFilesDir(), SyncMonkeyConstants.RCLONE_CONFIG_FILE).getAbsolutePath();
+        cachePath = context.getCacheDir().getAbsolutePath();
+    }
+
+    /**
+     * Calls the provided rc method and waits for the response.
+     *
+     * @param method     The rc method to call, such as {@code operations/list}.
+     * @param parameters The parameters for the method, or null if there are none.
+     * @return The JSON response from the daemon.
+     * @throws IOException If the daemon could not be started, or if the call failed.
+     */
+    public JSONObject call(String method, JSONObject parameters) throws IOException
+    {
+        synchronized (this)
+        {
+            inFlightCallCount++;
+        }
+
+        try
+        {
+            final String url;
+            final String authorization;
+            synchronized (this)
+            {
+                start();
+                url = baseUrl + method;
+                authorization = authorizationHeader;
+            }
+
+            try
+            {
+                return post(url, authorization, parameters);
+            } catch (ConnectException e)
+            {
+                // The daemon stopped responding, or another call already restarted it on a new port, so only restart it if it is not healthy and try
+                // once more
+                synchronized (this)
+                {
+                    if (!isHealthy())
+                    {
+                        Log.w(LOG_TAG, "Could not connect to the rclone daemon, restarting it", e);
+                        stopProcess();
+                        start();
+                    }
+                    return post(baseUrl + method, authorizationHeader, parameters);
+                }
+            }
+        } finally
+        {
+            synchronized (this)
+            {
+                inFlightCallCount--;
+                scheduleIdleShutdown();
+            }
+        }
+    }
+
+    /**
+     * Starts the provided rc method as a background job on the daemon, and then polls the job until it finishes.  This keeps long running operations such
+     * as {@code sync/copy} from being bound to the HTTP read timeout.  If the calling thread is interrupted the job is stopped.
+     *
+     * @param method     The rc method to call, such as {@code sync/copy}.
+     * @param parameters The parameters for the method, or null if there are none.
+     * @return The output of the job.
+     * @throws IOException If the job could not be started, or if it finished with an error.
+     */
+    public JSONObject callAsync(String method, JSONObject parameters) throws IOException
+    {
+        return callAsync(method, parameters, null);
+    }
+
+    /**
+     * Starts the provided rc method as a background job on the daemon, and then polls the job until it finishes, running the provided callback before each
+     * poll so that settings such as the bandwidth limit can be adjusted while the job runs.
+     *
+     * @param method     The rc method to call, such as {@code sync/copy}.
+     * @param parameters The parameters for the method, or null if there are none.
+     * @param onPoll     Run on the calling thread before each poll, or null.
+     * @return The output of the job.
+     * @throws IOException If the job could not be started, or if it finished with an error.
+     */
+    public JSONObject callAsync(String method, JSONObject parameters, Runnable onPoll) throws IOException
+    {
+        final long jobId;
+        try
+        {
+            final JSONObject asyncParameters = parameters == null ? new JSONObject() : new JSONObject(parameters.toString());
+            asyncParameters.put("_async", true);
+            jobId = call(method, asyncParameters).getLong("jobid");
+        } catch (JSONException e)
+        {
+            throw new IOException("Could not start the rclone job " + method, e);
+        }
+
+        try
+        {
+            final JSONObject statusParameters = new JSONObject().put("jobid", jobId);
+            while (true)
+            {
+                if (onPoll != null) onPoll.run();
+
+                final JSONObject status = call("job/status", statusParameters);
+                if (status.optBoolean("finished"))
+                {
+                    if (!status.optBoolean("success"))
+                    {
+                        throw new IOException("The rclone job " + method + " failed: " + status.optString("error"));
+                    }
+                    return status.optJSONObject("output") == null ? new JSONObject() : status.getJSONObject("output");
+                }
+
+                Thread.sleep(JOB_POLL_MILLIS);
+            }
+        } catch (InterruptedException e)
+        {
+            Log.w(LOG_TAG, "Interrupted while waiting for rclone job " + jobId + ", stopping it");
+            stopJob(jobId);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the rclone job " + method, e);
+        } catch (JSONException e)
+        {
+            throw new IOException("Could not read the status of the rclone job " + method, e);
+        }
+    }
+
+    /**
+     * Sets the bandwidth limit for every transfer on the daemon.
+     *
+     * @param rate A rate in the {@code upload:download} form that {@code --bwlimit} takes, or {@link BandwidthPolicy#RATE_OFF} to remove the limit.
+     * @throws IOException If the limit could not be set.
+     */
+    public void setBandwidthLimit(String rate) throws IOException
+    {
+        try
+        {
+            call("core/bwlimit", new JSONObject().put("rate", rate));
+        } catch (JSONException e)
+        {
+            throw new IOException("Could not build the core/bwlimit request", e);
+        }
+    }
+
+    /**
+     * @param group The stats group to get the stats for, or null for the global stats.
+     * @return The current transfer stats from {@code core/stats}.
+     * @throws IOException If the stats could not be retrieved.
+     */
+    public JSONObject getStats(String group) throws IOException
+    {
+        try
+        {
+            return call("core/stats", group == null ? null : new JSONObject().put("group", group));
+        } catch (JSONException e)
+        {
+            throw new IOException("Could not build the core/stats request", e);
+        }
+    }
+
+    /**
+     * @return True if the daemon is running and responding to requests.
+     */
+    public synchronized boolean isHealthy()
+    {
+        if (process == null || !isAlive(process)) return false;
+
+        try
+        {
+            post(baseUrl + "rc/noop", authorizationHeader, null);
+            return true;
+        } catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Stops the daemon.  It is started again automatically on the next call.
+     */
+    public synchronized void shutdown()
+    {
+        if (process == null) return;
+
+        Log.i(LOG_TAG, "Shutting down the rclone daemon");
+        try
+        {
+            post(baseUrl + "core/quit", authorizationHeader, null);
+        } catch (IOException e)
+        {
+            Log.d(LOG_TAG, "The rclone daemon did not accept the quit request, destroying it", e);
+        }
+        stopProcess();
+    }
+
+    /**
+     * Starts the daemon if it is not already running.  Whether a running daemon still responds is not checked here, so a call doesn't cost an extra round
+     * trip, but only once a call fails to connect to it.
+     *
+     * @throws IOException If the daemon could not be started.
+     */
+    public synchronized void start() throws IOException
+    {
+        if (process != null && isAlive(process)) return;
+
+        stopProcess();
+
+        IOException lastException = null;
+        for (int attempt = 1; attempt <= MAX_START_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                startProcess();
+                return;
+            } catch (IOException e)
+            {
+                Log.w(LOG_TAG, "Attempt " + attempt + " to start the rclone daemon failed", e);
+                lastException = e;
+                stopProcess();
+            }
+        }
+
+        throw new IOException("Could not start the rclone daemon", lastException);
+    }
+
+    private void startProcess() throws IOException
+    {
+        final int port = findFreePort();
+        final String user = generateSecret();
+        final String password = generateSecret();
+
+        final String[] command = {rcloneBinary, "rcd",
+                "--rc-addr", LOOPBACK_ADDRESS + ":" + port,
+                "--rc-user", user,
+                "--rc-pass", password,
+                "--config", rcloneConf,
+                "--cache-dir", cachePath};
+
+        Log.i(LOG_TAG, "Starting the rclone daemon on port " + port);
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        drainOutput(process);
+
+        baseUrl = "http://" + LOOPBACK_ADDRESS + ":" + port + "/";
+        authorizationHeader = "Basic " + Base64.encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+
+        final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (!isAlive(process)) throw new IOException("The rclone daemon exited with code " + process.exitValue());
+
+            try
+            {
+                post(baseUrl + "rc/noop", authorizationHeader, null);
+                return;
+            } catch (IOException e)
+            {
+                try
+                {
+                    Thread.sleep(STARTUP_POLL_MILLIS);
+                } catch (InterruptedException interruptedException)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the rclone daemon to start", interruptedException);
+                }
+            }
+        }
+
+        throw new IOException("The rclone daemon did not respond within " + STARTUP_TIMEOUT_MILLIS + "ms");
+    }
+
+    private void stopProcess()
+    {
+        if (process != null)
+        {
+            process.destroy();
+            process = null;
+        }
+    }
+
+    private void stopJob(long jobId)
+    {
+        try
+        {
+            call("job/stop", new JSONObject().put("jobid", jobId));
+        } catch (IOException | JSONException e)
+        {
+            Log.w(LOG_TAG, "Could not stop rclone job " + jobId, e);
+        }
+    }
+
+    private synchronized void scheduleIdleShutdown()
+    {
+        if (idleShutdownFuture != null) idleShutdownFuture.cancel(false);
+        idleShutdownFuture = idleExecutor.schedule(this::shutdownIfIdle, IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shuts the daemon down once the idle timeout has passed, unless a call is still waiting on it, such as a synchronous call that takes longer than
+     * the timeout, in which case the shutdown is put off for another timeout.
+     */
+    private synchronized void shutdownIfIdle()
+    {
+        if (inFlightCallCount > 0)
+        {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Not shutting down the rclone daemon while " + inFlightCallCount + " calls are running");
+            scheduleIdleShutdown();
+            return;
+        }
+
+        shutdown();
+    }
+
+    /**
+     * Sends a POST request with a JSON body to the daemon.
+     */
+    private static JSONObject post(String url, String authorization, JSONObject parameters) throws IOException
+    {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try
+        {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Authorization", authorization);
+            connection.setRequestProperty("Content-Type", "application/json");
+
+            try (final OutputStream outputStream = connection.getOutputStream())
+            {
+                outputStream.write((parameters == null ? "{}" : parameters.toString()).getBytes(StandardCharsets.UTF_8));
+            }
+
+            final int responseCode = connection.getResponseCode();
+            final InputStream responseStream = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            final String response = responseStream == null ? "" : readFully(responseStream);
+
+            final JSONObject responseJson = response.isEmpty() ? new JSONObject() : new JSONObject(response);
+            if (responseCode != HttpURLConnection.HTTP_OK)
+            {
+                throw new IOException("The rclone daemon returned HTTP " + responseCode + " for " + url + ": " + responseJson.optString("error", response));
+            }
+            return responseJson;
+        } catch (JSONException e)
+        {
+            throw new IOException("The rclone daemon returned an invalid response for " + url, e);
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException
+    {
+        try (final InputStream in = inputStream)
+        {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, read);
+            }
+            return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the daemon's output on a background thread so that it never blocks on a full pipe.
+     */
+    private static void drainOutput(Process daemonProcess)
+    {
+        final Thread thread = new Thread(() -> {
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(daemonProcess.getInputStream())))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, line);
+                }
+            } catch (IOException e)
+            {
+                Log.d(LOG_TAG, "Stopped reading the rclone daemon output", e);
+            }
+        }, LOG_TAG + "-output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int findFreePort() throws IOException
+    {
+        try (final ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    private String generateSecret()
+    {
+        final byte[] bytes = new byte[16];
+        secureRandom.nextBytes(bytes);
+        return Base64.encodeToString(bytes, Base64.NO_WRAP | Base64.URL_SAFE | Base64.NO_PADDING);
+    }
+
+    private static boolean isAlive(Process process)
+    {
+        try
+        {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e)
+        {
+            return true;
+        }
+    }
+}
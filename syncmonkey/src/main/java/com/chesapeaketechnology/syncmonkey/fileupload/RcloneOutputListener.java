@@ -0,0 +1,37 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+/**
+ * Receives the typed events that the {@link RcloneOutputParser} pulls out of rclone's JSON log output.  Events are delivered on the thread that is
+ * reading the rclone output, so implementations should return quickly.
+ *
+ * @since 0.0.10
+ */
+public interface RcloneOutputListener
+{
+    /**
+     * Called each time rclone reports its periodic transfer stats.
+     */
+    default void onStats(TransferStats stats)
+    {
+    }
+
+    /**
+     * Called when rclone reports that it finished transferring a single file.
+     *
+     * @param objectPath The remote path of the file, relative to the destination.
+     * @param message    The rclone message, such as "Copied (new)".
+     */
+    default void onFileTransferred(String objectPath, String message)
+    {
+    }
+
+    /**
+     * Called when rclone logs an error.
+     *
+     * @param objectPath The path of the file the error is about, or null if it is not about a specific file.
+     * @param message    The error message.
+     */
+    default void onError(String objectPath, String message)
+    {
+    }
+}
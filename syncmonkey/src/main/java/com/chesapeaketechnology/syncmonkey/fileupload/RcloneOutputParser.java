@@ -0,0 +1,170 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the output of an rclone process that was started with {@code --use-json-log}.  Each line is a JSON object, and the lines that carry stats,
+ * completed file transfers, or errors are turned into typed events for the registered {@link RcloneOutputListener}s.
+ * <p>
+ * Only the most recent {@link #DEFAULT_RETAINED_LINE_COUNT} raw lines are retained, so that a long running upload doesn't build up its entire log in
+ * memory, but there is still some context to log when the process fails.
+ *
+ * @since 0.0.10
+ */
+public class RcloneOutputParser
+{
+    private static final String LOG_TAG = RcloneOutputParser.class.getSimpleName();
+
+    static final int DEFAULT_RETAINED_LINE_COUNT = 100;
+
+    private static final String LEVEL_ERROR = "error";
+    private static final String LEVEL_CRITICAL = "critical";
+    private static final String COPIED_MESSAGE_PREFIX = "Copied";
+
+    private final List<RcloneOutputListener> listeners;
+    private final String[] retainedLines;
+    private int nextLineIndex;
+    private int retainedLineCount;
+    private TransferStats lastStats;
+    private int errorCount;
+
+    public RcloneOutputParser(List<RcloneOutputListener> listeners)
+    {
+        this(listeners, DEFAULT_RETAINED_LINE_COUNT);
+    }
+
+    public RcloneOutputParser(List<RcloneOutputListener> listeners, int retainedLineCount)
+    {
+        this.listeners = new ArrayList<>(listeners);
+        retainedLines = new String[Math.max(1, retainedLineCount)];
+    }
+
+    /**
+     * Reads and parses every line from the provided stream until it ends.
+     *
+     * @param inputStream The rclone output, which is usually the process's error stream.
+     * @throws IOException If the stream could not be read.
+     */
+    public void parse(InputStream inputStream) throws IOException
+    {
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                parseLine(line);
+            }
+        }
+    }
+
+    /**
+     * Parses a single line of rclone output.  Lines that are not JSON, such as the output of a crash, are only retained.
+     */
+    public void parseLine(String line)
+    {
+        retain(line);
+
+        if (line.isEmpty() || line.charAt(0) != '{') return;
+
+        final JSONObject logEntry;
+        try
+        {
+            logEntry = new JSONObject(line);
+        } catch (JSONException e)
+        {
+            return;
+        }
+
+        final JSONObject statsJson = logEntry.optJSONObject("stats");
+        if (statsJson != null)
+        {
+            lastStats = TransferStats.fromJson(statsJson);
+            for (RcloneOutputListener listener : listeners)
+            {
+                listener.onStats(lastStats);
+            }
+            return;
+        }
+
+        final String message = logEntry.optString("msg");
+        final String objectPath = logEntry.has("object") ? logEntry.optString("object") : null;
+
+        final String level = logEntry.optString("level");
+        if (LEVEL_ERROR.equals(level) || LEVEL_CRITICAL.equals(level))
+        {
+            errorCount++;
+            for (RcloneOutputListener listener : listeners)
+            {
+                listener.onError(objectPath, message);
+            }
+        } else if (objectPath != null && message.startsWith(COPIED_MESSAGE_PREFIX))
+        {
+            for (RcloneOutputListener listener : listeners)
+            {
+                listener.onFileTransferred(objectPath, message);
+            }
+        }
+    }
+
+    private void retain(String line)
+    {
+        retainedLines[nextLineIndex] = line;
+        nextLineIndex = (nextLineIndex + 1) % retainedLines.length;
+        if (retainedLineCount < retainedLines.length) retainedLineCount++;
+    }
+
+    /**
+     * @return The most recent raw lines of output, oldest first.
+     */
+    public List<String> getRetainedLines()
+    {
+        if (retainedLineCount == 0) return Collections.emptyList();
+
+        final List<String> lines = new ArrayList<>(retainedLineCount);
+        final int firstIndex = (nextLineIndex - retainedLineCount + retainedLines.length) % retainedLines.length;
+        for (int i = 0; i < retainedLineCount; i++)
+        {
+            lines.add(retainedLines[(firstIndex + i) % retainedLines.length]);
+        }
+        return lines;
+    }
+
+    /**
+     * @return The last stats that rclone reported, or null if it never reported any.
+     */
+    public TransferStats getLastStats()
+    {
+        return lastStats;
+    }
+
+    /**
+     * @return The number of error lines that rclone logged.
+     */
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    /**
+     * Logs the retained output at the error level, which is useful after the rclone process fails.
+     */
+    public void logRetainedLines()
+    {
+        for (String line : getRetainedLines())
+        {
+            Log.e(LOG_TAG, line);
+        }
+    }
+}
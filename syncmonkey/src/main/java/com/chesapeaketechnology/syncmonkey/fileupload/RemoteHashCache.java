@@ -0,0 +1,113 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_CACHED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_HASH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_HASH_TYPE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_MODIFIED;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_REMOTE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SIZE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_REMOTE_HASH_CACHE;
+
+/**
+ * A persistent cache of the hashes of remote objects, so that verifying the same large file over and over does not read the whole object each time.  Each
+ * hash is keyed by the remote name, the path, and the hash type, and is only returned while the object still has the size and modified time it had when
+ * it was hashed.  A lookup that finds a stale entry removes it.
+ *
+ * @since 0.0.10
+ */
+public class RemoteHashCache
+{
+    private static final String[] HASH_COLUMNS = {COLUMN_PATH, COLUMN_SIZE, COLUMN_MODIFIED, COLUMN_HASH};
+    private static final String ENTRY_SELECTION = COLUMN_REMOTE + " = ? AND " + COLUMN_PATH + " = ? AND " + COLUMN_HASH_TYPE + " = ?";
+
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+
+    RemoteHashCache(Context context)
+    {
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * @param remoteName The name of the rclone remote.
+     * @param path       The path of the object on the remote.
+     * @param hashType   The type of hash, such as {@code md5}.
+     * @param size       The current size of the object.
+     * @param modTime    The current modified time of the object.
+     * @return The cached hash, or null if there is none or the object has changed since it was hashed.
+     */
+    public String getHash(String remoteName, String path, String hashType, long size, long modTime)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try (final Cursor cursor = database.query(TABLE_REMOTE_HASH_CACHE, HASH_COLUMNS, ENTRY_SELECTION, new String[]{remoteName, path, hashType},
+                null, null, null))
+        {
+            if (!cursor.moveToFirst()) return null;
+
+            if (cursor.getLong(1) == size && cursor.getLong(2) == modTime) return cursor.getString(3);
+        }
+
+        // The object has changed since it was hashed
+        remove(remoteName, path, hashType);
+        return null;
+    }
+
+    /**
+     * Records the hash of a single remote object.
+     */
+    public void putHash(String remoteName, String path, String hashType, long size, long modTime, String hash)
+    {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.insertWithOnConflict(TABLE_REMOTE_HASH_CACHE, null, createValues(remoteName, path, hashType, size, modTime, hash, System.currentTimeMillis()),
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the cached hashes for the provided path and everything below it, which is used when the path is changed on the remote.  The listings that
+     * the hashes come from use paths with a leading slash, so the path matches with or without one.
+     */
+    public void invalidate(String remoteName, String path)
+    {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        final String trimmedPath = path.substring(start, end);
+
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        if (trimmedPath.isEmpty())
+        {
+            database.delete(TABLE_REMOTE_HASH_CACHE, COLUMN_REMOTE + " = ?", new String[]{remoteName});
+            return;
+        }
+
+        final String escapedPath = trimmedPath.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        database.delete(TABLE_REMOTE_HASH_CACHE, COLUMN_REMOTE + " = ? AND (" + COLUMN_PATH + " IN (?, ?) OR " + COLUMN_PATH + " LIKE ? ESCAPE '\\' OR "
+                        + COLUMN_PATH + " LIKE ? ESCAPE '\\')",
+                new String[]{remoteName, trimmedPath, "/" + trimmedPath, escapedPath + "/%", "/" + escapedPath + "/%"});
+    }
+
+    private void remove(String remoteName, String path, String hashType)
+    {
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.delete(TABLE_REMOTE_HASH_CACHE, ENTRY_SELECTION, new String[]{remoteName, path, hashType});
+    }
+
+    private static ContentValues createValues(String remoteName, String path, String hashType, long size, long modTime, String hash, long cachedAt)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_REMOTE, remoteName);
+        values.put(COLUMN_PATH, path);
+        values.put(COLUMN_HASH_TYPE, hashType);
+        values.put(COLUMN_SIZE, size);
+        values.put(COLUMN_MODIFIED, modTime);
+        values.put(COLUMN_HASH, hash);
+        values.put(COLUMN_CACHED_AT, cachedAt);
+        return values;
+    }
+}
@@ -0,0 +1,206 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-memory cache for the results of the {@link Rclone} calls that read from a remote, such as directory listings and file hashes.  Entries are
+ * keyed by the kind of result, the remote name, and the path, expire after {@link #DEFAULT_TTL_MILLIS}, and the least recently used entries are evicted
+ * once there are more than {@link #DEFAULT_MAX_ENTRIES}.
+ * <p>
+ * {@link Rclone} invalidates a path whenever it changes something there.  Invalidating a path drops the entries for the path itself, for everything
+ * below it, and for every directory above it, since the listing of each parent may also have changed.
+ *
+ * @since 0.0.10
+ */
+public class RemoteListingCache
+{
+    static final long DEFAULT_TTL_MILLIS = 60_000;
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    static final String KIND_LISTING = "listing";
+    static final String KIND_ROOT_LISTING = "rootListing";
+    static final String KIND_MD5 = "md5";
+    static final String KIND_SHA1 = "sha1";
+    static final String KIND_REMOTES = "remotes";
+
+    private static RemoteListingCache instance;
+
+    private final long ttlMillis;
+    private final Map<CacheKey, CacheEntry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @return The single cache for this process, so that every {@link Rclone} instance shares it.
+     */
+    public static synchronized RemoteListingCache getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new RemoteListingCache(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+        }
+        return instance;
+    }
+
+    RemoteListingCache(long ttlMillis, int maxEntries)
+    {
+        this.ttlMillis = ttlMillis;
+        entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The cached value, or null if there is no entry or it has expired.
+     */
+    synchronized Object get(String kind, String remoteName, String path)
+    {
+        final CacheKey cacheKey = new CacheKey(kind, remoteName, path);
+        final CacheEntry cacheEntry = entries.get(cacheKey);
+        if (cacheEntry == null || cacheEntry.expiresAt <= SystemClock.elapsedRealtime())
+        {
+            if (cacheEntry != null) entries.remove(cacheKey);
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return cacheEntry.value;
+    }
+
+    synchronized void put(String kind, String remoteName, String path, Object value)
+    {
+        if (value == null) return;
+
+        entries.put(new CacheKey(kind, remoteName, path), new CacheEntry(value, SystemClock.elapsedRealtime() + ttlMillis));
+    }
+
+    /**
+     * Drops every entry for the provided path, for everything below it, and for every directory above it on the same remote.
+     */
+    public synchronized void invalidate(String remoteName, String path)
+    {
+        final String changedPath = normalizePath(path);
+
+        final Iterator<CacheKey> iterator = entries.keySet().iterator();
+        while (iterator.hasNext())
+        {
+            final CacheKey cacheKey = iterator.next();
+            if (!cacheKey.remoteName.equals(remoteName)) continue;
+
+            final String cachedPath = cacheKey.path;
+            if (cachedPath.equals(changedPath) || cachedPath.isEmpty() || changedPath.isEmpty()
+                    || changedPath.startsWith(cachedPath + "/") || cachedPath.startsWith(changedPath + "/"))
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every entry of the provided kind, such as the cached list of remotes after the rclone config changes.
+     */
+    public synchronized void invalidateKind(String kind)
+    {
+        entries.keySet().removeIf(cacheKey -> cacheKey.kind.equals(kind));
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RemoteListingCache{" +
+                "size=" + size() +
+                ", hitCount=" + hitCount.get() +
+                ", missCount=" + missCount.get() +
+                '}';
+    }
+
+    /**
+     * Strips any leading and trailing slashes so that the same directory always maps to the same key.
+     */
+    private static String normalizePath(String path)
+    {
+        if (path == null) return "";
+
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+
+    private static class CacheKey
+    {
+        private final String kind;
+        private final String remoteName;
+        private final String path;
+
+        private CacheKey(String kind, String remoteName, String path)
+        {
+            this.kind = kind;
+            this.remoteName = remoteName;
+            this.path = normalizePath(path);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+
+            final CacheKey cacheKey = (CacheKey) o;
+            return kind.equals(cacheKey.kind) && remoteName.equals(cacheKey.remoteName) && path.equals(cacheKey.path);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = kind.hashCode();
+            result = 31 * result + remoteName.hashCode();
+            result = 31 * result + path.hashCode();
+            return result;
+        }
+    }
+
+    private static class CacheEntry
+    {
+        private final Object value;
+        private final long expiresAt;
+
+        private CacheEntry(Object value, long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
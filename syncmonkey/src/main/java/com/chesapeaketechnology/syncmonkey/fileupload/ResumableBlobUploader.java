@@ -0,0 +1,428 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Base64;
+import android.util.Log;
+import android.util.Xml;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_BLOB_NAME;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_BLOCK_SIZE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_MODIFIED;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SIZE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_UPDATED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_UPLOADED_BLOCKS;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_RESUMABLE_UPLOADS;
+
+/**
+ * Uploads large files straight to Azure Blob Storage as block blobs, saving the number of blocks that have been uploaded after each block so that a sync
+ * that is cancelled, or a {@code :sync} process that dies, does not have to start a multi-GB capture from the beginning.
+ * <p>
+ * Each block is sent with Put Block using a block ID derived from its index, and the blob is only created when Put Block List commits every block, so a
+ * partial upload is never visible on the remote.  Before resuming, the uncommitted block list is read back from Azure, and the upload continues after the
+ * last block that both sides agree on.  Azure discards uncommitted blocks after a week, so saved state older than that, or for a file that has changed or
+ * been deleted, is thrown away.
+ * <p>
+ * The requests are signed with the {@link SyncMonkeyConstants#PROPERTY_AZURE_SAS_URL_KEY} SAS URL, which can be either an account or a container SAS.
+ *
+ * @since 0.0.10
+ */
+public class ResumableBlobUploader
+{
+    private static final String LOG_TAG = ResumableBlobUploader.class.getSimpleName();
+
+    /**
+     * Files at least this large are uploaded by this class instead of by rclone.
+     */
+    static final long MIN_FILE_SIZE = 64L * 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final long STATE_EXPIRY_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String AZURE_API_VERSION = "2019-12-12";
+    private static final int CONNECT_TIMEOUT_MILLIS = 15_000;
+    private static final int READ_TIMEOUT_MILLIS = 120_000;
+
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+    private final AppPreferences appPreferences;
+
+    ResumableBlobUploader(Context context)
+    {
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * @return True if a SAS URL and container are configured, which are needed to talk to Azure without rclone.
+     */
+    public boolean isAvailable()
+    {
+        return isAvailable(appPreferences);
+    }
+
+    /**
+     * @return True if a SAS URL and container are configured in the provided preferences.
+     */
+    static boolean isAvailable(AppPreferences appPreferences)
+    {
+        return appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, null) != null
+                && appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null) != null;
+    }
+
+    /**
+     * Uploads the file, continuing from where a previous attempt stopped if the file has not changed since.
+     *
+     * @param fileEntry         The local file to upload.
+     * @param blobName          The name of the blob in the container, such as {@code deviceId/relative/path}.
+     * @param syncSession       The session whose budget each block is counted against.  The upload stops between blocks once the budget is used up.
+     * @param failureClassifier Receives the cause of a failed upload.
+     * @return True if the blob was committed, false if the upload failed, was interrupted, or ran out of budget, in which case the progress is kept for
+     * the next attempt.
+     */
+    public boolean upload(LocalFileEntry fileEntry, String blobName, SyncSession syncSession, FailureClassifier failureClassifier)
+    {
+        final String blobUrl = getBlobUrl(appPreferences, blobName);
+        if (blobUrl == null) return false;
+
+        final long blockCount = (fileEntry.getSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int nextBlock = getResumeBlock(fileEntry, blobName, blobUrl);
+        if (nextBlock > 0) Log.i(LOG_TAG, "Resuming the upload of " + fileEntry.getPath() + " at block " + nextBlock + " of " + blockCount);
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(fileEntry.getFile(), "r"))
+        {
+            final byte[] block = new byte[BLOCK_SIZE];
+            for (; nextBlock < blockCount; nextBlock++)
+            {
+                if (Thread.currentThread().isInterrupted())
+                {
+                    Log.i(LOG_TAG, "Interrupted while uploading " + fileEntry.getPath() + ", it will resume at block " + nextBlock);
+                    return false;
+                }
+
+                final long offset = (long) nextBlock * BLOCK_SIZE;
+                final int length = (int) Math.min(BLOCK_SIZE, fileEntry.getSize() - offset);
+                if (!syncSession.canStart(length))
+                {
+                    Log.i(LOG_TAG, "The sync session is out of budget, the upload of " + fileEntry.getPath() + " will resume at block " + nextBlock);
+                    return false;
+                }
+
+                randomAccessFile.seek(offset);
+                randomAccessFile.readFully(block, 0, length);
+
+                putBlock(blobUrl, getBlockId(nextBlock), block, length);
+                saveProgress(fileEntry, blobName, nextBlock + 1);
+                syncSession.recordUploaded(length);
+            }
+
+            // Don't commit a blob made from a file that was still being written
+            final File file = fileEntry.getFile();
+            if (file.length() != fileEntry.getSize() || file.lastModified() != fileEntry.getLastModified())
+            {
+                Log.w(LOG_TAG, fileEntry.getPath() + " changed while it was being uploaded, it will be uploaded again from the start");
+                deleteProgress(fileEntry.getPath());
+                return false;
+            }
+
+            putBlockList(blobUrl, blockCount, fileEntry);
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not upload " + fileEntry.getPath() + ", it will resume at block " + nextBlock, e);
+            failureClassifier.recordException(e);
+            return false;
+        }
+
+        deleteProgress(fileEntry.getPath());
+        Log.i(LOG_TAG, "Uploaded " + fileEntry.getPath() + " in " + blockCount + " blocks");
+        return true;
+    }
+
+    /**
+     * Removes the saved progress for files that no longer exist, that have changed since their upload started, or whose uncommitted blocks Azure has
+     * already discarded.
+     */
+    public void pruneAbandonedUploads()
+    {
+        final long expiredBefore = System.currentTimeMillis() - STATE_EXPIRY_MILLIS;
+        final List<String> abandonedPaths = new ArrayList<>();
+
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try (final Cursor cursor = database.query(TABLE_RESUMABLE_UPLOADS, new String[]{COLUMN_PATH, COLUMN_SIZE, COLUMN_MODIFIED, COLUMN_UPDATED_AT},
+                null, null, null, null, null))
+        {
+            while (cursor.moveToNext())
+            {
+                final File file = new File(cursor.getString(0));
+                if (cursor.getLong(3) < expiredBefore || !file.isFile() || file.length() != cursor.getLong(1) || file.lastModified() != cursor.getLong(2))
+                {
+                    abandonedPaths.add(cursor.getString(0));
+                }
+            }
+        }
+
+        for (String abandonedPath : abandonedPaths)
+        {
+            deleteProgress(abandonedPath);
+        }
+        if (!abandonedPaths.isEmpty()) Log.i(LOG_TAG, "Discarded the saved progress of " + abandonedPaths.size() + " abandoned uploads");
+    }
+
+    /**
+     * @return The index of the first block that still needs to be uploaded.
+     */
+    private int getResumeBlock(LocalFileEntry fileEntry, String blobName, String blobUrl)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        final int savedBlocks;
+        try (final Cursor cursor = database.query(TABLE_RESUMABLE_UPLOADS, new String[]{COLUMN_UPLOADED_BLOCKS},
+                COLUMN_PATH + " = ? AND " + COLUMN_SIZE + " = ? AND " + COLUMN_MODIFIED + " = ? AND " + COLUMN_BLOB_NAME + " = ? AND " + COLUMN_BLOCK_SIZE + " = ?",
+                new String[]{fileEntry.getPath(), String.valueOf(fileEntry.getSize()), String.valueOf(fileEntry.getLastModified()), blobName,
+                        String.valueOf(BLOCK_SIZE)}, null, null, null))
+        {
+            if (!cursor.moveToFirst())
+            {
+                // Any state that is left is for an older version of the file
+                deleteProgress(fileEntry.getPath());
+                return 0;
+            }
+            savedBlocks = cursor.getInt(0);
+        }
+        if (savedBlocks == 0) return 0;
+
+        // Only trust the blocks that Azure still has, in case they were discarded or the saved count is ahead of what was accepted
+        try
+        {
+            final Map<String, Long> uncommittedBlocks = getUncommittedBlocks(blobUrl);
+            int confirmedBlocks = 0;
+            while (confirmedBlocks < savedBlocks)
+            {
+                final Long size = uncommittedBlocks.get(getBlockId(confirmedBlocks));
+                final long expectedSize = Math.min(BLOCK_SIZE, fileEntry.getSize() - (long) confirmedBlocks * BLOCK_SIZE);
+                if (size == null || size != expectedSize) break;
+                confirmedBlocks++;
+            }
+            return confirmedBlocks;
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not read the uncommitted blocks for " + blobName + ", starting the upload over", e);
+            return 0;
+        }
+    }
+
+    private void saveProgress(LocalFileEntry fileEntry, String blobName, int uploadedBlocks)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, fileEntry.getPath());
+        values.put(COLUMN_SIZE, fileEntry.getSize());
+        values.put(COLUMN_MODIFIED, fileEntry.getLastModified());
+        values.put(COLUMN_BLOB_NAME, blobName);
+        values.put(COLUMN_BLOCK_SIZE, BLOCK_SIZE);
+        values.put(COLUMN_UPLOADED_BLOCKS, uploadedBlocks);
+        values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+
+        databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_RESUMABLE_UPLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void deleteProgress(String path)
+    {
+        databaseHelper.getWritableDatabase().delete(TABLE_RESUMABLE_UPLOADS, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    /**
+     * @return A block ID for the block index.  Every block ID in a blob must be the same length, so the index is zero padded before it is encoded.
+     */
+    private static String getBlockId(int blockIndex)
+    {
+        final String rawId = String.format(Locale.US, "syncmonkey-%08d", blockIndex);
+        return Base64.encodeToString(rawId.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+    }
+
+    /**
+     * Builds the URL of the blob from the SAS URL.  A container SAS URL already has the container in its path, while an account SAS URL does not.
+     *
+     * @return The blob URL, including the SAS query, or null if the SAS URL is not configured.
+     */
+    static String getBlobUrl(AppPreferences appPreferences, String blobName)
+    {
+        final String sasUrl = appPreferences.getString(SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY, null);
+        final String containerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
+        if (sasUrl == null || containerName == null)
+        {
+            Log.e(LOG_TAG, "Can't upload without rclone because the SAS URL or container name is not set");
+            return null;
+        }
+
+        final Uri sasUri = Uri.parse(sasUrl);
+        final Uri.Builder blobUri = sasUri.buildUpon();
+        final String sasPath = sasUri.getPath();
+        if (sasPath == null || sasPath.isEmpty() || sasPath.equals("/")) blobUri.appendPath(containerName);
+        for (String pathSegment : blobName.split("/"))
+        {
+            if (!pathSegment.isEmpty()) blobUri.appendPath(pathSegment);
+        }
+        return blobUri.build().toString();
+    }
+
+    private static void putBlock(String blobUrl, String blockId, byte[] block, int length) throws IOException
+    {
+        final HttpURLConnection connection = openConnection(blobUrl + "&comp=block&blockid=" + Uri.encode(blockId), "PUT");
+        try
+        {
+            connection.setFixedLengthStreamingMode(length);
+            try (final OutputStream outputStream = connection.getOutputStream())
+            {
+                outputStream.write(block, 0, length);
+            }
+            checkResponse(connection, "Put Block");
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Commits the blocks as the content of the blob.  The modified time is stored the same way rclone stores it, so later rclone syncs see the blob as up
+     * to date.
+     */
+    private static void putBlockList(String blobUrl, long blockCount, LocalFileEntry fileEntry) throws IOException
+    {
+        final StringBuilder blockList = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (int i = 0; i < blockCount; i++)
+        {
+            blockList.append("<Latest>").append(getBlockId(i)).append("</Latest>");
+        }
+        blockList.append("</BlockList>");
+        final byte[] body = blockList.toString().getBytes(StandardCharsets.UTF_8);
+
+        final SimpleDateFormat rfc3339Format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        rfc3339Format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final HttpURLConnection connection = openConnection(blobUrl + "&comp=blocklist", "PUT");
+        try
+        {
+            connection.setRequestProperty("Content-Type", "application/xml");
+            connection.setRequestProperty("x-ms-meta-mtime", rfc3339Format.format(new Date(fileEntry.getLastModified())));
+            connection.setRequestProperty("x-ms-blob-content-type", FileItem.getMimeType("application/octet-stream", fileEntry.getPath()));
+            if (fileEntry.getMd5() != null)
+            {
+                connection.setRequestProperty("x-ms-blob-content-md5", Base64.encodeToString(hexToBytes(fileEntry.getMd5()), Base64.NO_WRAP));
+            }
+            connection.setFixedLengthStreamingMode(body.length);
+            try (final OutputStream outputStream = connection.getOutputStream())
+            {
+                outputStream.write(body);
+            }
+            checkResponse(connection, "Put Block List");
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return The size of each uncommitted block of the blob, keyed by block ID.
+     */
+    private static Map<String, Long> getUncommittedBlocks(String blobUrl) throws IOException
+    {
+        final HttpURLConnection connection = openConnection(blobUrl + "&comp=blocklist&blocklisttype=uncommitted", "GET");
+        try
+        {
+            final Map<String, Long> blocks = new HashMap<>();
+
+            // A blob with no blocks at all does not exist yet
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) return blocks;
+            checkResponse(connection, "Get Block List");
+
+            try (final InputStream inputStream = connection.getInputStream())
+            {
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(inputStream, null);
+
+                String name = null;
+                String text = null;
+                for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next())
+                {
+                    if (event == XmlPullParser.TEXT)
+                    {
+                        text = parser.getText();
+                    } else if (event == XmlPullParser.END_TAG)
+                    {
+                        if ("Name".equals(parser.getName()))
+                        {
+                            name = text;
+                        } else if ("Size".equals(parser.getName()) && name != null && text != null)
+                        {
+                            blocks.put(name, Long.parseLong(text.trim()));
+                            name = null;
+                        }
+                    }
+                }
+            } catch (XmlPullParserException | NumberFormatException e)
+            {
+                throw new IOException("Could not parse the block list", e);
+            }
+            return blocks;
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    static HttpURLConnection openConnection(String url, String method) throws IOException
+    {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("x-ms-version", AZURE_API_VERSION);
+        if ("PUT".equals(method)) connection.setDoOutput(true);
+        return connection;
+    }
+
+    static void checkResponse(HttpURLConnection connection, String operation) throws IOException
+    {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode / 100 != 2)
+        {
+            throw new IOException(operation + " failed with HTTP " + responseCode + " " + connection.getResponseMessage());
+        }
+    }
+
+    private static byte[] hexToBytes(String hex)
+    {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
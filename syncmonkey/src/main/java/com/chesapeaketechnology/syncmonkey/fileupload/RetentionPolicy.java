@@ -0,0 +1,443 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.RemoteItem;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Removes local files from the sync directories once they are safely on the remote, so the sync directories stop growing with the age of the device and
+ * each scan, and so each sync, stays about the same size.
+ * <p>
+ * A rule is configured for each sync directory as a list of {@code directory=rule} entries separated by colons, such as
+ * {@code "sharedfiles=delete:Download/captures=archive:logs=7d"}.  The directory is written the same way as in the local sync directories, and
+ * {@code *} sets the rule for every directory without one of its own.  The rules are:
+ * <ul>
+ * <li>{@code keep}, the default, which never removes anything.</li>
+ * <li>{@code delete}, which deletes each file once it is uploaded.</li>
+ * <li>{@code archive}, which moves each file once it is uploaded into a sibling directory named after the sync directory with an {@code -archive}
+ * suffix, which is not scanned.</li>
+ * <li>{@code <N>d}, which keeps the files modified in the last N days and deletes the older ones that are uploaded.</li>
+ * </ul>
+ * A file is only removed if the {@link UploadManifest} shows it was uploaded in its current state, and the remote copy has the same size and, when the
+ * remote reports one, the same MD5.  Files that were uploaded compressed or in a bundle don't match the remote copy, so they are always kept.  The remote
+ * is listed one directory at a time, and only for the directories that have files to remove.
+ * <p>
+ * The sync directories are walked with the {@link SyncDirectoryScanner}, so only the files that the scan filters let through are considered, and links
+ * that loop are not followed.  A file that is reached through a symbolic link, or is one itself, is always kept, since removing it would remove a file
+ * outside of the sync directory.  Once files are removed, the directories they were in are removed too if they were left empty.
+ *
+ * @since 0.0.10
+ */
+public class RetentionPolicy
+{
+    private static final String LOG_TAG = RetentionPolicy.class.getSimpleName();
+
+    public static final String ARCHIVE_DIRECTORY_SUFFIX = "-archive";
+
+    /**
+     * The most files removed in a single sync, which bounds the time spent verifying against the remote.  The rest are removed by the following syncs.
+     */
+    private static final int MAX_FILES_PER_RUN = 1000;
+
+    private static final String ALL_DIRECTORIES = "*";
+    private static final Pattern DAYS_PATTERN = Pattern.compile("(\\d{1,5})d");
+    private static final long MILLIS_IN_DAY = 24L * SyncMonkeyConstants.SECONDS_IN_HOUR * 1000;
+
+    /**
+     * What happens to a file in a sync directory once it is uploaded.
+     */
+    public enum Action
+    {
+        KEEP,
+        DELETE,
+        ARCHIVE
+    }
+
+    private final Context context;
+    private final AppPreferences appPreferences;
+    private final Rclone rclone;
+    private final UploadManifest uploadManifest;
+    private final LocalFileHasher localFileHasher;
+    private final SyncDirectoryScanner syncDirectoryScanner;
+    private final String dataDirectoryPath;
+
+    RetentionPolicy(Context context, Rclone rclone, UploadManifest uploadManifest, SyncDirectoryScanner syncDirectoryScanner, String dataDirectoryPath)
+    {
+        this.context = context;
+        appPreferences = new AppPreferences(context);
+        this.rclone = rclone;
+        this.uploadManifest = uploadManifest;
+        this.syncDirectoryScanner = syncDirectoryScanner;
+        localFileHasher = new LocalFileHasher(context);
+        this.dataDirectoryPath = dataDirectoryPath;
+    }
+
+    /**
+     * @return True if a rule other than {@code keep} is set for any sync directory.
+     */
+    public boolean isEnabled()
+    {
+        for (Rule rule : parseRules().values())
+        {
+            if (rule.action != Action.KEEP) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Applies the rule for each of the provided sync directories, removing the files that are verified to be on the remote.
+     *
+     * @param syncDirectoryPaths The absolute paths of the sync directories.
+     * @param deviceId           The device ID which is used as the folder name on the remote server.
+     * @param remote             The remote server the files were uploaded to.
+     * @return The number of files that were removed.
+     */
+    public int apply(List<String> syncDirectoryPaths, String deviceId, RemoteItem remote)
+    {
+        final Map<String, Rule> rules = parseRules();
+        final SyncDirectoryScanner.Filter filter = syncDirectoryScanner.loadFilter();
+        final long now = System.currentTimeMillis();
+
+        int removedCount = 0;
+        for (String syncDirectoryPath : syncDirectoryPaths)
+        {
+            final Rule rule = getRule(rules, syncDirectoryPath);
+            if (rule.action == Action.KEEP) continue;
+
+            final File syncDirectory = new File(syncDirectoryPath);
+            final long modifiedBefore = rule.keepDays > 0 ? now - rule.keepDays * MILLIS_IN_DAY : Long.MAX_VALUE;
+            final List<LocalFileEntry> candidates = findUploadedFiles(syncDirectory, syncDirectoryPaths, filter, modifiedBefore,
+                    MAX_FILES_PER_RUN - removedCount);
+            if (candidates.isEmpty()) continue;
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Verifying " + candidates.size() + " uploaded files in " + syncDirectoryPath + " before applying the " + rule + " rule");
+            }
+
+            final Map<String, List<LocalFileEntry>> candidatesByDirectory = new LinkedHashMap<>();
+            for (LocalFileEntry candidate : candidates)
+            {
+                final String relativePath = candidate.getRelativePath();
+                final int lastSlash = relativePath.lastIndexOf('/');
+                final String relativeDirectory = lastSlash < 0 ? "" : relativePath.substring(0, lastSlash);
+
+                List<LocalFileEntry> directoryCandidates = candidatesByDirectory.get(relativeDirectory);
+                if (directoryCandidates == null)
+                {
+                    directoryCandidates = new ArrayList<>();
+                    candidatesByDirectory.put(relativeDirectory, directoryCandidates);
+                }
+                directoryCandidates.add(candidate);
+            }
+
+            final Set<File> emptiedDirectories = new HashSet<>();
+            for (Map.Entry<String, List<LocalFileEntry>> directoryEntry : candidatesByDirectory.entrySet())
+            {
+                if (Thread.currentThread().isInterrupted()) break;
+
+                final String relativeDirectory = directoryEntry.getKey();
+                final String remotePath = "/" + deviceId + (relativeDirectory.isEmpty() ? "" : "/" + relativeDirectory);
+                for (LocalFileEntry fileEntry : verify(directoryEntry.getValue(), remote, remotePath))
+                {
+                    if (remove(fileEntry, syncDirectory, rule.action))
+                    {
+                        removedCount++;
+                        emptiedDirectories.add(fileEntry.getFile().getParentFile());
+                    }
+                }
+            }
+            pruneEmptyDirectories(syncDirectory, emptiedDirectories);
+
+            if (Thread.currentThread().isInterrupted()) break;
+        }
+
+        if (removedCount > 0) Log.i(LOG_TAG, "Removed " + removedCount + " uploaded files from the sync directories");
+        return removedCount;
+    }
+
+    /**
+     * Walks the provided sync directory for the files that were uploaded in their current state.  The files found by the scan are checked against the
+     * manifest in batches, and the ones reached through a symbolic link are left out.
+     *
+     * @param syncDirectoryPaths All the sync directories, whose subtrees are left for their own rules if they are inside this one.
+     * @param filter             The scan filter for this sync.
+     * @param modifiedBefore     Only files modified before this time are returned.
+     * @param maxCount           The most files to return.
+     */
+    private List<LocalFileEntry> findUploadedFiles(File syncDirectory, List<String> syncDirectoryPaths, SyncDirectoryScanner.Filter filter,
+                                                   long modifiedBefore, int maxCount)
+    {
+        final List<LocalFileEntry> oldFiles = Collections.synchronizedList(new ArrayList<>());
+        syncDirectoryScanner.scan(syncDirectory, syncDirectoryPaths, filter, fileEntry -> {
+            if (fileEntry.getLastModified() < modifiedBefore) oldFiles.add(fileEntry);
+        });
+        if (oldFiles.isEmpty()) return new ArrayList<>();
+
+        final Set<LocalFileEntry> notUploadedFiles = new HashSet<>(uploadManifest.findNotUploaded(oldFiles));
+        final String rootPath = getCanonicalPath(syncDirectory);
+        if (rootPath == null) return new ArrayList<>();
+
+        final List<LocalFileEntry> uploadedFiles = new ArrayList<>();
+        for (LocalFileEntry fileEntry : oldFiles)
+        {
+            if (uploadedFiles.size() >= maxCount) break;
+            if (notUploadedFiles.contains(fileEntry)) continue;
+
+            final String expectedPath = rootPath + File.separator + fileEntry.getRelativePath().replace('/', File.separatorChar);
+            if (!expectedPath.equals(getCanonicalPath(fileEntry.getFile())))
+            {
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Keeping " + fileEntry.getPath() + " because it is reached through a symbolic link");
+                continue;
+            }
+            uploadedFiles.add(fileEntry);
+        }
+
+        return uploadedFiles;
+    }
+
+    /**
+     * Lists the provided remote directory and returns the local files whose remote copy has the same size and, when the remote reports one, the same MD5.
+     *
+     * @param fileEntries The local files in the same directory.
+     * @param remote      The remote server the files were uploaded to.
+     * @param remotePath  The path of the directory on the remote.
+     */
+    private List<LocalFileEntry> verify(List<LocalFileEntry> fileEntries, RemoteItem remote, String remotePath)
+    {
+        final FileItemIterator fileItemIterator = rclone.iterateFilesWithHashes(remote, remotePath, Rclone.HASH_TYPE_MD5);
+        if (fileItemIterator == null) return new ArrayList<>();
+
+        final Map<String, LocalFileEntry> fileEntriesByName = new HashMap<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            fileEntriesByName.put(fileEntry.getFile().getName(), fileEntry);
+        }
+
+        final List<LocalFileEntry> sizeMatches = new ArrayList<>();
+        final Map<LocalFileEntry, String> remoteHashes = new HashMap<>();
+        try
+        {
+            while (fileItemIterator.hasNext())
+            {
+                final FileItem fileItem = fileItemIterator.next();
+                final LocalFileEntry fileEntry = fileEntriesByName.get(fileItem.getName());
+                if (fileEntry == null) continue;
+
+                if (fileItem.getSize() != fileEntry.getSize())
+                {
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Keeping " + fileEntry.getPath() + " because the remote copy has a different size");
+                    continue;
+                }
+                sizeMatches.add(fileEntry);
+
+                final String remoteHash = fileItemIterator.getCurrentHashes().get(Rclone.HASH_TYPE_MD5);
+                if (remoteHash != null && !remoteHash.isEmpty()) remoteHashes.put(fileEntry, remoteHash);
+            }
+        } finally
+        {
+            fileItemIterator.close();
+        }
+
+        if (!fileItemIterator.isSuccessful())
+        {
+            Log.w(LOG_TAG, "Could not list " + remote.getName() + remotePath + ", keeping the local files in it");
+            rclone.logErrorOutput(fileItemIterator.getProcess());
+            return new ArrayList<>();
+        }
+
+        if (remoteHashes.isEmpty()) return sizeMatches;
+
+        localFileHasher.hashFiles(new ArrayList<>(remoteHashes.keySet()));
+        final List<LocalFileEntry> verifiedFiles = new ArrayList<>();
+        for (LocalFileEntry fileEntry : sizeMatches)
+        {
+            final String remoteHash = remoteHashes.get(fileEntry);
+            if (remoteHash == null || remoteHash.equalsIgnoreCase(fileEntry.getMd5()))
+            {
+                verifiedFiles.add(fileEntry);
+            } else
+            {
+                Log.w(LOG_TAG, "Keeping " + fileEntry.getPath() + " because the MD5 of the remote copy does not match");
+            }
+        }
+        return verifiedFiles;
+    }
+
+    /**
+     * Deletes or archives a verified file, unless it changed after it was verified.
+     *
+     * @return True if the file was removed from the sync directory.
+     */
+    private boolean remove(LocalFileEntry fileEntry, File syncDirectory, Action action)
+    {
+        final File file = fileEntry.getFile();
+        if (file.length() != fileEntry.getSize() || file.lastModified() != fileEntry.getLastModified())
+        {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Keeping " + fileEntry.getPath() + " because it changed after it was verified");
+            return false;
+        }
+
+        final boolean removed;
+        if (action == Action.ARCHIVE)
+        {
+            final File archivedFile = new File(new File(syncDirectory.getParentFile(), syncDirectory.getName() + ARCHIVE_DIRECTORY_SUFFIX),
+                    fileEntry.getRelativePath());
+            final File archiveDirectory = archivedFile.getParentFile();
+            removed = (archiveDirectory.isDirectory() || archiveDirectory.mkdirs()) && file.renameTo(archivedFile);
+        } else
+        {
+            removed = file.delete();
+        }
+
+        if (!removed)
+        {
+            Log.w(LOG_TAG, "Could not " + action.name().toLowerCase(Locale.US) + " " + fileEntry.getPath());
+            return false;
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Applied " + action + " to " + fileEntry.getPath());
+        uploadManifest.remove(fileEntry.getPath());
+        return true;
+    }
+
+    /**
+     * Removes the provided directories if removing files left them empty, along with any of their parents below the sync directory that are then empty,
+     * so they are not walked on each scan.  Directories that were already empty are left alone, since they may have been created on purpose.
+     *
+     * @param directories The directories that files were removed from.
+     */
+    private static void pruneEmptyDirectories(File syncDirectory, Set<File> directories)
+    {
+        for (File directory : directories)
+        {
+            // Deleting a directory fails unless it is empty, which ends the walk up at the first directory that still has something in it
+            File current = directory;
+            while (current != null && !current.equals(syncDirectory) && current.delete())
+            {
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Removed the empty directory " + current);
+                current = current.getParentFile();
+            }
+        }
+    }
+
+    /**
+     * @return The canonical path of the file, or null if it could not be resolved.
+     */
+    private static String getCanonicalPath(File file)
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not resolve the canonical path of " + file, e);
+            return null;
+        }
+    }
+
+    private Rule getRule(Map<String, Rule> rules, String syncDirectoryPath)
+    {
+        final String privateSharedPath = new File(context.getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY).getPath();
+        final String directoryName;
+        if (syncDirectoryPath.equals(privateSharedPath))
+        {
+            directoryName = SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY;
+        } else if (syncDirectoryPath.startsWith(dataDirectoryPath))
+        {
+            directoryName = syncDirectoryPath.substring(dataDirectoryPath.length());
+        } else
+        {
+            directoryName = syncDirectoryPath;
+        }
+
+        Rule rule = rules.get(directoryName);
+        if (rule == null) rule = rules.get(ALL_DIRECTORIES);
+        return rule == null ? Rule.KEEP : rule;
+    }
+
+    /**
+     * Parses the rules from the user preferences.  Invalid entries are logged and ignored, which leaves those directories with the {@code keep} rule.
+     */
+    private Map<String, Rule> parseRules()
+    {
+        final Map<String, Rule> rules = new HashMap<>();
+        final String rulesProperty = appPreferences.getString(SyncMonkeyConstants.PROPERTY_RETENTION_RULES_KEY, "");
+        if (rulesProperty == null) return rules;
+
+        for (String entry : rulesProperty.split(SyncMonkeyConstants.COLON_SEPARATOR))
+        {
+            if (entry.trim().isEmpty()) continue;
+
+            final int separator = entry.lastIndexOf('=');
+            final Rule rule = separator <= 0 ? null : Rule.parse(entry.substring(separator + 1).trim());
+            if (rule == null)
+            {
+                Log.w(LOG_TAG, "Ignoring the invalid retention rule: " + entry);
+                continue;
+            }
+            rules.put(entry.substring(0, separator).trim(), rule);
+        }
+        return rules;
+    }
+
+    private static class Rule
+    {
+        private static final Rule KEEP = new Rule(Action.KEEP, 0);
+
+        private final Action action;
+        private final int keepDays;
+
+        private Rule(Action action, int keepDays)
+        {
+            this.action = action;
+            this.keepDays = keepDays;
+        }
+
+        /**
+         * @return The rule, or null if the text is not a valid rule.
+         */
+        private static Rule parse(String text)
+        {
+            final Matcher daysMatcher = DAYS_PATTERN.matcher(text);
+            if (daysMatcher.matches())
+            {
+                final int keepDays = Integer.parseInt(daysMatcher.group(1));
+                return keepDays > 0 ? new Rule(Action.DELETE, keepDays) : null;
+            }
+
+            try
+            {
+                return new Rule(Action.valueOf(text.toUpperCase(Locale.US)), 0);
+            } catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return keepDays > 0 ? keepDays + "d" : action.name().toLowerCase(Locale.US);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.util.Random;
+
+/**
+ * Tracks the consecutive upload failures for each remote, and decides how long to back off before the next attempt.
+ * <p>
+ * The backoff starts at the {@link FailureClass#getBaseBackoffMillis()} of the most recent failure and doubles with each consecutive failure, up to the
+ * class's maximum.  Equal jitter is applied so that a fleet of devices that lost the same link don't all retry at the same moment when it comes back.
+ * <p>
+ * Each remote also has a circuit breaker.  After {@link #CIRCUIT_BREAKER_THRESHOLD} consecutive failures, or after a single failure of a class that
+ * {@link FailureClass#opensCircuitImmediately()}, the circuit opens and automatic syncs skip the remote until the backoff has passed.  The next sync is
+ * then a trial, which closes the circuit if it succeeds or reopens it with a longer backoff if it fails.  Manual syncs are always allowed through.
+ * <p>
+ * The state is kept in the {@link AppPreferences}, so it survives the {@code :sync} process being restarted.
+ *
+ * @since 0.0.10
+ */
+public class RetryPolicy
+{
+    private static final String LOG_TAG = RetryPolicy.class.getSimpleName();
+
+    /**
+     * The number of consecutive failures that opens the circuit breaker for a remote.
+     */
+    static final int CIRCUIT_BREAKER_THRESHOLD = 3;
+
+    private static final String PREFERENCE_KEY_PREFIX = "retryPolicy.";
+    private static final String FAILURE_COUNT_SUFFIX = ".consecutiveFailures";
+    private static final String RETRY_AT_SUFFIX = ".retryAt";
+    private static final String CIRCUIT_OPEN_SUFFIX = ".circuitOpen";
+
+    /**
+     * Caps the doubling so the shift can't overflow, which is far beyond the point where every class hits its maximum backoff anyway.
+     */
+    private static final int MAX_DOUBLINGS = 20;
+
+    private final AppPreferences appPreferences;
+    private final Random random = new Random();
+
+    RetryPolicy(Context context)
+    {
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * @param remoteName The name of the remote, such as {@code azureconfig:container}.
+     * @return The time in milliseconds until which the circuit breaker for the remote is open, or zero if syncs to the remote are allowed.
+     */
+    public synchronized long getCircuitOpenUntil(String remoteName)
+    {
+        if (!appPreferences.getBoolean(getKey(remoteName, CIRCUIT_OPEN_SUFFIX), false)) return 0;
+
+        final long retryAt = appPreferences.getLong(getKey(remoteName, RETRY_AT_SUFFIX), 0);
+        return retryAt > System.currentTimeMillis() ? retryAt : 0;
+    }
+
+    /**
+     * @param remoteName The name of the remote, such as {@code azureconfig:container}.
+     * @return The time in milliseconds before which a sync to the remote should not be retried, or zero if it is not backing off.
+     */
+    public synchronized long getRetryAt(String remoteName)
+    {
+        final long retryAt = appPreferences.getLong(getKey(remoteName, RETRY_AT_SUFFIX), 0);
+        return retryAt > System.currentTimeMillis() ? retryAt : 0;
+    }
+
+    /**
+     * Records a failed sync to the provided remote.
+     *
+     * @param remoteName   The name of the remote, such as {@code azureconfig:container}.
+     * @param failureClass The class of the failure.
+     * @return The time in milliseconds before which the sync should not be retried.
+     */
+    public synchronized long recordFailure(String remoteName, FailureClass failureClass)
+    {
+        final int failureCount = appPreferences.getInt(getKey(remoteName, FAILURE_COUNT_SUFFIX), 0) + 1;
+
+        final long backoffMillis = Math.min(failureClass.getMaxBackoffMillis(),
+                failureClass.getBaseBackoffMillis() << Math.min(failureCount - 1, MAX_DOUBLINGS));
+        final long jitteredBackoffMillis = backoffMillis / 2 + (long) (random.nextDouble() * (backoffMillis / 2));
+        final long retryAt = System.currentTimeMillis() + jitteredBackoffMillis;
+        final boolean circuitOpen = failureCount >= CIRCUIT_BREAKER_THRESHOLD || failureClass.opensCircuitImmediately();
+
+        appPreferences.put(getKey(remoteName, FAILURE_COUNT_SUFFIX), failureCount);
+        appPreferences.put(getKey(remoteName, RETRY_AT_SUFFIX), retryAt);
+        appPreferences.put(getKey(remoteName, CIRCUIT_OPEN_SUFFIX), circuitOpen);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Sync to " + remoteName + " failed " + failureCount + " times in a row, the last with a " + failureClass + " failure, backing off for "
+                    + jitteredBackoffMillis / 1000 + " seconds" + (circuitOpen ? " with the circuit breaker open" : ""));
+        }
+        return retryAt;
+    }
+
+    /**
+     * Records a successful sync to the provided remote, which resets the backoff and closes the circuit breaker.
+     */
+    public synchronized void recordSuccess(String remoteName)
+    {
+        if (appPreferences.getInt(getKey(remoteName, FAILURE_COUNT_SUFFIX), 0) == 0) return;
+
+        Log.i(LOG_TAG, "Sync to " + remoteName + " succeeded, resetting the backoff");
+        reset(remoteName);
+    }
+
+    /**
+     * Forgets the failures of the provided remote, which resets the backoff and closes the circuit breaker.
+     */
+    public synchronized void reset(String remoteName)
+    {
+        appPreferences.remove(getKey(remoteName, FAILURE_COUNT_SUFFIX));
+        appPreferences.remove(getKey(remoteName, RETRY_AT_SUFFIX));
+        appPreferences.remove(getKey(remoteName, CIRCUIT_OPEN_SUFFIX));
+    }
+
+    /**
+     * Resets the backoff and closes the circuit breaker of the remote for the configured container.  This is called when the SAS URL or the container
+     * changes, because failures with the old configuration, such as an {@link FailureClass#AUTHENTICATION} failure that holds the circuit open for
+     * hours, say nothing about whether the new one works.
+     */
+    public static void resetConfiguredRemote(Context context)
+    {
+        final RetryPolicy retryPolicy = new RetryPolicy(context);
+        final String remoteName = retryPolicy.getConfiguredRemoteName();
+        if (remoteName == null) return;
+
+        Log.i(LOG_TAG, "The configuration of " + remoteName + " changed, resetting the backoff");
+        retryPolicy.reset(remoteName);
+    }
+
+    /**
+     * @return The time in milliseconds before which a sync to the remote for the configured container should not be retried, which covers both the
+     * backoff and an open circuit breaker, or zero if it is not backing off.
+     */
+    public static long getConfiguredRemoteRetryAt(Context context)
+    {
+        final RetryPolicy retryPolicy = new RetryPolicy(context);
+        final String remoteName = retryPolicy.getConfiguredRemoteName();
+        return remoteName == null ? 0 : retryPolicy.getRetryAt(remoteName);
+    }
+
+    private String getConfiguredRemoteName()
+    {
+        final String containerName = appPreferences.getString(SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY, null);
+        return containerName == null ? null : SyncMonkeyConstants.AZURE_CONFIG_NAME + SyncMonkeyConstants.COLON_SEPARATOR + containerName;
+    }
+
+    private static String getKey(String remoteName, String suffix)
+    {
+        return PREFERENCE_KEY_PREFIX + remoteName + suffix;
+    }
+}
@@ -0,0 +1,326 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Packs the small files in a {@link SyncPlan} into size-bounded tar bundles, so that each bundle is uploaded as a single object instead of one object per
+ * file.  Each bundle starts with an index member that lists the path, size, and modified time of every file in it, one file per line with the fields
+ * separated by tabs.  A file whose path contains a tab or a line break would corrupt the index, so it is never bundled and is uploaded on its own.
+ * <p>
+ * Bundling is idempotent.  Files are only bundled once they are in a plan, which means the {@link UploadManifest} has not recorded them as uploaded, and
+ * they are recorded as uploaded once their bundle is.  The bundle name is derived from the bundled files, and the bundle's modified time is set to the
+ * newest of its files, so if a sync dies after a bundle is uploaded but before the manifest is updated, the same bundle is rebuilt and rclone sees that it
+ * is already on the remote.
+ *
+ * @since 0.0.10
+ */
+public class SmallFileBundler
+{
+    private static final String LOG_TAG = SmallFileBundler.class.getSimpleName();
+
+    /**
+     * The remote directory, under the device's folder, that bundles are uploaded to.
+     */
+    static final String BUNDLE_DIRECTORY_NAME = "_syncmonkey_bundles";
+    static final String INDEX_MEMBER_NAME = ".syncmonkey-bundle-index.tsv";
+
+    private static final long MAX_BUNDLE_SIZE = 16L * 1024 * 1024;
+    private static final int MIN_FILES_PER_BUNDLE = 2;
+
+    /**
+     * Builds bundles from the files in the provided list that are smaller than the threshold.
+     *
+     * @param fileEntries     The files that are about to be uploaded.
+     * @param thresholdBytes  Files smaller than this are bundled.
+     * @param compress        True to gzip each bundle.
+     * @param bundleDirectory The cache directory to write the bundles to.  Anything already in it is removed.
+     * @return The bundles that were built.  Files that could not be bundled are left out so that they are uploaded on their own.
+     * @throws IOException If the bundle directory could not be created.
+     */
+    public Bundles bundle(List<LocalFileEntry> fileEntries, long thresholdBytes, boolean compress, File bundleDirectory) throws IOException
+    {
+        SyncPlan.deleteStaging(bundleDirectory);
+        if (!bundleDirectory.mkdirs()) throw new IOException("Could not create the bundle directory " + bundleDirectory);
+
+        final List<LocalFileEntry> smallEntries = new ArrayList<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            final String relativePath = fileEntry.getRelativePath();
+            if (fileEntry.getSize() < thresholdBytes && fitsIndex(relativePath) && TarWriter.fitsHeader(relativePath)) smallEntries.add(fileEntry);
+        }
+        Collections.sort(smallEntries, Comparator.comparing(LocalFileEntry::getRelativePath));
+
+        final Bundles bundles = new Bundles();
+
+        List<LocalFileEntry> group = new ArrayList<>();
+        long groupSize = 0;
+        for (LocalFileEntry smallEntry : smallEntries)
+        {
+            final long memberSize = TarWriter.getMemberSize(smallEntry.getSize());
+            if (!group.isEmpty() && groupSize + memberSize > MAX_BUNDLE_SIZE)
+            {
+                writeBundle(group, compress, bundleDirectory, bundles);
+                group = new ArrayList<>();
+                groupSize = 0;
+            }
+            group.add(smallEntry);
+            groupSize += memberSize;
+        }
+        writeBundle(group, compress, bundleDirectory, bundles);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Bundled " + bundles.bundledRelativePaths.size() + " small files into " + bundles.bundleFilesByRelativePath.size() + " bundles");
+        }
+        return bundles;
+    }
+
+    private void writeBundle(List<LocalFileEntry> members, boolean compress, File bundleDirectory, Bundles bundles)
+    {
+        if (members.size() < MIN_FILES_PER_BUNDLE) return;
+
+        final String bundleName = getBundleName(members) + (compress ? ".tar.gz" : ".tar");
+        final File bundleFile = new File(bundleDirectory, bundleName);
+
+        long newestModified = 0;
+        try (final OutputStream fileOutputStream = new BufferedOutputStream(new FileOutputStream(bundleFile));
+             final OutputStream bundleOutputStream = compress ? new GZIPOutputStream(fileOutputStream) : fileOutputStream)
+        {
+            final TarWriter tarWriter = new TarWriter(bundleOutputStream);
+
+            final StringBuilder index = new StringBuilder();
+            for (LocalFileEntry member : members)
+            {
+                index.append(member.getRelativePath()).append('\t').append(member.getSize()).append('\t').append(member.getLastModified()).append('\n');
+                newestModified = Math.max(newestModified, member.getLastModified());
+            }
+            final byte[] indexBytes = index.toString().getBytes(StandardCharsets.UTF_8);
+            tarWriter.writeMember(INDEX_MEMBER_NAME, indexBytes.length, newestModified, new ByteArrayInputStream(indexBytes));
+
+            for (LocalFileEntry member : members)
+            {
+                final File file = member.getFile();
+                try (final InputStream inputStream = new FileInputStream(file))
+                {
+                    tarWriter.writeMember(member.getRelativePath(), member.getSize(), member.getLastModified(), inputStream);
+                }
+
+                // A file that changed while it was being read would not match its index entry
+                if (file.length() != member.getSize() || file.lastModified() != member.getLastModified())
+                {
+                    throw new IOException(member.getPath() + " changed while it was being bundled");
+                }
+            }
+
+            tarWriter.finish();
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not build the bundle " + bundleName + ", its files will be uploaded individually", e);
+            //noinspection ResultOfMethodCallIgnored
+            bundleFile.delete();
+            return;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        bundleFile.setLastModified(newestModified);
+
+        bundles.bundleFilesByRelativePath.put(BUNDLE_DIRECTORY_NAME + "/" + bundleName, bundleFile);
+        for (LocalFileEntry member : members)
+        {
+            bundles.bundledRelativePaths.add(member.getRelativePath());
+        }
+    }
+
+    /**
+     * @return True if the path can be written to the index without being mistaken for a field or line separator.
+     */
+    private static boolean fitsIndex(String relativePath)
+    {
+        return relativePath.indexOf('\t') < 0 && relativePath.indexOf('\n') < 0 && relativePath.indexOf('\r') < 0;
+    }
+
+    /**
+     * @return A name that only depends on the path, size, and modified time of the members, so the same set of files always produces the same bundle.
+     */
+    private static String getBundleName(List<LocalFileEntry> members)
+    {
+        final XxHash64 xxHash64 = new XxHash64();
+        for (LocalFileEntry member : members)
+        {
+            final byte[] descriptor = (member.getRelativePath() + '\0' + member.getSize() + '\0' + member.getLastModified() + '\n')
+                    .getBytes(StandardCharsets.UTF_8);
+            xxHash64.update(descriptor, 0, descriptor.length);
+        }
+        return "bundle-" + xxHash64.getHexValue();
+    }
+
+    /**
+     * The bundles built for a single sync.
+     */
+    public static class Bundles
+    {
+        private final Map<String, File> bundleFilesByRelativePath = new LinkedHashMap<>();
+        private final Set<String> bundledRelativePaths = new HashSet<>();
+
+        /**
+         * @return Each bundle file, keyed by the path it should be uploaded to relative to the device's remote folder.
+         */
+        public Map<String, File> getBundleFilesByRelativePath()
+        {
+            return Collections.unmodifiableMap(bundleFilesByRelativePath);
+        }
+
+        /**
+         * @return The relative paths of the files that are in a bundle, which must not also be uploaded on their own.
+         */
+        public Set<String> getBundledRelativePaths()
+        {
+            return Collections.unmodifiableSet(bundledRelativePaths);
+        }
+
+        public boolean isEmpty()
+        {
+            return bundleFilesByRelativePath.isEmpty();
+        }
+    }
+
+    /**
+     * A minimal writer for POSIX ustar archives, which is all that is needed to bundle regular files.
+     */
+    private static class TarWriter
+    {
+        private static final int BLOCK_SIZE = 512;
+        private static final int NAME_LENGTH = 100;
+        private static final int PREFIX_LENGTH = 155;
+
+        private final OutputStream outputStream;
+        private final byte[] copyBuffer = new byte[64 * 1024];
+
+        TarWriter(OutputStream outputStream)
+        {
+            this.outputStream = outputStream;
+        }
+
+        /**
+         * @return The number of bytes a member of the provided size takes up in the archive, including its header and padding.
+         */
+        static long getMemberSize(long size)
+        {
+            return BLOCK_SIZE + ((size + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        }
+
+        /**
+         * @return True if the path fits in a ustar header, either in the name field alone or split between the prefix and name fields.
+         */
+        static boolean fitsHeader(String path)
+        {
+            return splitPath(path) != null;
+        }
+
+        /**
+         * @return The prefix and name for the path, or null if it does not fit.
+         */
+        private static String[] splitPath(String path)
+        {
+            final int length = path.getBytes(StandardCharsets.UTF_8).length;
+            if (length <= NAME_LENGTH) return new String[]{"", path};
+
+            for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1))
+            {
+                final String prefix = path.substring(0, i);
+                final String name = path.substring(i + 1);
+                if (prefix.getBytes(StandardCharsets.UTF_8).length <= PREFIX_LENGTH && name.getBytes(StandardCharsets.UTF_8).length <= NAME_LENGTH)
+                {
+                    return new String[]{prefix, name};
+                }
+            }
+            return null;
+        }
+
+        void writeMember(String path, long size, long lastModified, InputStream inputStream) throws IOException
+        {
+            final String[] prefixAndName = splitPath(path);
+            if (prefixAndName == null) throw new IOException("The path is too long for a tar header: " + path);
+
+            final byte[] header = new byte[BLOCK_SIZE];
+            putString(header, 0, NAME_LENGTH, prefixAndName[1]);
+            putOctal(header, 100, 8, 0644);
+            putOctal(header, 108, 8, 0);
+            putOctal(header, 116, 8, 0);
+            putOctal(header, 124, 12, size);
+            putOctal(header, 136, 12, lastModified / 1000);
+            header[156] = '0';
+            putString(header, 257, 6, "ustar");
+            putString(header, 263, 2, "00");
+            putString(header, 345, PREFIX_LENGTH, prefixAndName[0]);
+
+            // The checksum is calculated with the checksum field itself filled with spaces
+            for (int i = 148; i < 156; i++) header[i] = ' ';
+            long checksum = 0;
+            for (byte b : header) checksum += b & 0xFF;
+            putOctal(header, 148, 7, checksum);
+            header[155] = ' ';
+
+            outputStream.write(header);
+
+            long remaining = size;
+            while (remaining > 0)
+            {
+                final int read = inputStream.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+                if (read < 0) throw new IOException(path + " is shorter than expected");
+                outputStream.write(copyBuffer, 0, read);
+                remaining -= read;
+            }
+
+            final int padding = (int) ((BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE);
+            outputStream.write(new byte[padding]);
+        }
+
+        /**
+         * Writes the two empty blocks that mark the end of the archive.
+         */
+        void finish() throws IOException
+        {
+            outputStream.write(new byte[BLOCK_SIZE * 2]);
+            outputStream.flush();
+        }
+
+        private static void putString(byte[] header, int offset, int length, String value)
+        {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+        }
+
+        /**
+         * Writes the value as a zero padded octal number followed by a NUL, filling the field.
+         */
+        private static void putOctal(byte[] header, int offset, int length, long value)
+        {
+            final String octal = Long.toOctalString(value);
+            final StringBuilder field = new StringBuilder(length);
+            for (int i = octal.length(); i < length - 1; i++) field.append('0');
+            field.append(octal);
+            putString(header, offset, length - 1, field.toString());
+            header[offset + length - 1] = 0;
+        }
+    }
+}
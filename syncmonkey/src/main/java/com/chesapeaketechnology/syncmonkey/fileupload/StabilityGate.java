@@ -0,0 +1,103 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds back the files that are still being written, such as the log files that NetworkSurvey and GPSMonkey keep appending to, so a partial file is not
+ * uploaded on every sync with a new size each time.
+ * <p>
+ * A file is handed to the uploader once it has not been modified for the quiet period from the user preferences.  Appending to a file always updates its
+ * modified time, so a modified time older than the quiet period means neither the size nor the modified time changed during it.  A producer that knows
+ * when a file is complete can release it straight away by creating a completion marker next to it, which is a file with the same name plus the marker
+ * suffix from the user preferences, such as {@code survey.csv.done}.
+ * <p>
+ * Each deferred file is recorded in the {@link ChangeJournal}, so the next change in the sync directories triggers a targeted sync that re-checks just
+ * those files instead of walking the sync directories again.  The files shared with this app are copied in whole, so they are never held back.
+ *
+ * @since 0.0.10
+ */
+public class StabilityGate
+{
+    private static final String LOG_TAG = StabilityGate.class.getSimpleName();
+
+    private final Context context;
+    private final AppPreferences appPreferences;
+    private final ChangeJournal changeJournal;
+
+    StabilityGate(Context context)
+    {
+        this.context = context;
+        appPreferences = new AppPreferences(context);
+        changeJournal = new ChangeJournal(context);
+    }
+
+    /**
+     * Removes the files that are not stable yet from the provided list, and records them to be re-checked.
+     *
+     * @param syncDirectory The sync directory the files were found in.
+     * @param fileEntries   The new or changed files in the sync directory.
+     * @return The files that are ready to be uploaded.
+     */
+    public List<LocalFileEntry> filterStableFiles(File syncDirectory, List<LocalFileEntry> fileEntries)
+    {
+        final long quietPeriodMillis = getQuietPeriodSeconds() * 1000L;
+        if (quietPeriodMillis <= 0 || fileEntries.isEmpty()) return fileEntries;
+        if (syncDirectory.equals(new File(context.getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY))) return fileEntries;
+
+        final String markerSuffix = appPreferences.getString(SyncMonkeyConstants.PROPERTY_COMPLETION_MARKER_SUFFIX_KEY, "");
+        final long modifiedBefore = System.currentTimeMillis() - quietPeriodMillis;
+
+        final List<LocalFileEntry> stableFiles = new ArrayList<>();
+        int deferredCount = 0;
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (fileEntry.getLastModified() <= modifiedBefore || hasCompletionMarker(fileEntry, markerSuffix))
+            {
+                stableFiles.add(fileEntry);
+            } else
+            {
+                changeJournal.record(fileEntry.getPath());
+                deferredCount++;
+            }
+        }
+
+        if (deferredCount > 0 && Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            Log.i(LOG_TAG, "Holding back " + deferredCount + " files in " + syncDirectory + " that were modified in the last " + quietPeriodMillis / 1000
+                    + " seconds");
+        }
+        return stableFiles;
+    }
+
+    private static boolean hasCompletionMarker(LocalFileEntry fileEntry, String markerSuffix)
+    {
+        if (markerSuffix == null || markerSuffix.isEmpty()) return false;
+
+        // The marker itself is complete as soon as it exists
+        if (fileEntry.getRelativePath().endsWith(markerSuffix)) return true;
+
+        final File file = fileEntry.getFile();
+        return new File(file.getParentFile(), file.getName() + markerSuffix).exists();
+    }
+
+    private int getQuietPeriodSeconds()
+    {
+        try
+        {
+            return Math.max(0, appPreferences.getInt(SyncMonkeyConstants.PROPERTY_STABLE_QUIET_SECONDS_KEY, 0));
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The " + SyncMonkeyConstants.PROPERTY_STABLE_QUIET_SECONDS_KEY + " preference is not a valid integer, no files are held back", e);
+            return 0;
+        }
+    }
+}
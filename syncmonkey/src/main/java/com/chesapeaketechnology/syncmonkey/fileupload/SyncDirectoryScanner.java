@@ -0,0 +1,477 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a sync directory and hands each file that passes the scan filters from the user preferences to a consumer, so the upload path only ever sees the
+ * files it should consider.  The filters are:
+ * <ul>
+ * <li>Include and exclude globs, separated by colons.  A glob without a '/' matches the name of a file or directory, and one with a '/' matches its path
+ * relative to the sync directory.  {@code *} and {@code ?} don't match a '/', {@code **} matches across directories, and {@code {a,b}} and {@code [abc]}
+ * are supported.  A directory that matches an exclude glob is not walked at all.</li>
+ * <li>A maximum depth, where the files directly in the sync directory are at depth 1.</li>
+ * <li>A maximum file size and a maximum file age.</li>
+ * </ul>
+ * Each directory is walked as a fork/join task, so the subdirectories are walked in parallel.  On Android O and later the entries are streamed from a
+ * {@link DirectoryStream}, so a directory with hundreds of thousands of entries is never loaded all at once, and only the consumer decides what to keep.
+ * Older versions list each directory with {@link File#listFiles()}.
+ * <p>
+ * Symbolic links are followed, since rclone uploads the files they point to, except for a link to a directory that the link is inside of, or to a
+ * directory that is already being walked further up the same branch, such as two directories that link to each other, which would loop forever.  The
+ * other sync directories that are inside the one being walked are skipped, so when one sync directory is inside another, its files are only found by
+ * the scan of the inner directory, and a file is never uploaded to two remote paths.
+ *
+ * @since 0.0.10
+ */
+public class SyncDirectoryScanner
+{
+    private static final String LOG_TAG = SyncDirectoryScanner.class.getSimpleName();
+
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024;
+    private static final long MILLIS_IN_DAY = 24L * SyncMonkeyConstants.SECONDS_IN_HOUR * 1000;
+
+    private final AppPreferences appPreferences;
+
+    SyncDirectoryScanner(Context context)
+    {
+        appPreferences = new AppPreferences(context);
+    }
+
+    /**
+     * @return The filter from the current user preferences, which should be used for a whole sync so every directory is filtered the same way.
+     */
+    public Filter loadFilter()
+    {
+        return new Filter(parseGlobs(appPreferences.getString(SyncMonkeyConstants.PROPERTY_SCAN_INCLUDE_KEY, "")),
+                parseGlobs(appPreferences.getString(SyncMonkeyConstants.PROPERTY_SCAN_EXCLUDE_KEY, "")),
+                getPositiveInt(SyncMonkeyConstants.PROPERTY_SCAN_MAX_DEPTH_KEY),
+                getPositiveInt(SyncMonkeyConstants.PROPERTY_SCAN_MAX_FILE_MEGABYTES_KEY) * BYTES_PER_MEGABYTE,
+                getPositiveInt(SyncMonkeyConstants.PROPERTY_SCAN_MAX_FILE_AGE_DAYS_KEY) * MILLIS_IN_DAY);
+    }
+
+    /**
+     * Walks the provided sync directory, and passes every file that the filter accepts to the consumer.  The consumer is called from several threads at
+     * once, so it must be thread safe.
+     *
+     * @param syncDirectory      The sync directory to walk.
+     * @param syncDirectoryPaths All the sync directories, whose subtrees are left for their own scans if they are inside this one.  The sync directories
+     *                           that this one is inside of have no effect.
+     * @param filter             The filter from {@link #loadFilter()}.
+     * @param consumer           Receives each accepted file, with its path relative to the sync directory.
+     */
+    public void scan(File syncDirectory, Collection<String> syncDirectoryPaths, Filter filter, Consumer<LocalFileEntry> consumer)
+    {
+        final String rootPath = getCanonicalPath(syncDirectory);
+        if (rootPath == null || !syncDirectory.isDirectory()) return;
+
+        final Set<String> otherRootPaths = new HashSet<>();
+        for (String syncDirectoryPath : syncDirectoryPaths)
+        {
+            final String otherRootPath = getCanonicalPath(new File(syncDirectoryPath));
+            if (otherRootPath != null && otherRootPath.startsWith(rootPath + File.separator)) otherRootPaths.add(otherRootPath);
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final Scan scan = new Scan(filter, consumer, otherRootPaths);
+        final ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try
+        {
+            forkJoinPool.invoke(new DirectoryTask(scan, syncDirectory, rootPath, "", 0, Collections.singleton(rootPath)));
+        } finally
+        {
+            forkJoinPool.shutdown();
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+        {
+            Log.d(LOG_TAG, "Scanned " + scan.directoryCount.get() + " directories in " + syncDirectory + " in " + (System.currentTimeMillis() - startTime)
+                    + " ms");
+        }
+    }
+
+    private int getPositiveInt(String key)
+    {
+        try
+        {
+            return Math.max(0, appPreferences.getInt(key, 0));
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The " + key + " preference is not a valid integer, the scan is not limited by it", e);
+            return 0;
+        }
+    }
+
+    static List<Glob> parseGlobs(String globsProperty)
+    {
+        if (globsProperty == null || globsProperty.trim().isEmpty()) return Collections.emptyList();
+
+        final List<Glob> globs = new ArrayList<>();
+        for (String glob : globsProperty.split(SyncMonkeyConstants.COLON_SEPARATOR))
+        {
+            if (!glob.trim().isEmpty()) globs.add(new Glob(glob.trim()));
+        }
+        return globs;
+    }
+
+    /**
+     * @return The canonical path of the file, or null if it could not be resolved.
+     */
+    private static String getCanonicalPath(File file)
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        } catch (IOException e)
+        {
+            Log.w(LOG_TAG, "Could not resolve the canonical path of " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * The filters that decide which files are handed to the upload path.
+     */
+    public static class Filter
+    {
+        private final List<Glob> includeGlobs;
+        private final List<Glob> excludeGlobs;
+        private final int maxDepth;
+        private final long maxFileBytes;
+        private final long modifiedAfter;
+
+        Filter(List<Glob> includeGlobs, List<Glob> excludeGlobs, int maxDepth, long maxFileBytes, long maxFileAgeMillis)
+        {
+            this.includeGlobs = includeGlobs;
+            this.excludeGlobs = excludeGlobs;
+            this.maxDepth = maxDepth;
+            this.maxFileBytes = maxFileBytes;
+            modifiedAfter = maxFileAgeMillis > 0 ? System.currentTimeMillis() - maxFileAgeMillis : 0;
+        }
+
+        /**
+         * Checks a file that was not found by a scan, such as one recorded in the {@link ChangeJournal}, including whether any of the directories it is
+         * in are excluded.
+         *
+         * @return True if the file should be considered for upload.
+         */
+        public boolean accepts(LocalFileEntry fileEntry)
+        {
+            final String relativePath = fileEntry.getRelativePath();
+            for (int slash = relativePath.indexOf('/'); slash >= 0; slash = relativePath.indexOf('/', slash + 1))
+            {
+                if (isExcludedDirectory(relativePath.substring(0, slash))) return false;
+            }
+            return acceptsFile(fileEntry);
+        }
+
+        /**
+         * Checks a file whose directories have already been checked by the scan.
+         */
+        private boolean acceptsFile(LocalFileEntry fileEntry)
+        {
+            if (maxFileBytes > 0 && fileEntry.getSize() > maxFileBytes) return false;
+            if (fileEntry.getLastModified() < modifiedAfter) return false;
+
+            final String relativePath = fileEntry.getRelativePath();
+            if (maxDepth > 0 && getDepth(relativePath) > maxDepth) return false;
+            if (matchesAny(excludeGlobs, relativePath)) return false;
+            return includeGlobs.isEmpty() || matchesAny(includeGlobs, relativePath);
+        }
+
+        private boolean isExcludedDirectory(String relativePath)
+        {
+            return matchesAny(excludeGlobs, relativePath);
+        }
+
+        /**
+         * @return True if the files in a directory at the provided depth are within the maximum depth.
+         */
+        private boolean isWithinDepth(int directoryDepth)
+        {
+            return maxDepth <= 0 || directoryDepth < maxDepth;
+        }
+
+        private static boolean matchesAny(List<Glob> globs, String relativePath)
+        {
+            for (Glob glob : globs)
+            {
+                if (glob.matches(relativePath)) return true;
+            }
+            return false;
+        }
+
+        private static int getDepth(String relativePath)
+        {
+            int depth = 1;
+            for (int i = 0; i < relativePath.length(); i++)
+            {
+                if (relativePath.charAt(i) == '/') depth++;
+            }
+            return depth;
+        }
+    }
+
+    /**
+     * A glob converted to a regular expression.  A glob without a '/' is matched against the last segment of the path only.
+     */
+    static class Glob
+    {
+        private final Pattern pattern;
+        private final boolean nameOnly;
+
+        Glob(String glob)
+        {
+            nameOnly = glob.indexOf('/') < 0;
+            pattern = Pattern.compile(toRegex(glob));
+        }
+
+        boolean matches(String relativePath)
+        {
+            final String path = nameOnly ? relativePath.substring(relativePath.lastIndexOf('/') + 1) : relativePath;
+            return pattern.matcher(path).matches();
+        }
+
+        private static String toRegex(String glob)
+        {
+            final StringBuilder regex = new StringBuilder();
+            boolean inGroup = false;
+            for (int i = 0; i < glob.length(); i++)
+            {
+                final char c = glob.charAt(i);
+                switch (c)
+                {
+                    case '*':
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+                        {
+                            i++;
+                            if (i + 1 < glob.length() && glob.charAt(i + 1) == '/')
+                            {
+                                i++;
+                                regex.append("(?:.*/)?"); // "**/" also matches no directories at all
+                            } else if (regex.length() > 0 && regex.charAt(regex.length() - 1) == '/')
+                            {
+                                regex.setLength(regex.length() - 1);
+                                regex.append("(?:/.*)?"); // "dir/**" also matches the directory itself
+                            } else
+                            {
+                                regex.append(".*");
+                            }
+                        } else
+                        {
+                            regex.append("[^/]*");
+                        }
+                        break;
+                    case '?':
+                        regex.append("[^/]");
+                        break;
+                    case '{':
+                        regex.append("(?:");
+                        inGroup = true;
+                        break;
+                    case '}':
+                        regex.append(inGroup ? ")" : "\\}");
+                        inGroup = false;
+                        break;
+                    case ',':
+                        regex.append(inGroup ? "|" : ",");
+                        break;
+                    case '[':
+                        final int end = glob.indexOf(']', i + 1);
+                        if (end < 0)
+                        {
+                            regex.append("\\[");
+                        } else
+                        {
+                            String characterClass = glob.substring(i + 1, end);
+                            if (characterClass.startsWith("!")) characterClass = "^" + characterClass.substring(1);
+                            regex.append('[').append(characterClass.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                            i = end;
+                        }
+                        break;
+                    case '\\':
+                        if (i + 1 < glob.length()) regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                        break;
+                    default:
+                        if ("().+^$|]".indexOf(c) >= 0) regex.append('\\');
+                        regex.append(c);
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    /**
+     * The state shared by all the directory tasks of a single scan.
+     */
+    private static class Scan
+    {
+        private final Filter filter;
+        private final Consumer<LocalFileEntry> consumer;
+        private final Set<String> otherRootPaths;
+        private final AtomicInteger directoryCount = new AtomicInteger();
+
+        private Scan(Filter filter, Consumer<LocalFileEntry> consumer, Set<String> otherRootPaths)
+        {
+            this.filter = filter;
+            this.consumer = consumer;
+            this.otherRootPaths = otherRootPaths;
+        }
+
+        /**
+         * @return True if the provided directory is another sync directory inside the one being scanned, or is inside one.
+         */
+        private boolean isInOtherRoot(String canonicalPath)
+        {
+            for (String otherRootPath : otherRootPaths)
+            {
+                if (canonicalPath.equals(otherRootPath) || canonicalPath.startsWith(otherRootPath + File.separator)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Walks the entries of a single directory, passing the files to the consumer and forking a task for each subdirectory.
+     */
+    private static class DirectoryTask extends RecursiveAction
+    {
+        private final Scan scan;
+        private final File directory;
+        private final String canonicalPath;
+        private final String relativePath;
+        private final int depth;
+
+        /**
+         * The canonical paths of this directory and every directory above it on the branch that led here.
+         */
+        private final Set<String> branchPaths;
+        private final List<DirectoryTask> subtasks = new ArrayList<>();
+
+        private DirectoryTask(Scan scan, File directory, String canonicalPath, String relativePath, int depth, Set<String> branchPaths)
+        {
+            this.scan = scan;
+            this.directory = directory;
+            this.canonicalPath = canonicalPath;
+            this.relativePath = relativePath;
+            this.depth = depth;
+            this.branchPaths = branchPaths;
+        }
+
+        @Override
+        protected void compute()
+        {
+            scan.directoryCount.incrementAndGet();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            {
+                listWithDirectoryStream();
+            } else
+            {
+                listWithFile();
+            }
+            invokeAll(subtasks);
+        }
+
+        @TargetApi(Build.VERSION_CODES.O)
+        private void listWithDirectoryStream()
+        {
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory.toPath()))
+            {
+                for (Path child : directoryStream)
+                {
+                    final BasicFileAttributes attributes;
+                    try
+                    {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class); // Follows symbolic links, like the upload does
+                    } catch (IOException e)
+                    {
+                        continue; // A broken symbolic link, or a file that was deleted while it was being listed
+                    }
+
+                    visit(child.toFile(), attributes.isDirectory(), attributes.isRegularFile(), attributes.size(), attributes.lastModifiedTime().toMillis());
+                }
+            } catch (IOException | DirectoryIteratorException e)
+            {
+                Log.w(LOG_TAG, "Could not list " + directory, e);
+            }
+        }
+
+        private void listWithFile()
+        {
+            final File[] children = directory.listFiles();
+            if (children == null) return;
+
+            for (File child : children)
+            {
+                final boolean isDirectory = child.isDirectory();
+                final boolean isFile = !isDirectory && child.isFile();
+                visit(child, isDirectory, isFile, isFile ? child.length() : 0, isFile ? child.lastModified() : 0);
+            }
+        }
+
+        private void visit(File child, boolean isDirectory, boolean isFile, long size, long lastModified)
+        {
+            final String childRelativePath = relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName();
+            if (isDirectory)
+            {
+                if (!scan.filter.isWithinDepth(depth + 1) || scan.filter.isExcludedDirectory(childRelativePath)) return;
+
+                final String childCanonicalPath = getCanonicalPath(child);
+                if (childCanonicalPath == null) return;
+
+                // A symbolic link to this directory or one of its parents would be walked forever
+                final boolean symbolicLink = !childCanonicalPath.equals(canonicalPath + File.separator + child.getName());
+                if (symbolicLink && (canonicalPath + File.separator).startsWith(childCanonicalPath + File.separator))
+                {
+                    Log.w(LOG_TAG, "Not walking " + child + " because it links to one of its own parent directories");
+                    return;
+                }
+
+                // Links can also loop through other directories, such as two directories that each link to the other
+                if (branchPaths.contains(childCanonicalPath))
+                {
+                    Log.w(LOG_TAG, "Not walking " + child + " because it links back to a directory that is already being walked");
+                    return;
+                }
+                if (scan.isInOtherRoot(childCanonicalPath))
+                {
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Not walking " + child + " because it is scanned as its own sync directory");
+                    return;
+                }
+
+                final Set<String> childBranchPaths = new HashSet<>(branchPaths);
+                childBranchPaths.add(childCanonicalPath);
+                subtasks.add(new DirectoryTask(scan, child, childCanonicalPath, childRelativePath, depth + 1, childBranchPaths));
+            } else if (isFile)
+            {
+                final LocalFileEntry fileEntry = new LocalFileEntry(child, childRelativePath, size, lastModified);
+                if (scan.filter.acceptsFile(fileEntry)) scan.consumer.accept(fileEntry);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watches the configured sync directories, and the private {@link SyncMonkeyConstants#PRIVATE_SHARED_SYNC_DIRECTORY}, for files that have finished being
+ * written or have been moved in.  Each changed path is recorded in the {@link ChangeJournal}, and once the changes settle a targeted sync is requested so
+ * that only those files are uploaded.  The periodic sync scheduled by {@link FileUploadSyncAdapter#addPeriodicSync(Context)} remains as a safety net for
+ * any changes that happen while this process is not running.  The watcher is run by the {@link LiveSyncService}, which keeps the process alive after the
+ * UI is closed.
+ * <p>
+ * {@link FileObserver} is not recursive, so an observer is created for every sub-directory, and new sub-directories are picked up as they are created.
+ * <p>
+ * When any files are configured to be streamed, each write to a file is also passed on to the {@link TailStreamer}, so it doesn't have to walk the sync
+ * directories to find the files that are growing.
+ *
+ * @since 0.0.10
+ */
+public class SyncDirectoryWatcher
+{
+    private static final String LOG_TAG = SyncDirectoryWatcher.class.getSimpleName();
+
+    /**
+     * How long to wait after the last change before requesting a sync, so a burst of files results in a single sync.
+     */
+    private static final long SYNC_DEBOUNCE_MILLIS = 30_000;
+
+    /**
+     * Each observer holds an inotify watch, so cap the number of directories to avoid exhausting the per-user watch limit.
+     */
+    private static final int MAX_WATCHED_DIRECTORIES = 512;
+
+    private static final int FILE_EVENT_MASK = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO;
+    private static final int DIRECTORY_EVENT_MASK = FileObserver.CREATE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    private static final int TAIL_STREAM_EVENT_MASK = FileObserver.MODIFY;
+
+    private static SyncDirectoryWatcher instance;
+
+    private final Context context;
+    private final ChangeJournal changeJournal;
+    private final Handler handler;
+    private final Map<String, DirectoryObserver> observers = new HashMap<>();
+    private final Runnable requestSyncRunnable;
+
+    /**
+     * The events that new observers are created with, which only includes the {@link #TAIL_STREAM_EVENT_MASK} when files are being streamed.
+     */
+    private int eventMask = FILE_EVENT_MASK | DIRECTORY_EVENT_MASK;
+
+    /**
+     * @return The single watcher for this process.
+     */
+    public static synchronized SyncDirectoryWatcher getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new SyncDirectoryWatcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SyncDirectoryWatcher(Context context)
+    {
+        this.context = context;
+        changeJournal = new ChangeJournal(context);
+
+        final HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+
+        requestSyncRunnable = () -> FileUploadSyncAdapter.requestTargetedSync(this.context);
+    }
+
+    /**
+     * Starts watching the directories from the current user preferences.  Any directories that were previously being watched are dropped first, so this
+     * can also be called after the sync directory preference changes.
+     */
+    public void start()
+    {
+        handler.post(() -> {
+            stopObservers();
+
+            final AppPreferences appPreferences = new AppPreferences(context);
+            final boolean tailStreaming = !SyncDirectoryScanner.parseGlobs(
+                    appPreferences.getString(SyncMonkeyConstants.PROPERTY_TAIL_STREAM_PATTERNS_KEY, "")).isEmpty();
+            eventMask = FILE_EVENT_MASK | DIRECTORY_EVENT_MASK | (tailStreaming ? TAIL_STREAM_EVENT_MASK : 0);
+
+            final String localSyncDirectories = appPreferences.getString(SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY, "");
+            final String dataDirectoryPath = Environment.getExternalStorageDirectory().getPath() + "/";
+
+            // Create the private shared directory up front so that the first shared file is observed
+            final File privateAppFilesSyncDirectory = new File(context.getFilesDir(), SyncMonkeyConstants.PRIVATE_SHARED_SYNC_DIRECTORY);
+            //noinspection ResultOfMethodCallIgnored
+            privateAppFilesSyncDirectory.mkdir();
+            watchTree(privateAppFilesSyncDirectory);
+
+            //noinspection ConstantConditions
+            for (String relativeSyncDirectory : localSyncDirectories.split(SyncMonkeyConstants.COLON_SEPARATOR))
+            {
+                if (relativeSyncDirectory.isEmpty()) continue;
+
+                watchTree(new File(dataDirectoryPath + relativeSyncDirectory));
+            }
+
+            Log.i(LOG_TAG, "Watching " + observers.size() + " directories for changes");
+        });
+    }
+
+    /**
+     * Stops watching all directories.
+     */
+    public void stop()
+    {
+        handler.post(() -> {
+            stopObservers();
+            handler.removeCallbacks(requestSyncRunnable);
+        });
+    }
+
+    private void stopObservers()
+    {
+        for (DirectoryObserver observer : observers.values())
+        {
+            observer.stopWatching();
+        }
+        observers.clear();
+    }
+
+    /**
+     * Adds an observer for the provided directory and all of its sub-directories.  Must be called on the handler thread.
+     */
+    private void watchTree(File rootDirectory)
+    {
+        final Deque<File> directoriesToWatch = new ArrayDeque<>();
+        directoriesToWatch.push(rootDirectory);
+
+        while (!directoriesToWatch.isEmpty())
+        {
+            final File directory = directoriesToWatch.pop();
+            if (!directory.isDirectory()) continue;
+
+            final String path = directory.getAbsolutePath();
+            if (observers.containsKey(path)) continue;
+
+            if (observers.size() >= MAX_WATCHED_DIRECTORIES)
+            {
+                Log.w(LOG_TAG, "Reached the maximum number of watched directories, changes under " + path + " will only be picked up by the periodic sync");
+                return;
+            }
+
+            final DirectoryObserver observer = new DirectoryObserver(path);
+            observers.put(path, observer);
+            observer.startWatching();
+
+            final File[] children = directory.listFiles(File::isDirectory);
+            if (children == null) continue;
+            for (File child : children)
+            {
+                directoriesToWatch.push(child);
+            }
+        }
+    }
+
+    /**
+     * Records every file under the provided directory as changed.  Must be called on the handler thread.
+     */
+    private void recordAllFiles(File rootDirectory)
+    {
+        final Deque<File> directoriesToScan = new ArrayDeque<>();
+        directoriesToScan.push(rootDirectory);
+
+        while (!directoriesToScan.isEmpty())
+        {
+            final File[] children = directoriesToScan.pop().listFiles();
+            if (children == null) continue;
+
+            for (File child : children)
+            {
+                if (child.isDirectory())
+                {
+                    directoriesToScan.push(child);
+                } else
+                {
+                    onFileChanged(child.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private void onFileChanged(String path)
+    {
+        changeJournal.record(path);
+
+        // Restart the debounce window
+        handler.removeCallbacks(requestSyncRunnable);
+        handler.postDelayed(requestSyncRunnable, SYNC_DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Observes a single directory.  Events are delivered on the FileObserver thread, so any change to the set of observers is handed off to the handler
+     * thread.
+     */
+    private class DirectoryObserver extends FileObserver
+    {
+        private final String directoryPath;
+
+        @SuppressWarnings("deprecation")
+        DirectoryObserver(String directoryPath)
+        {
+            super(directoryPath, eventMask);
+            this.directoryPath = directoryPath;
+        }
+
+        @Override
+        public void onEvent(int event, String name)
+        {
+            final int eventType = event & FileObserver.ALL_EVENTS;
+
+            if ((eventType & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0)
+            {
+                handler.post(() -> {
+                    final DirectoryObserver observer = observers.remove(directoryPath);
+                    if (observer != null) observer.stopWatching();
+                });
+                return;
+            }
+
+            if (name == null) return;
+
+            final File changedFile = new File(directoryPath, name);
+
+            if ((eventType & TAIL_STREAM_EVENT_MASK) != 0)
+            {
+                TailStreamer.getInstance(context).onFileModified(changedFile.getAbsolutePath());
+                if ((eventType & ~TAIL_STREAM_EVENT_MASK) == 0) return;
+            }
+
+            if ((eventType & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0 && changedFile.isDirectory())
+            {
+                handler.post(() -> {
+                    watchTree(changedFile);
+
+                    // Files moved in along with a directory never generate their own events, so record them now
+                    if ((eventType & FileObserver.MOVED_TO) != 0) recordAllFiles(changedFile);
+                });
+                return;
+            }
+
+            if ((eventType & FILE_EVENT_MASK) != 0)
+            {
+                handler.post(() -> onFileChanged(changedFile.getAbsolutePath()));
+            }
+        }
+    }
+}
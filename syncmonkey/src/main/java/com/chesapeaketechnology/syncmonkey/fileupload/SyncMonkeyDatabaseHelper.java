@@ -0,0 +1,189 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * The on-device SQLite database used to keep track of the sync state between runs of the sync adapter.  A database is used instead of a flat file so that
+ * the state survives restarts of the {@code :sync} process, and so that individual entries can be looked up without loading the entire history into memory.
+ *
+ * @since 0.0.10
+ */
+public class SyncMonkeyDatabaseHelper extends SQLiteOpenHelper
+{
+    private static final String LOG_TAG = SyncMonkeyDatabaseHelper.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "syncmonkey.db";
+    private static final int DATABASE_VERSION = 8;
+
+    static final String TABLE_UPLOAD_MANIFEST = "upload_manifest";
+    static final String COLUMN_PATH = "path";
+    static final String COLUMN_SIZE = "size";
+    static final String COLUMN_MODIFIED = "modified";
+    static final String COLUMN_HASH = "hash";
+    static final String COLUMN_UPLOADED_AT = "uploaded_at";
+    static final String COLUMN_RELATIVE_PATH = "relative_path";
+
+    static final String TABLE_REMOTE_HASH_CACHE = "remote_hash_cache";
+    static final String COLUMN_REMOTE = "remote";
+    static final String COLUMN_HASH_TYPE = "hash_type";
+    static final String COLUMN_CACHED_AT = "cached_at";
+
+    static final String TABLE_LOCAL_HASH_CACHE = "local_hash_cache";
+    static final String COLUMN_MD5 = "md5";
+    static final String COLUMN_XXH64 = "xxh64";
+
+    static final String TABLE_UPLOAD_QUEUE = "upload_queue";
+    static final String COLUMN_PRIORITY = "priority";
+    static final String COLUMN_ENQUEUED_AT = "enqueued_at";
+
+    static final String TABLE_RESUMABLE_UPLOADS = "resumable_uploads";
+    static final String COLUMN_BLOB_NAME = "blob_name";
+    static final String COLUMN_BLOCK_SIZE = "block_size";
+    static final String COLUMN_UPLOADED_BLOCKS = "uploaded_blocks";
+    static final String COLUMN_UPDATED_AT = "updated_at";
+
+    static final String TABLE_TAIL_STREAMS = "tail_streams";
+    static final String COLUMN_SEGMENT = "segment";
+    static final String COLUMN_SEGMENT_START = "segment_start";
+    static final String COLUMN_STREAMED_OFFSET = "streamed_offset";
+    static final String COLUMN_SEGMENT_BLOCKS = "segment_blocks";
+    static final String COLUMN_INODE = "inode";
+    static final String COLUMN_HEAD_LENGTH = "head_length";
+    static final String COLUMN_HEAD_CRC = "head_crc";
+
+    private static SyncMonkeyDatabaseHelper instance;
+
+    /**
+     * @return The single database helper for this process.  Sharing one helper means all threads share the same connection pool.
+     */
+    public static synchronized SyncMonkeyDatabaseHelper getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new SyncMonkeyDatabaseHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private SyncMonkeyDatabaseHelper(Context context)
+    {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // WAL allows the UI process to write to the database while the sync process is reading from it
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db)
+    {
+        Log.i(LOG_TAG, "Creating the Sync Monkey database");
+
+        db.execSQL("CREATE TABLE " + TABLE_UPLOAD_MANIFEST + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_HASH + " TEXT, "
+                + COLUMN_UPLOADED_AT + " INTEGER NOT NULL, "
+                + COLUMN_RELATIVE_PATH + " TEXT)");
+        createUploadManifestHashIndex(db);
+
+        createRemoteHashCacheTable(db);
+        createLocalHashCacheTable(db);
+        createUploadQueueTable(db);
+        createResumableUploadsTable(db);
+        createTailStreamsTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+    {
+        Log.i(LOG_TAG, "Upgrading the Sync Monkey database from version " + oldVersion + " to " + newVersion);
+
+        if (oldVersion < 2) createRemoteHashCacheTable(db);
+        if (oldVersion < 3) createLocalHashCacheTable(db);
+        if (oldVersion < 4) createUploadQueueTable(db);
+        if (oldVersion < 5) createResumableUploadsTable(db);
+        if (oldVersion < 6) createTailStreamsTable(db);
+        if (oldVersion < 7)
+        {
+            db.execSQL("ALTER TABLE " + TABLE_UPLOAD_MANIFEST + " ADD COLUMN " + COLUMN_RELATIVE_PATH + " TEXT");
+            createUploadManifestHashIndex(db);
+        }
+        if (oldVersion < 8)
+        {
+            db.execSQL("ALTER TABLE " + TABLE_TAIL_STREAMS + " ADD COLUMN " + COLUMN_INODE + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_TAIL_STREAMS + " ADD COLUMN " + COLUMN_HEAD_LENGTH + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_TAIL_STREAMS + " ADD COLUMN " + COLUMN_HEAD_CRC + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Indexes the manifest by content, so the {@link ContentDeduplicator} can find an uploaded copy of a file without scanning the whole manifest.
+     */
+    private static void createUploadManifestHashIndex(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE INDEX " + TABLE_UPLOAD_MANIFEST + "_" + COLUMN_HASH + " ON " + TABLE_UPLOAD_MANIFEST + " (" + COLUMN_HASH + ", " + COLUMN_SIZE + ")");
+    }
+
+    private static void createRemoteHashCacheTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_REMOTE_HASH_CACHE + " ("
+                + COLUMN_REMOTE + " TEXT NOT NULL, "
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_HASH_TYPE + " TEXT NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_HASH + " TEXT NOT NULL, "
+                + COLUMN_CACHED_AT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_REMOTE + ", " + COLUMN_PATH + ", " + COLUMN_HASH_TYPE + "))");
+    }
+
+    private static void createLocalHashCacheTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_LOCAL_HASH_CACHE + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_MD5 + " TEXT NOT NULL, "
+                + COLUMN_XXH64 + " TEXT NOT NULL, "
+                + COLUMN_CACHED_AT + " INTEGER NOT NULL)");
+    }
+
+    private static void createUploadQueueTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_UPLOAD_QUEUE + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_PRIORITY + " INTEGER NOT NULL, "
+                + COLUMN_ENQUEUED_AT + " INTEGER NOT NULL)");
+    }
+
+    private static void createResumableUploadsTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_RESUMABLE_UPLOADS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_BLOCK_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_UPLOADED_BLOCKS + " INTEGER NOT NULL, "
+                + COLUMN_UPDATED_AT + " INTEGER NOT NULL)");
+    }
+
+    private static void createTailStreamsTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + TABLE_TAIL_STREAMS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_BLOB_NAME + " TEXT NOT NULL, "
+                + COLUMN_SEGMENT + " INTEGER NOT NULL, "
+                + COLUMN_SEGMENT_START + " INTEGER NOT NULL, "
+                + COLUMN_STREAMED_OFFSET + " INTEGER NOT NULL, "
+                + COLUMN_SEGMENT_BLOCKS + " INTEGER NOT NULL, "
+                + COLUMN_UPDATED_AT + " INTEGER NOT NULL, "
+                + COLUMN_INODE + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_HEAD_LENGTH + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_HEAD_CRC + " INTEGER NOT NULL DEFAULT 0)");
+    }
+}
@@ -0,0 +1,294 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The set of files that a single sync run will upload, gathered across all of the sync directories by the {@link SyncPlanner}.
+ * <p>
+ * Today each sync directory is copied into the root of the device's remote folder, so the sources can't be handed to rclone as a single directory.  Instead
+ * the plan is staged as a tree of symbolic links, one per file, that mirrors the remote layout.  rclone is then run once over the staging tree with
+ * {@code --copy-links} and a {@code --files-from} list, which keeps the remote layout exactly as it was with one rclone process per directory.
+ *
+ * @since 0.0.10
+ */
+public class SyncPlan
+{
+    private static final String LOG_TAG = SyncPlan.class.getSimpleName();
+
+    static final String FILES_FROM_LIST_NAME = "files-from.txt";
+
+    private final List<SourcePlan> sourcePlans = new ArrayList<>();
+    private final Map<String, LocalFileEntry> entriesByRelativePath = new LinkedHashMap<>();
+
+    SourcePlan addSource(String syncDirectoryPath)
+    {
+        final SourcePlan sourcePlan = new SourcePlan(syncDirectoryPath);
+        sourcePlans.add(sourcePlan);
+        return sourcePlan;
+    }
+
+    /**
+     * Adds the file to the plan, unless a file from an earlier source already maps to the same remote path.
+     *
+     * @return True if the file was added, false if it collided with a file from another source.
+     */
+    boolean addEntry(SourcePlan sourcePlan, LocalFileEntry fileEntry)
+    {
+        if (entriesByRelativePath.containsKey(fileEntry.getRelativePath()))
+        {
+            sourcePlan.collisionCount++;
+            return false;
+        }
+
+        entriesByRelativePath.put(fileEntry.getRelativePath(), fileEntry);
+        sourcePlan.entries.add(fileEntry);
+        sourcePlan.byteCount += fileEntry.getSize();
+        return true;
+    }
+
+    public List<SourcePlan> getSourcePlans()
+    {
+        return Collections.unmodifiableList(sourcePlans);
+    }
+
+    /**
+     * @return Every file in the plan, across all of the sources.
+     */
+    public List<LocalFileEntry> getEntries()
+    {
+        return new ArrayList<>(entriesByRelativePath.values());
+    }
+
+    public int getFileCount()
+    {
+        return entriesByRelativePath.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return entriesByRelativePath.isEmpty();
+    }
+
+    /**
+     * Creates a plan with the same sources that only contains the provided files, so that a plan can be uploaded in batches.
+     *
+     * @param fileEntries Files from this plan.
+     * @return The smaller plan.
+     */
+    SyncPlan subset(Collection<LocalFileEntry> fileEntries)
+    {
+        final Set<String> includedPaths = new HashSet<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            includedPaths.add(fileEntry.getPath());
+        }
+
+        final SyncPlan subset = new SyncPlan();
+        for (SourcePlan sourcePlan : sourcePlans)
+        {
+            final SourcePlan subsetSource = subset.addSource(sourcePlan.syncDirectoryPath);
+            for (LocalFileEntry fileEntry : sourcePlan.entries)
+            {
+                if (includedPaths.contains(fileEntry.getPath())) subset.addEntry(subsetSource, fileEntry);
+            }
+        }
+        return subset;
+    }
+
+    /**
+     * Creates the symbolic link tree for this plan in the provided staging directory, along with the files-from list that rclone will read.  Anything left
+     * in the staging directory from a previous run is removed first.
+     *
+     * @param stagingDirectory The directory to build the link tree in.  It is the source directory for the rclone copy.
+     * @return The files-from list, which lives next to the staging directory rather than inside it so it is not uploaded.
+     * @throws IOException If the staging tree could not be created.
+     */
+    public File stage(File stagingDirectory) throws IOException
+    {
+        return stage(stagingDirectory, Collections.emptySet());
+    }
+
+    /**
+     * Creates the symbolic link tree for this plan, leaving out the provided files, which are uploaded some other way such as by the
+     * {@link CompressionStage}.
+     *
+     * @param stagingDirectory      The directory to build the link tree in.
+     * @param excludedRelativePaths The relative paths of the files to leave out of the link tree and the files-from list.
+     * @return The files-from list, which lives next to the staging directory rather than inside it so it is not uploaded.
+     * @throws IOException If the staging tree could not be created.
+     */
+    public File stage(File stagingDirectory, Set<String> excludedRelativePaths) throws IOException
+    {
+        return stage(stagingDirectory, excludedRelativePaths, Collections.emptyMap());
+    }
+
+    /**
+     * Creates the symbolic link tree for this plan, leaving out the provided files and linking in additional files that are not part of the plan, such as
+     * the bundles built by the {@link SmallFileBundler}.
+     *
+     * @param stagingDirectory      The directory to build the link tree in.
+     * @param excludedRelativePaths The relative paths of the files to leave out of the link tree and the files-from list.
+     * @param additionalFiles       Extra files to upload, keyed by their path relative to the device's remote folder.
+     * @return The files-from list, which lives next to the staging directory rather than inside it so it is not uploaded.
+     * @throws IOException If the staging tree could not be created.
+     */
+    public File stage(File stagingDirectory, Set<String> excludedRelativePaths, Map<String, File> additionalFiles) throws IOException
+    {
+        deleteStaging(stagingDirectory);
+        if (!stagingDirectory.mkdirs()) throw new IOException("Could not create the staging directory " + stagingDirectory);
+
+        final File filesFromList = new File(stagingDirectory.getParentFile(), stagingDirectory.getName() + "-" + FILES_FROM_LIST_NAME);
+
+        try (final BufferedWriter writer = new BufferedWriter(new FileWriter(filesFromList)))
+        {
+            for (LocalFileEntry fileEntry : entriesByRelativePath.values())
+            {
+                if (excludedRelativePaths.contains(fileEntry.getRelativePath())) continue;
+
+                stageLink(stagingDirectory, fileEntry.getRelativePath(), fileEntry.getPath(), writer);
+            }
+
+            for (Map.Entry<String, File> additionalFile : additionalFiles.entrySet())
+            {
+                stageLink(stagingDirectory, additionalFile.getKey(), additionalFile.getValue().getAbsolutePath(), writer);
+            }
+        }
+
+        return filesFromList;
+    }
+
+    private static void stageLink(File stagingDirectory, String relativePath, String targetPath, BufferedWriter writer) throws IOException
+    {
+        final File link = new File(stagingDirectory, relativePath);
+        final File linkParent = link.getParentFile();
+        if (linkParent != null && !linkParent.isDirectory() && !linkParent.mkdirs())
+        {
+            throw new IOException("Could not create the staging directory " + linkParent);
+        }
+
+        try
+        {
+            Os.symlink(targetPath, link.getAbsolutePath());
+        } catch (ErrnoException e)
+        {
+            throw new IOException("Could not stage " + targetPath, e);
+        }
+
+        writer.write(relativePath);
+        writer.newLine();
+    }
+
+    /**
+     * Removes the staging directory and its files-from list.  Only the links are removed, never the files they point to.
+     */
+    public static void deleteStaging(File stagingDirectory)
+    {
+        //noinspection ResultOfMethodCallIgnored
+        new File(stagingDirectory.getParentFile(), stagingDirectory.getName() + "-" + FILES_FROM_LIST_NAME).delete();
+        deleteLinkTree(stagingDirectory);
+    }
+
+    private static void deleteLinkTree(File file)
+    {
+        // Never descend through a link, otherwise the files it points to would be deleted
+        if (file.isDirectory() && !isSymbolicLink(file))
+        {
+            final File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    deleteLinkTree(child);
+                }
+            }
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static boolean isSymbolicLink(File file)
+    {
+        try
+        {
+            return OsConstants.S_ISLNK(Os.lstat(file.getAbsolutePath()).st_mode);
+        } catch (ErrnoException e)
+        {
+            Log.w(LOG_TAG, "Could not stat the staging path " + file, e);
+            return true; // Err on the side of not descending
+        }
+    }
+
+    /**
+     * Creates the per-source results for this plan after the single rclone process completes.  Every source shares the exit code of that process.
+     *
+     * @param exitCode       The exit code of the rclone process.
+     * @param durationMillis How long the upload took.
+     * @return The summary of the upload with one result per source.
+     */
+    public UploadSummary createSummary(int exitCode, long durationMillis)
+    {
+        final UploadSummary uploadSummary = new UploadSummary();
+        for (SourcePlan sourcePlan : sourcePlans)
+        {
+            uploadSummary.addDirectoryResult(new DirectoryUploadResult(sourcePlan.syncDirectoryPath, sourcePlan.entries.isEmpty() ? 0 : exitCode,
+                    durationMillis, sourcePlan.entries.size(), sourcePlan.byteCount, sourcePlan.collisionCount));
+        }
+        return uploadSummary;
+    }
+
+    /**
+     * The files that were planned for upload from a single sync directory.
+     */
+    public static class SourcePlan
+    {
+        private final String syncDirectoryPath;
+        private final List<LocalFileEntry> entries = new ArrayList<>();
+        private long byteCount;
+        private int collisionCount;
+
+        SourcePlan(String syncDirectoryPath)
+        {
+            this.syncDirectoryPath = syncDirectoryPath;
+        }
+
+        public String getSyncDirectoryPath()
+        {
+            return syncDirectoryPath;
+        }
+
+        public List<LocalFileEntry> getEntries()
+        {
+            return Collections.unmodifiableList(entries);
+        }
+
+        public long getByteCount()
+        {
+            return byteCount;
+        }
+
+        /**
+         * @return The number of files that were left out because a file from an earlier source maps to the same remote path.
+         */
+        public int getCollisionCount()
+        {
+            return collisionCount;
+        }
+    }
+}
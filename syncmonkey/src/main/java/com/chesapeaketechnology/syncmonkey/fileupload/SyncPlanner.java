@@ -0,0 +1,140 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Works out which files need to be uploaded across all of the sync directories, so that they can be uploaded by a single rclone process instead of one
+ * process per directory.
+ *
+ * @since 0.0.10
+ */
+public class SyncPlanner
+{
+    private static final String LOG_TAG = SyncPlanner.class.getSimpleName();
+
+    private final UploadManifest uploadManifest;
+    private final LocalFileHasher localFileHasher;
+    private final SyncDirectoryScanner syncDirectoryScanner;
+    private final StabilityGate stabilityGate;
+
+    SyncPlanner(UploadManifest uploadManifest, LocalFileHasher localFileHasher, SyncDirectoryScanner syncDirectoryScanner, StabilityGate stabilityGate)
+    {
+        this.uploadManifest = uploadManifest;
+        this.localFileHasher = localFileHasher;
+        this.syncDirectoryScanner = syncDirectoryScanner;
+        this.stabilityGate = stabilityGate;
+    }
+
+    /**
+     * Builds the plan for the provided sync directories.  Directories are processed in order, so if two directories contain a file with the same relative
+     * path, the file from the earlier directory is uploaded and the later one is left for a future sync.
+     *
+     * @param syncDirectoryPaths The local directories to sync.
+     * @param changedPaths       If not null, only these paths are considered instead of walking each directory.
+     * @param checksum           True to hash each new or changed file and leave out the ones whose content has not changed since they were uploaded.
+     * @return The plan containing every new or changed file.
+     */
+    public SyncPlan plan(List<String> syncDirectoryPaths, Collection<String> changedPaths, boolean checksum)
+    {
+        final SyncPlan syncPlan = new SyncPlan();
+        final SyncDirectoryScanner.Filter filter = syncDirectoryScanner.loadFilter();
+
+        for (String syncDirectoryPath : syncDirectoryPaths)
+        {
+            final File syncDirectory = new File(syncDirectoryPath);
+            final SyncPlan.SourcePlan sourcePlan = syncPlan.addSource(syncDirectoryPath);
+
+            List<LocalFileEntry> changedFiles = findChangedFiles(syncDirectory, syncDirectoryPaths, changedPaths, filter);
+            if (checksum) changedFiles = dropUnchangedContent(changedFiles);
+
+            for (LocalFileEntry changedFile : changedFiles)
+            {
+                if (!syncPlan.addEntry(sourcePlan, changedFile))
+                {
+                    Log.w(LOG_TAG, "Not uploading " + changedFile.getPath() + " because a file from another sync directory has the same remote path");
+                }
+            }
+
+            if (Log.isLoggable(LOG_TAG, Log.INFO))
+            {
+                Log.i(LOG_TAG, "Planned " + sourcePlan.getEntries().size() + " files (" + sourcePlan.getByteCount() + " bytes) from " + syncDirectoryPath);
+            }
+        }
+
+        return syncPlan;
+    }
+
+    /**
+     * Finds the files in the provided sync directory that pass the scan filter, have not been uploaded in their current state, and are no longer being
+     * written according to the {@link StabilityGate}.
+     *
+     * @param syncDirectory      The local directory to check.
+     * @param syncDirectoryPaths All the sync directories, so that a sync directory inside this one is not scanned twice.
+     * @param changedPaths       If not null, only these paths are checked instead of walking the directory.
+     * @param filter             The filter from {@link SyncDirectoryScanner#loadFilter()}.
+     * @return The files that need to be uploaded, with paths relative to the provided sync directory.
+     */
+    List<LocalFileEntry> findChangedFiles(File syncDirectory, List<String> syncDirectoryPaths, Collection<String> changedPaths,
+                                          SyncDirectoryScanner.Filter filter)
+    {
+        if (changedPaths != null)
+        {
+            final List<LocalFileEntry> changedFiles = new ArrayList<>();
+            for (LocalFileEntry changedFile : uploadManifest.findChangedFiles(syncDirectory, changedPaths))
+            {
+                if (filter.accepts(changedFile)) changedFiles.add(changedFile);
+            }
+            return stabilityGate.filterStableFiles(syncDirectory, changedFiles);
+        }
+
+        final UploadManifest.NotUploadedFiles notUploadedFiles = uploadManifest.collectNotUploaded();
+        syncDirectoryScanner.scan(syncDirectory, syncDirectoryPaths, filter, notUploadedFiles);
+        final List<LocalFileEntry> changedFiles = notUploadedFiles.finish();
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "Found " + changedFiles.size() + " changed files in " + syncDirectory);
+
+        return stabilityGate.filterStableFiles(syncDirectory, changedFiles);
+    }
+
+    /**
+     * Hashes the provided files and removes the ones whose content matches the hash recorded in the {@link UploadManifest}, which happens when only the
+     * modified time or the size reported by the storage changed.  Those files are recorded in the manifest with their new state so they are not hashed
+     * again.  The remaining files keep their hashes, so the hashes are recorded in the manifest once they are uploaded.
+     *
+     * @param changedFiles The files that the manifest reports as new or changed.
+     * @return The files whose content has actually changed, or that have never been uploaded with a hash.
+     */
+    List<LocalFileEntry> dropUnchangedContent(List<LocalFileEntry> changedFiles)
+    {
+        if (changedFiles.isEmpty()) return changedFiles;
+
+        localFileHasher.hashFiles(changedFiles);
+
+        final List<LocalFileEntry> contentChangedFiles = new ArrayList<>();
+        final List<LocalFileEntry> unchangedContentFiles = new ArrayList<>();
+        for (LocalFileEntry changedFile : changedFiles)
+        {
+            final String hash = changedFile.getHash();
+            if (hash != null && hash.equals(uploadManifest.getUploadedHash(changedFile.getPath())))
+            {
+                unchangedContentFiles.add(changedFile);
+            } else
+            {
+                contentChangedFiles.add(changedFile);
+            }
+        }
+
+        if (!unchangedContentFiles.isEmpty())
+        {
+            Log.i(LOG_TAG, "Skipping " + unchangedContentFiles.size() + " files whose content has not changed since they were uploaded");
+            uploadManifest.markUploaded(unchangedContentFiles);
+        }
+
+        return contentChangedFiles;
+    }
+}
@@ -0,0 +1,128 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+
+import net.grandcentrix.tray.AppPreferences;
+
+/**
+ * The time and byte budget of a single run of the sync adapter.  A device with a long backlog would otherwise hold the sync slot and its wakelock for
+ * hours, until the OS kills the {@code :sync} process.  Instead, the sync stops at the next file boundary once the budget is used up, and a follow-up sync
+ * is requested so the backlog drains over several bounded sessions.
+ * <p>
+ * A session always allows its first batch to start, so every session makes progress even when a single batch is larger than the whole budget.
+ *
+ * @since 0.0.10
+ */
+public class SyncSession
+{
+    private static final String LOG_TAG = SyncSession.class.getSimpleName();
+
+    private static final long BYTES_PER_MEGABYTE = 1024L * 1024;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long maxDurationMillis;
+    private final long maxBytes;
+    private long bytesUploaded;
+    private boolean started;
+    private boolean budgetExhausted;
+
+    /**
+     * @param maxDurationMillis The longest the session can run, or zero for no limit.
+     * @param maxBytes          The most bytes the session can upload, or zero for no limit.
+     */
+    SyncSession(long maxDurationMillis, long maxBytes)
+    {
+        this.maxDurationMillis = maxDurationMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return A session with the budget set in the user preferences.
+     */
+    static SyncSession fromPreferences(AppPreferences appPreferences)
+    {
+        return new SyncSession(getPositiveInt(appPreferences, SyncMonkeyConstants.PROPERTY_SYNC_SESSION_MAX_MINUTES_KEY) * 60_000L,
+                getPositiveInt(appPreferences, SyncMonkeyConstants.PROPERTY_SYNC_SESSION_MAX_MEGABYTES_KEY) * BYTES_PER_MEGABYTE);
+    }
+
+    private static int getPositiveInt(AppPreferences appPreferences, String key)
+    {
+        try
+        {
+            return Math.max(0, appPreferences.getInt(key, 0));
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The " + key + " preference is not a valid integer, the session is not limited by it", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Checks whether there is enough budget left to start uploading the provided number of bytes, which is called at each file boundary.  Once this
+     * returns false the session is marked as having run out of budget.
+     *
+     * @param byteCount The size of the next batch of files, or of the next block of a large file.
+     * @return True if the upload should be started.
+     */
+    public boolean canStart(long byteCount)
+    {
+        if (!started)
+        {
+            started = true;
+            return true;
+        }
+
+        if (isExhausted() || (maxBytes > 0 && bytesUploaded + byteCount > maxBytes))
+        {
+            budgetExhausted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the session has run past its time budget or uploaded its whole byte budget.
+     */
+    public boolean isExhausted()
+    {
+        return (maxDurationMillis > 0 && System.currentTimeMillis() - startMillis >= maxDurationMillis) || (maxBytes > 0 && bytesUploaded >= maxBytes);
+    }
+
+    /**
+     * Adds the provided bytes to the amount uploaded in this session.
+     */
+    public void recordUploaded(long byteCount)
+    {
+        bytesUploaded += byteCount;
+    }
+
+    /**
+     * @return The bytes uploaded in this session so far.
+     */
+    public long getBytesUploaded()
+    {
+        return bytesUploaded;
+    }
+
+    /**
+     * @return True if the session stopped early because it ran out of budget, which means files were left for a follow-up sync.
+     */
+    public boolean isBudgetExhausted()
+    {
+        return budgetExhausted;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SyncSession{" +
+                "elapsedMillis=" + (System.currentTimeMillis() - startMillis) +
+                ", maxDurationMillis=" + maxDurationMillis +
+                ", bytesUploaded=" + bytesUploaded +
+                ", maxBytes=" + maxBytes +
+                ", budgetExhausted=" + budgetExhausted +
+                '}';
+    }
+}
@@ -0,0 +1,678 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.fileupload.Items.FileItem;
+
+import net.grandcentrix.tray.AppPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_BLOB_NAME;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_HEAD_CRC;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_HEAD_LENGTH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_INODE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SEGMENT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SEGMENT_BLOCKS;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SEGMENT_START;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_STREAMED_OFFSET;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_UPDATED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_TAIL_STREAMS;
+
+/**
+ * Streams the bytes appended to growing files, such as the survey CSVs that NetworkSurvey keeps writing to, so they show up on the server within seconds
+ * instead of at the next sync.  Files in the sync directories that match the {@link SyncMonkeyConstants#PROPERTY_TAIL_STREAM_PATTERNS_KEY} globs and have
+ * been modified recently are polled at the {@link SyncMonkeyConstants#PROPERTY_TAIL_STREAM_INTERVAL_SECONDS_KEY} interval, and any new bytes are added
+ * to an Azure append blob with Append Block.  The streamer is run by the {@link LiveSyncService}, whose foreground notification keeps the process alive
+ * after the UI is closed.
+ * <p>
+ * The files to stream are found from the writes that the {@link SyncDirectoryWatcher} reports with {@link #onFileModified(String)}.  The sync directories
+ * are only walked when streaming starts, and then every {@link #FALLBACK_DISCOVERY_INTERVAL_MILLIS} to catch any directory the watcher could not watch.
+ * <p>
+ * The offset that has been streamed is saved after every block.  Each block is sent with the append position it is expected to land at, so if the
+ * process died after Azure accepted a block but before the offset was saved, the retry is rejected instead of adding the bytes twice, and the offset is
+ * moved up to the length of the blob.  The inode of each file and a CRC of its first {@link #HEAD_LENGTH} bytes are saved along with the offset, so a file
+ * that was replaced is noticed even when the new file is already longer than the old one.  If a file shrinks or is replaced, or a segment reaches the
+ * Azure block limit, streaming continues in the next numbered segment, so the live copy of {@code relative/path/survey.csv} is stored as {@code deviceId/.live/relative/path/survey.csv.00000},
+ * {@code .00001}, and so on.
+ * <p>
+ * The live copy is only for low latency.  The file is still uploaded in whole by the sync adapter once it stops changing, which is also what catches up on
+ * anything appended while this process was not running.  Like the {@link ResumableBlobUploader}, this talks to Azure directly using the
+ * {@link SyncMonkeyConstants#PROPERTY_AZURE_SAS_URL_KEY} SAS URL, because rclone has no way to append to a blob.
+ *
+ * @since 0.0.10
+ */
+public class TailStreamer
+{
+    private static final String LOG_TAG = TailStreamer.class.getSimpleName();
+
+    /**
+     * The directory under the device ID on the remote that the live copies are stored in, so they never collide with the files uploaded by rclone.
+     */
+    static final String LIVE_DIRECTORY = ".live";
+
+    private static final int DEFAULT_INTERVAL_SECONDS = 5;
+
+    /**
+     * How often the sync directories are walked to look for new files to stream that the {@link SyncDirectoryWatcher} did not report.
+     */
+    private static final long FALLBACK_DISCOVERY_INTERVAL_MILLIS = 30 * 60_000;
+
+    /**
+     * Only files modified this recently are streamed, and a file is dropped from the polling once it has not changed for this long.
+     */
+    private static final long ACTIVE_FILE_MAX_AGE_MILLIS = 10 * 60_000;
+
+    private static final int MAX_STREAMED_FILES = 64;
+    private static final int APPEND_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_BLOCKS_PER_POLL = 4;
+
+    /**
+     * Azure allows 50,000 blocks in an append blob, a new segment is started a little before that.
+     */
+    private static final int MAX_SEGMENT_BLOCKS = 49_000;
+
+    /**
+     * The number of bytes at the start of a file that are checked to tell whether the file was replaced.
+     */
+    private static final int HEAD_LENGTH = 4096;
+
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private static TailStreamer instance;
+
+    private final Context context;
+    private final AppPreferences appPreferences;
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+    private final SyncDirectoryScanner syncDirectoryScanner;
+    private final ConnectivityMonitor connectivityMonitor;
+    private final Handler handler;
+    private final Map<String, Stream> streams = new HashMap<>();
+    private final Set<String> candidatePaths = ConcurrentHashMap.newKeySet();
+    private final Runnable pollRunnable = this::poll;
+    private volatile boolean streaming;
+    private long lastDiscoveryMillis;
+
+    /**
+     * @return The single streamer for this process.
+     */
+    public static synchronized TailStreamer getInstance(Context context)
+    {
+        if (instance == null)
+        {
+            instance = new TailStreamer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private TailStreamer(Context context)
+    {
+        this.context = context;
+        appPreferences = new AppPreferences(context);
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+        syncDirectoryScanner = new SyncDirectoryScanner(context);
+        connectivityMonitor = ConnectivityMonitor.getInstance(context);
+
+        final HandlerThread handlerThread = new HandlerThread(LOG_TAG);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Starts streaming using the current user preferences.  Any files that were being streamed are looked up again, so this can also be called after the
+     * sync directory or streaming preferences change.
+     */
+    public void start()
+    {
+        handler.post(() -> {
+            handler.removeCallbacks(pollRunnable);
+            streams.clear();
+            candidatePaths.clear();
+            streaming = false;
+            lastDiscoveryMillis = 0;
+
+            if (SyncDirectoryScanner.parseGlobs(appPreferences.getString(SyncMonkeyConstants.PROPERTY_TAIL_STREAM_PATTERNS_KEY, "")).isEmpty()) return;
+
+            if (!ResumableBlobUploader.isAvailable(appPreferences))
+            {
+                Log.w(LOG_TAG, "Not streaming any files because the SAS URL or container name is not set");
+                return;
+            }
+
+            pruneDeletedFiles();
+            streaming = true;
+            handler.post(pollRunnable);
+        });
+    }
+
+    /**
+     * Stops streaming.  The streamed offsets are kept, so streaming continues where it left off the next time it is started.
+     */
+    public void stop()
+    {
+        handler.post(() -> {
+            handler.removeCallbacks(pollRunnable);
+            streams.clear();
+            candidatePaths.clear();
+            streaming = false;
+        });
+    }
+
+    /**
+     * Called by the {@link SyncDirectoryWatcher} each time a file in a sync directory is written to, which can be many times a second, so this only
+     * notes the path for the next poll.  May be called on any thread.
+     */
+    public void onFileModified(String path)
+    {
+        if (streaming) candidatePaths.add(path);
+    }
+
+    /**
+     * Streams the new bytes of each active file, and then schedules the next poll.  Must be called on the handler thread.
+     */
+    private void poll()
+    {
+        final List<SyncDirectoryScanner.Glob> globs = SyncDirectoryScanner.parseGlobs(
+                appPreferences.getString(SyncMonkeyConstants.PROPERTY_TAIL_STREAM_PATTERNS_KEY, ""));
+        if (globs.isEmpty())
+        {
+            Log.i(LOG_TAG, "Stopping the tail streaming because there are no longer any patterns configured");
+            streams.clear();
+            candidatePaths.clear();
+            streaming = false;
+            return;
+        }
+
+        if (isNetworkAllowed())
+        {
+            final long now = System.currentTimeMillis();
+            if (now - lastDiscoveryMillis >= FALLBACK_DISCOVERY_INTERVAL_MILLIS)
+            {
+                lastDiscoveryMillis = now;
+                candidatePaths.clear();
+                discoverActiveFiles(globs);
+            } else if (!candidatePaths.isEmpty())
+            {
+                discoverModifiedFiles(globs);
+            }
+
+            final Iterator<Stream> iterator = streams.values().iterator();
+            while (iterator.hasNext())
+            {
+                final Stream stream = iterator.next();
+                final File file = new File(stream.path);
+                if (!file.isFile())
+                {
+                    iterator.remove();
+                    deleteStream(stream.path);
+                    continue;
+                }
+
+                try
+                {
+                    streamAppendedBytes(stream, file);
+                } catch (IOException e)
+                {
+                    Log.w(LOG_TAG, "Could not stream " + stream.path + ", trying again at the next poll", e);
+                }
+
+                if (stream.streamedOffset == file.length() && file.lastModified() < now - ACTIVE_FILE_MAX_AGE_MILLIS) iterator.remove();
+            }
+        }
+
+        handler.postDelayed(pollRunnable, getIntervalSeconds() * 1000L);
+    }
+
+    /**
+     * @return True if the connected networks satisfy the Wi-Fi and VPN preferences that the sync adapter uses.
+     */
+    private boolean isNetworkAllowed()
+    {
+        final ConnectivityMonitor.State connectivityState = connectivityMonitor.getState();
+        if (appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY, true) && !connectivityState.isWifiConnected()) return false;
+        return !appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY, true) || connectivityState.isVpnConnected();
+    }
+
+    /**
+     * Walks the sync directories for recently modified files that match the streaming patterns, and starts polling any that are not already being
+     * polled.
+     */
+    private void discoverActiveFiles(List<SyncDirectoryScanner.Glob> globs)
+    {
+        final List<String> syncDirectoryPaths = getSyncDirectoryPaths();
+        final SyncDirectoryScanner.Filter filter = syncDirectoryScanner.loadFilter();
+        final long modifiedAfter = System.currentTimeMillis() - ACTIVE_FILE_MAX_AGE_MILLIS;
+        final List<LocalFileEntry> activeFiles = Collections.synchronizedList(new ArrayList<>());
+        for (String syncDirectoryPath : syncDirectoryPaths)
+        {
+            syncDirectoryScanner.scan(new File(syncDirectoryPath), syncDirectoryPaths, filter, fileEntry -> {
+                if (fileEntry.getLastModified() >= modifiedAfter && matchesAny(globs, fileEntry.getRelativePath())) activeFiles.add(fileEntry);
+            });
+        }
+
+        for (LocalFileEntry activeFile : new ArrayList<>(activeFiles))
+        {
+            if (!startStreaming(activeFile)) break;
+        }
+    }
+
+    /**
+     * Starts polling the files that the {@link SyncDirectoryWatcher} reported as written to since the last poll, if they match the streaming patterns.
+     */
+    private void discoverModifiedFiles(List<SyncDirectoryScanner.Glob> globs)
+    {
+        final List<String> syncDirectoryPaths = getSyncDirectoryPaths();
+        final SyncDirectoryScanner.Filter filter = syncDirectoryScanner.loadFilter();
+
+        final Iterator<String> iterator = candidatePaths.iterator();
+        while (iterator.hasNext())
+        {
+            final String candidatePath = iterator.next();
+            iterator.remove();
+            if (streams.containsKey(candidatePath)) continue;
+
+            // The innermost sync directory is the one the file is uploaded from
+            String rootPath = null;
+            for (String syncDirectoryPath : syncDirectoryPaths)
+            {
+                if (candidatePath.startsWith(syncDirectoryPath + File.separator) && (rootPath == null || syncDirectoryPath.length() > rootPath.length()))
+                {
+                    rootPath = syncDirectoryPath;
+                }
+            }
+            if (rootPath == null) continue;
+
+            final File candidate = new File(candidatePath);
+            if (!candidate.isFile()) continue;
+
+            final String relativePath = candidatePath.substring(rootPath.length() + 1).replace(File.separatorChar, '/');
+            final LocalFileEntry fileEntry = new LocalFileEntry(candidate, relativePath, candidate.length(), candidate.lastModified());
+            if (filter.accepts(fileEntry) && matchesAny(globs, relativePath) && !startStreaming(fileEntry)) break;
+        }
+    }
+
+    /**
+     * Starts polling the provided file, unless it is already being polled.
+     *
+     * @return False if the file could not be added because the maximum number of files are already being streamed.
+     */
+    private boolean startStreaming(LocalFileEntry fileEntry)
+    {
+        if (streams.containsKey(fileEntry.getPath())) return true;
+
+        if (streams.size() >= MAX_STREAMED_FILES)
+        {
+            Log.w(LOG_TAG, "Reached the maximum number of streamed files, " + fileEntry.getPath() + " will only be uploaded by the sync");
+            return false;
+        }
+
+        final String deviceId = appPreferences.getString(SyncMonkeyConstants.PROPERTY_DEVICE_ID_KEY, SyncMonkeyConstants.DEFAULT_DEVICE_ID);
+        final String blobName = deviceId + "/" + LIVE_DIRECTORY + "/" + fileEntry.getRelativePath();
+        streams.put(fileEntry.getPath(), loadStream(fileEntry.getPath(), blobName));
+        Log.i(LOG_TAG, "Streaming " + fileEntry.getPath());
+        return true;
+    }
+
+    /**
+     * @return The absolute paths of the sync directories from the user preferences.  The files shared with this app are copied in whole, so the private
+     * shared directory is not included.
+     */
+    private List<String> getSyncDirectoryPaths()
+    {
+        final String localSyncDirectories = appPreferences.getString(SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY, "");
+        final String dataDirectoryPath = Environment.getExternalStorageDirectory().getPath() + "/";
+
+        final List<String> syncDirectoryPaths = new ArrayList<>();
+        //noinspection ConstantConditions
+        for (String relativeSyncDirectory : localSyncDirectories.split(SyncMonkeyConstants.COLON_SEPARATOR))
+        {
+            if (!relativeSyncDirectory.isEmpty()) syncDirectoryPaths.add(dataDirectoryPath + relativeSyncDirectory);
+        }
+        return syncDirectoryPaths;
+    }
+
+    private static boolean matchesAny(List<SyncDirectoryScanner.Glob> globs, String relativePath)
+    {
+        for (SyncDirectoryScanner.Glob glob : globs)
+        {
+            if (glob.matches(relativePath)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends the bytes appended to the file since the last poll, up to {@link #MAX_BLOCKS_PER_POLL} blocks so that a large backlog in one file does not
+     * hold up the others.
+     */
+    private void streamAppendedBytes(Stream stream, File file) throws IOException
+    {
+        final long length = file.length();
+        if (length == stream.streamedOffset) return;
+
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+        {
+            final long inode = getInode(stream.path);
+            final boolean replaced = length < stream.streamedOffset || isReplaced(stream, randomAccessFile, inode);
+            stream.inode = inode;
+            if (replaced)
+            {
+                Log.i(LOG_TAG, stream.path + " was truncated or replaced, so streaming starts over in a new segment");
+                stream.startSegment(0);
+                stream.headLength = 0;
+                saveStream(stream);
+            }
+
+            final byte[] block = new byte[(int) Math.min(APPEND_BLOCK_SIZE, length - stream.streamedOffset)];
+            for (int i = 0; i < MAX_BLOCKS_PER_POLL && stream.streamedOffset < length; i++)
+            {
+                if (stream.segmentBlocks >= MAX_SEGMENT_BLOCKS)
+                {
+                    stream.startSegment(stream.streamedOffset);
+                    saveStream(stream);
+                }
+
+                final String blobUrl = ResumableBlobUploader.getBlobUrl(appPreferences, stream.getSegmentBlobName());
+                if (blobUrl == null) return;
+
+                if (!stream.segmentCreated)
+                {
+                    createAppendBlob(blobUrl, stream.path);
+                    stream.segmentCreated = true;
+                }
+
+                final int blockLength = (int) Math.min(block.length, length - stream.streamedOffset);
+                randomAccessFile.seek(stream.streamedOffset);
+                randomAccessFile.readFully(block, 0, blockLength);
+
+                final long appendPosition = stream.streamedOffset - stream.segmentStart;
+                final int responseCode = appendBlock(blobUrl, block, blockLength, appendPosition);
+                if (responseCode / 100 == 2)
+                {
+                    stream.streamedOffset += blockLength;
+                    stream.segmentBlocks++;
+                } else if (responseCode == HTTP_PRECONDITION_FAILED)
+                {
+                    reconcileAppendPosition(stream, blobUrl, appendPosition, length);
+                } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND)
+                {
+                    Log.w(LOG_TAG, "The live copy of " + stream.path + " was deleted from the remote, streaming continues in a new segment");
+                    stream.startSegment(stream.streamedOffset);
+                } else
+                {
+                    throw new IOException("Append Block failed with HTTP " + responseCode);
+                }
+                saveStream(stream);
+            }
+
+            if (stream.headLength < HEAD_LENGTH && stream.streamedOffset > stream.headLength)
+            {
+                stream.headLength = (int) Math.min(HEAD_LENGTH, stream.streamedOffset);
+                stream.headCrc = getHeadCrc(randomAccessFile, stream.headLength);
+                saveStream(stream);
+            }
+        }
+    }
+
+    /**
+     * @return True if the file is not the one that was being streamed, because its inode or the start of its content changed.  A stream that was saved
+     * before its inode or head was known is never considered replaced.
+     */
+    private static boolean isReplaced(Stream stream, RandomAccessFile randomAccessFile, long inode) throws IOException
+    {
+        if (stream.inode != 0 && inode != 0 && stream.inode != inode) return true;
+        return stream.headLength > 0 && (randomAccessFile.length() < stream.headLength || getHeadCrc(randomAccessFile, stream.headLength) != stream.headCrc);
+    }
+
+    private static long getHeadCrc(RandomAccessFile randomAccessFile, int headLength) throws IOException
+    {
+        final byte[] head = new byte[headLength];
+        randomAccessFile.seek(0);
+        randomAccessFile.readFully(head);
+
+        final CRC32 crc = new CRC32();
+        crc.update(head);
+        return crc.getValue();
+    }
+
+    /**
+     * @return The inode of the file, or zero if it could not be read.
+     */
+    private static long getInode(String path)
+    {
+        try
+        {
+            return Os.stat(path).st_ino;
+        } catch (ErrnoException e)
+        {
+            Log.w(LOG_TAG, "Could not read the inode of " + path, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Handles an append that was rejected because the blob is not the length that the saved offset says it should be.  If the blob is longer by bytes
+     * that the file has, the previous attempt succeeded without its offset being saved, so the offset catches up.  Otherwise the blob and the saved
+     * offset can't be reconciled and streaming continues in a new segment.
+     */
+    private static void reconcileAppendPosition(Stream stream, String blobUrl, long appendPosition, long fileLength) throws IOException
+    {
+        final long blobLength = getBlobLength(blobUrl);
+        if (blobLength > appendPosition && stream.segmentStart + blobLength <= fileLength)
+        {
+            Log.i(LOG_TAG, "Skipping " + (blobLength - appendPosition) + " bytes of " + stream.path + " that were already streamed");
+            stream.streamedOffset = stream.segmentStart + blobLength;
+            stream.segmentBlocks++;
+        } else
+        {
+            Log.w(LOG_TAG, "The live copy of " + stream.path + " is " + blobLength + " bytes instead of " + appendPosition
+                    + ", streaming continues in a new segment");
+            stream.startSegment(stream.streamedOffset);
+        }
+    }
+
+    /**
+     * Creates an empty append blob, leaving the blob as it is if it already exists.
+     */
+    private static void createAppendBlob(String blobUrl, String path) throws IOException
+    {
+        final HttpURLConnection connection = ResumableBlobUploader.openConnection(blobUrl, "PUT");
+        try
+        {
+            connection.setRequestProperty("x-ms-blob-type", "AppendBlob");
+            connection.setRequestProperty("x-ms-blob-content-type", FileItem.getMimeType("application/octet-stream", path));
+            connection.setRequestProperty("If-None-Match", "*");
+            connection.setFixedLengthStreamingMode(0);
+            connection.getOutputStream().close();
+
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_CONFLICT) return;
+            ResumableBlobUploader.checkResponse(connection, "Put Blob");
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return The HTTP response code, which is {@link #HTTP_PRECONDITION_FAILED} if the blob is not {@code appendPosition} bytes long.
+     */
+    private static int appendBlock(String blobUrl, byte[] block, int length, long appendPosition) throws IOException
+    {
+        final HttpURLConnection connection = ResumableBlobUploader.openConnection(blobUrl + "&comp=appendblock", "PUT");
+        try
+        {
+            connection.setRequestProperty("x-ms-blob-condition-appendpos", String.valueOf(appendPosition));
+            connection.setFixedLengthStreamingMode(length);
+            try (final OutputStream outputStream = connection.getOutputStream())
+            {
+                outputStream.write(block, 0, length);
+            }
+            return connection.getResponseCode();
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private static long getBlobLength(String blobUrl) throws IOException
+    {
+        final HttpURLConnection connection = ResumableBlobUploader.openConnection(blobUrl, "HEAD");
+        try
+        {
+            ResumableBlobUploader.checkResponse(connection, "Get Blob Properties");
+            return connection.getContentLengthLong();
+        } finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return The saved stream for the file, or a new stream from the start of the file if it has not been streamed to the provided blob before.
+     */
+    private Stream loadStream(String path, String blobName)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try (final Cursor cursor = database.query(TABLE_TAIL_STREAMS, new String[]{COLUMN_SEGMENT, COLUMN_SEGMENT_START, COLUMN_STREAMED_OFFSET, COLUMN_SEGMENT_BLOCKS,
+                        COLUMN_INODE, COLUMN_HEAD_LENGTH, COLUMN_HEAD_CRC},
+                COLUMN_PATH + " = ? AND " + COLUMN_BLOB_NAME + " = ?", new String[]{path, blobName}, null, null, null))
+        {
+            final Stream stream = new Stream(path, blobName);
+            if (cursor.moveToFirst())
+            {
+                stream.segment = cursor.getInt(0);
+                stream.segmentStart = cursor.getLong(1);
+                stream.streamedOffset = cursor.getLong(2);
+                stream.segmentBlocks = cursor.getInt(3);
+                stream.inode = cursor.getLong(4);
+                stream.headLength = cursor.getInt(5);
+                stream.headCrc = cursor.getLong(6);
+            }
+            return stream;
+        }
+    }
+
+    private void saveStream(Stream stream)
+    {
+        final ContentValues values = new ContentValues();
+        values.put(COLUMN_PATH, stream.path);
+        values.put(COLUMN_BLOB_NAME, stream.blobName);
+        values.put(COLUMN_SEGMENT, stream.segment);
+        values.put(COLUMN_SEGMENT_START, stream.segmentStart);
+        values.put(COLUMN_STREAMED_OFFSET, stream.streamedOffset);
+        values.put(COLUMN_SEGMENT_BLOCKS, stream.segmentBlocks);
+        values.put(COLUMN_INODE, stream.inode);
+        values.put(COLUMN_HEAD_LENGTH, stream.headLength);
+        values.put(COLUMN_HEAD_CRC, stream.headCrc);
+        values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+
+        databaseHelper.getWritableDatabase().insertWithOnConflict(TABLE_TAIL_STREAMS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void deleteStream(String path)
+    {
+        databaseHelper.getWritableDatabase().delete(TABLE_TAIL_STREAMS, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    /**
+     * Removes the saved offsets of files that no longer exist.
+     */
+    private void pruneDeletedFiles()
+    {
+        final List<String> deletedPaths = new ArrayList<>();
+        try (final Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_TAIL_STREAMS, new String[]{COLUMN_PATH}, null, null, null, null, null))
+        {
+            while (cursor.moveToNext())
+            {
+                if (!new File(cursor.getString(0)).isFile()) deletedPaths.add(cursor.getString(0));
+            }
+        }
+
+        for (String deletedPath : deletedPaths)
+        {
+            deleteStream(deletedPath);
+        }
+    }
+
+    private int getIntervalSeconds()
+    {
+        try
+        {
+            final int intervalSeconds = appPreferences.getInt(SyncMonkeyConstants.PROPERTY_TAIL_STREAM_INTERVAL_SECONDS_KEY, DEFAULT_INTERVAL_SECONDS);
+            return intervalSeconds > 0 ? intervalSeconds : DEFAULT_INTERVAL_SECONDS;
+        } catch (Exception e)
+        {
+            Log.w(LOG_TAG, "The " + SyncMonkeyConstants.PROPERTY_TAIL_STREAM_INTERVAL_SECONDS_KEY + " preference is not a valid integer, using "
+                    + DEFAULT_INTERVAL_SECONDS + " seconds", e);
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+    }
+
+    /**
+     * The streaming state of one file.  Only accessed on the handler thread.
+     */
+    private static class Stream
+    {
+        private final String path;
+        private final String blobName;
+        private int segment;
+        private long segmentStart;
+        private long streamedOffset;
+        private int segmentBlocks;
+        private boolean segmentCreated;
+        private long inode;
+
+        /**
+         * The number of bytes at the start of the file that the {@link #headCrc} covers, or zero if it has not been taken yet.
+         */
+        private int headLength;
+        private long headCrc;
+
+        Stream(String path, String blobName)
+        {
+            this.path = path;
+            this.blobName = blobName;
+        }
+
+        /**
+         * Moves on to the next segment, which starts with the byte at the provided offset of the file.
+         */
+        void startSegment(long fileOffset)
+        {
+            segment++;
+            segmentStart = fileOffset;
+            streamedOffset = fileOffset;
+            segmentBlocks = 0;
+            segmentCreated = false;
+        }
+
+        String getSegmentBlobName()
+        {
+            return String.format(Locale.US, "%s.%05d", blobName, segment);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.json.JSONObject;
+
+/**
+ * A snapshot of the transfer statistics that rclone reports periodically while it runs, either in the {@code stats} field of a JSON log line or in the
+ * response to a {@code core/stats} call on the {@link RcloneDaemon}.
+ *
+ * @since 0.0.10
+ */
+public class TransferStats
+{
+    /**
+     * The value of {@link #getEtaSeconds()} when rclone can't estimate the time remaining.
+     */
+    public static final long ETA_UNKNOWN = -1;
+
+    private final long bytes;
+    private final long totalBytes;
+    private final double speedBytesPerSecond;
+    private final long etaSeconds;
+    private final long transfers;
+    private final long totalTransfers;
+    private final long checks;
+    private final long errors;
+    private final double elapsedSeconds;
+
+    TransferStats(long bytes, long totalBytes, double speedBytesPerSecond, long etaSeconds, long transfers, long totalTransfers, long checks, long errors,
+                  double elapsedSeconds)
+    {
+        this.bytes = bytes;
+        this.totalBytes = totalBytes;
+        this.speedBytesPerSecond = speedBytesPerSecond;
+        this.etaSeconds = etaSeconds;
+        this.transfers = transfers;
+        this.totalTransfers = totalTransfers;
+        this.checks = checks;
+        this.errors = errors;
+        this.elapsedSeconds = elapsedSeconds;
+    }
+
+    /**
+     * Creates the stats from the JSON object that rclone uses for its stats.
+     *
+     * @param statsJson The stats object.
+     * @return The typed stats.  Any missing fields are treated as zero.
+     */
+    public static TransferStats fromJson(JSONObject statsJson)
+    {
+        return new TransferStats(statsJson.optLong("bytes"),
+                statsJson.optLong("totalBytes"),
+                statsJson.optDouble("speed", 0),
+                statsJson.isNull("eta") ? ETA_UNKNOWN : statsJson.optLong("eta", ETA_UNKNOWN),
+                statsJson.optLong("transfers"),
+                statsJson.optLong("totalTransfers"),
+                statsJson.optLong("checks"),
+                statsJson.optLong("errors"),
+                statsJson.optDouble("elapsedTime", 0));
+    }
+
+    /**
+     * @return The number of bytes transferred so far.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return The total number of bytes that rclone expects to transfer.
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return The average transfer speed in bytes per second.
+     */
+    public double getSpeedBytesPerSecond()
+    {
+        return speedBytesPerSecond;
+    }
+
+    /**
+     * @return The estimated number of seconds until the transfer completes, or {@link #ETA_UNKNOWN}.
+     */
+    public long getEtaSeconds()
+    {
+        return etaSeconds;
+    }
+
+    /**
+     * @return The number of files transferred so far.
+     */
+    public long getTransfers()
+    {
+        return transfers;
+    }
+
+    public long getTotalTransfers()
+    {
+        return totalTransfers;
+    }
+
+    public long getChecks()
+    {
+        return checks;
+    }
+
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    public double getElapsedSeconds()
+    {
+        return elapsedSeconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TransferStats{" +
+                "bytes=" + bytes +
+                ", totalBytes=" + totalBytes +
+                ", speedBytesPerSecond=" + speedBytesPerSecond +
+                ", etaSeconds=" + etaSeconds +
+                ", transfers=" + transfers +
+                ", totalTransfers=" + totalTransfers +
+                ", checks=" + checks +
+                ", errors=" + errors +
+                ", elapsedSeconds=" + elapsedSeconds +
+                '}';
+    }
+}
@@ -0,0 +1,285 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_HASH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_MODIFIED;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_RELATIVE_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_SIZE;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_UPLOADED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_UPLOAD_MANIFEST;
+
+/**
+ * A persistent record of every local file that has been confirmed uploaded to the remote server, keyed by the file's absolute path, size, and modified
+ * time.  The sync adapter checks the manifest before spawning rclone so that directories, or individual files, that have not changed since they were last
+ * uploaded never cause a remote listing.
+ * <p>
+ * The manifest is backed by the {@link SyncMonkeyDatabaseHelper} database so nothing is loaded up front; the files found by a sync are looked up in batches
+ * of indexed queries, so the work done on each sync is proportional to the number of local files checked rather than the number of files ever uploaded.
+ *
+ * @since 0.0.10
+ */
+public class UploadManifest
+{
+    private static final String UPLOADED_QUERY = "SELECT COUNT(*) FROM " + TABLE_UPLOAD_MANIFEST
+            + " WHERE " + COLUMN_PATH + " = ? AND " + COLUMN_SIZE + " = ? AND " + COLUMN_MODIFIED + " = ?";
+    private static final String HASH_QUERY = "SELECT " + COLUMN_HASH + " FROM " + TABLE_UPLOAD_MANIFEST + " WHERE " + COLUMN_PATH + " = ?";
+    private static final String CONTENT_QUERY = "SELECT " + COLUMN_RELATIVE_PATH + " FROM " + TABLE_UPLOAD_MANIFEST
+            + " WHERE " + COLUMN_HASH + " = ? AND " + COLUMN_SIZE + " = ? AND " + COLUMN_RELATIVE_PATH + " IS NOT NULL ORDER BY " + COLUMN_UPLOADED_AT
+            + " DESC LIMIT 1";
+
+    /**
+     * The most paths looked up in a single query, which keeps each query well under the SQLite limit of 999 bound arguments.
+     */
+    static final int MAX_PATHS_PER_QUERY = 500;
+
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+
+    UploadManifest(Context context)
+    {
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * @param fileEntry The local file to check.
+     * @return True if the file has already been uploaded with the same size and modified time.
+     */
+    public boolean isUploaded(LocalFileEntry fileEntry)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(database, UPLOADED_QUERY, new String[]{
+                fileEntry.getPath(), String.valueOf(fileEntry.getSize()), String.valueOf(fileEntry.getLastModified())}) > 0;
+    }
+
+    /**
+     * Checks the provided files against the manifest with one query per {@link #MAX_PATHS_PER_QUERY} files, instead of a query for each file like
+     * {@link #isUploaded(LocalFileEntry)}, so a full sync of a directory with thousands of files isn't thousands of round trips to the database.
+     *
+     * @param fileEntries The local files to check.
+     * @return The files that have not been uploaded with their current size and modified time, in the order they were provided.
+     */
+    public List<LocalFileEntry> findNotUploaded(List<LocalFileEntry> fileEntries)
+    {
+        final List<LocalFileEntry> notUploadedFiles = new ArrayList<>();
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+        for (int batchStart = 0; batchStart < fileEntries.size(); batchStart += MAX_PATHS_PER_QUERY)
+        {
+            final List<LocalFileEntry> batch = fileEntries.subList(batchStart, Math.min(batchStart + MAX_PATHS_PER_QUERY, fileEntries.size()));
+            final String[] paths = new String[batch.size()];
+            for (int i = 0; i < paths.length; i++)
+            {
+                paths[i] = batch.get(i).getPath();
+            }
+
+            final Map<String, long[]> uploadedStates = new HashMap<>();
+            try (final Cursor cursor = database.query(TABLE_UPLOAD_MANIFEST, new String[]{COLUMN_PATH, COLUMN_SIZE, COLUMN_MODIFIED},
+                    COLUMN_PATH + " IN (" + TextUtils.join(", ", Collections.nCopies(paths.length, "?")) + ")", paths, null, null, null))
+            {
+                while (cursor.moveToNext())
+                {
+                    uploadedStates.put(cursor.getString(0), new long[]{cursor.getLong(1), cursor.getLong(2)});
+                }
+            }
+
+            for (LocalFileEntry fileEntry : batch)
+            {
+                final long[] uploadedState = uploadedStates.get(fileEntry.getPath());
+                if (uploadedState == null || uploadedState[0] != fileEntry.getSize() || uploadedState[1] != fileEntry.getLastModified())
+                {
+                    notUploadedFiles.add(fileEntry);
+                }
+            }
+        }
+
+        return notUploadedFiles;
+    }
+
+    /**
+     * @return A consumer for {@link SyncDirectoryScanner#scan} that checks the scanned files against the manifest as they are found, so only the files that
+     * have not been uploaded are held in memory rather than every file in the sync directory.
+     */
+    public NotUploadedFiles collectNotUploaded()
+    {
+        return new NotUploadedFiles();
+    }
+
+    /**
+     * @param path The absolute path of the local file.
+     * @return The content hash that was recorded when the file was uploaded, or null if there is no hash or the file has not been uploaded.
+     */
+    public String getUploadedHash(String path)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try
+        {
+            return DatabaseUtils.stringForQuery(database, HASH_QUERY, new String[]{path});
+        } catch (SQLiteDoneException e)
+        {
+            return null; // No row for the path
+        }
+    }
+
+    /**
+     * Finds a file that has already been uploaded with the provided content, so that the remote copy can be reused instead of uploading the content again.
+     *
+     * @param hash The {@link LocalFileEntry#getHash() content hash} of the file.
+     * @param size The size of the file in bytes.
+     * @return The remote path relative to the device folder of the most recently uploaded file with the same content, or null if there is none.
+     */
+    public String findUploadedRelativePath(String hash, long size)
+    {
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try
+        {
+            return DatabaseUtils.stringForQuery(database, CONTENT_QUERY, new String[]{hash, String.valueOf(size)});
+        } catch (SQLiteDoneException e)
+        {
+            return null; // No uploaded file has the same content
+        }
+    }
+
+    /**
+     * Checks only the provided candidate paths, instead of walking the entire sync directory, and returns the ones that are inside the sync directory and
+     * have not been uploaded in their current state.
+     *
+     * @param syncDirectory  The local sync directory that the candidates must be inside of.
+     * @param candidatePaths The absolute paths of the files that are known to have changed.
+     * @return The files that need to be uploaded, with paths relative to the provided sync directory.
+     */
+    public List<LocalFileEntry> findChangedFiles(File syncDirectory, Collection<String> candidatePaths)
+    {
+        final List<LocalFileEntry> candidateFiles = new ArrayList<>();
+        final String rootPath = syncDirectory.getAbsolutePath();
+        final String rootPrefix = rootPath + File.separator;
+
+        for (String candidatePath : candidatePaths)
+        {
+            if (!candidatePath.startsWith(rootPrefix)) continue;
+
+            final File candidate = new File(candidatePath);
+            if (!candidate.isFile()) continue;
+
+            final String relativePath = candidatePath.substring(rootPrefix.length()).replace(File.separatorChar, '/');
+            candidateFiles.add(new LocalFileEntry(candidate, relativePath, candidate.length(), candidate.lastModified()));
+        }
+
+        return findNotUploaded(candidateFiles);
+    }
+
+    /**
+     * Records the provided files as uploaded, using the size and modified time captured when they were scanned.
+     *
+     * @param fileEntries The files that were confirmed uploaded.
+     */
+    public void markUploaded(Collection<LocalFileEntry> fileEntries)
+    {
+        if (fileEntries.isEmpty()) return;
+
+        final long uploadedAt = System.currentTimeMillis();
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+        database.beginTransaction();
+        try
+        {
+            final ContentValues values = new ContentValues();
+            for (LocalFileEntry fileEntry : fileEntries)
+            {
+                values.clear();
+                values.put(COLUMN_PATH, fileEntry.getPath());
+                values.put(COLUMN_SIZE, fileEntry.getSize());
+                values.put(COLUMN_MODIFIED, fileEntry.getLastModified());
+                values.put(COLUMN_HASH, fileEntry.getHash());
+                values.put(COLUMN_UPLOADED_AT, uploadedAt);
+                values.put(COLUMN_RELATIVE_PATH, fileEntry.getRelativePath());
+
+                database.insertWithOnConflict(TABLE_UPLOAD_MANIFEST, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the provided file from the manifest so that it will be uploaded again on the next sync.
+     *
+     * @param path The absolute path of the local file.
+     */
+    public void remove(String path)
+    {
+        databaseHelper.getWritableDatabase().delete(TABLE_UPLOAD_MANIFEST, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    /**
+     * Buffers the files handed to it by a scan, and checks them with {@link #findNotUploaded(List)} each time {@link #MAX_PATHS_PER_QUERY} of them have
+     * been buffered.  The scan calls it from several threads at once, so it is thread safe.
+     */
+    public class NotUploadedFiles implements Consumer<LocalFileEntry>
+    {
+        private final List<LocalFileEntry> notUploadedFiles = new ArrayList<>();
+        private List<LocalFileEntry> buffer = new ArrayList<>();
+
+        @Override
+        public void accept(LocalFileEntry fileEntry)
+        {
+            final List<LocalFileEntry> fullBuffer;
+            synchronized (this)
+            {
+                buffer.add(fileEntry);
+                if (buffer.size() < MAX_PATHS_PER_QUERY) return;
+
+                fullBuffer = buffer;
+                buffer = new ArrayList<>();
+            }
+            addNotUploaded(fullBuffer);
+        }
+
+        /**
+         * Checks the files that are still buffered.  Call once the scan has finished.
+         *
+         * @return The scanned files that have not been uploaded with their current size and modified time.
+         */
+        public List<LocalFileEntry> finish()
+        {
+            final List<LocalFileEntry> remainingBuffer;
+            synchronized (this)
+            {
+                remainingBuffer = buffer;
+                buffer = new ArrayList<>();
+            }
+            addNotUploaded(remainingBuffer);
+
+            synchronized (this)
+            {
+                return new ArrayList<>(notUploadedFiles);
+            }
+        }
+
+        private void addNotUploaded(List<LocalFileEntry> fileEntries)
+        {
+            final List<LocalFileEntry> batchNotUploaded = findNotUploaded(fileEntries);
+            synchronized (this)
+            {
+                notUploadedFiles.addAll(batchNotUploaded);
+            }
+        }
+    }
+}
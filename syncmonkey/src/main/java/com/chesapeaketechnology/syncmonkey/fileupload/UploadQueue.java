@@ -0,0 +1,324 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_ENQUEUED_AT;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PATH;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.COLUMN_PRIORITY;
+import static com.chesapeaketechnology.syncmonkey.fileupload.SyncMonkeyDatabaseHelper.TABLE_UPLOAD_QUEUE;
+
+/**
+ * A persistent priority queue of the local files that are waiting to be uploaded, so that content a user shares is uploaded before recent captures, and
+ * recent captures before a bulk backfill of older survey data.
+ * <p>
+ * Files are queued by the {@link com.chesapeaketechnology.syncmonkey.SharingActivity} as they are shared, and by the sync adapter the first time it plans
+ * them.  A queued file keeps the time it was first queued, and its priority is raised one class for every {@link #AGING_INTERVAL_MILLIS} it has waited, so
+ * a steady stream of higher priority work can't hold back the bulk work forever.  Aging stops at {@link Priority#RECENT}, so a shared file always goes
+ * ahead of a backfill no matter how long the backfill has waited.  Files are removed from the queue once they are uploaded.
+ * <p>
+ * The queue is backed by the {@link SyncMonkeyDatabaseHelper} database, so it is shared between the app's main process and the {@code :sync} process.
+ *
+ * @since 0.0.10
+ */
+public class UploadQueue
+{
+    private static final String LOG_TAG = UploadQueue.class.getSimpleName();
+
+    /**
+     * How long a file has to wait before it is moved up one priority class.
+     */
+    private static final long AGING_INTERVAL_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Files modified more recently than this are queued as {@link Priority#RECENT}, and older files as {@link Priority#BULK}.
+     */
+    private static final long RECENT_WINDOW_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * The longest that a {@link Priority#BULK} file is held back for the bulk lane, in case the device is rarely idle and charging.
+     */
+    static final long MAX_BULK_DEFERRAL_MILLIS = 24 * 60 * 60 * 1000;
+
+    /**
+     * The most files and bytes in a single batch.  The queue is checked for new interactive files between batches, so this bounds how long a share waits
+     * behind a bulk transfer that is already running.
+     */
+    private static final int MAX_BATCH_FILES = 200;
+    private static final long MAX_BATCH_BYTES = 64L * 1024 * 1024;
+
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    /**
+     * The priority classes, from the most to the least urgent.
+     */
+    public enum Priority
+    {
+        /**
+         * Content that the user shared with Sync Monkey and is waiting on.
+         */
+        INTERACTIVE,
+
+        /**
+         * Files that were modified recently.
+         */
+        RECENT,
+
+        /**
+         * Older files, such as a backfill of existing survey data.
+         */
+        BULK
+    }
+
+    private final SyncMonkeyDatabaseHelper databaseHelper;
+
+    public UploadQueue(Context context)
+    {
+        databaseHelper = SyncMonkeyDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Queues the provided files with the provided priority.  A file that is already queued keeps the time it was first queued, and only has its priority
+     * changed if the new priority is more urgent.
+     *
+     * @param paths    The absolute paths of the local files.
+     * @param priority The priority class of the files.
+     */
+    public void enqueue(Collection<String> paths, Priority priority)
+    {
+        if (paths.isEmpty()) return;
+
+        final long now = System.currentTimeMillis();
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try
+        {
+            final ContentValues values = new ContentValues();
+            final ContentValues priorityValues = new ContentValues();
+            priorityValues.put(COLUMN_PRIORITY, priority.ordinal());
+            for (String path : paths)
+            {
+                values.clear();
+                values.put(COLUMN_PATH, path);
+                values.put(COLUMN_PRIORITY, priority.ordinal());
+                values.put(COLUMN_ENQUEUED_AT, now);
+
+                if (database.insertWithOnConflict(TABLE_UPLOAD_QUEUE, null, values, SQLiteDatabase.CONFLICT_IGNORE) == -1)
+                {
+                    database.update(TABLE_UPLOAD_QUEUE, priorityValues, COLUMN_PATH + " = ? AND " + COLUMN_PRIORITY + " > ?",
+                            new String[]{path, String.valueOf(priority.ordinal())});
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the provided files from the queue, which is done once they have been uploaded.
+     */
+    public void remove(Collection<LocalFileEntry> fileEntries)
+    {
+        if (fileEntries.isEmpty()) return;
+
+        final SQLiteDatabase database = databaseHelper.getWritableDatabase();
+        database.beginTransaction();
+        try
+        {
+            for (LocalFileEntry fileEntry : fileEntries)
+            {
+                database.delete(TABLE_UPLOAD_QUEUE, COLUMN_PATH + " = ?", new String[]{fileEntry.getPath()});
+            }
+            database.setTransactionSuccessful();
+        } finally
+        {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * @return The paths of the files that were queued as {@link Priority#INTERACTIVE} and have not been uploaded yet.  Files that no longer exist are
+     * dropped from the queue.
+     */
+    public Set<String> getInteractivePaths()
+    {
+        final Set<String> paths = new LinkedHashSet<>();
+        final List<String> missingPaths = new ArrayList<>();
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        try (final Cursor cursor = database.query(TABLE_UPLOAD_QUEUE, new String[]{COLUMN_PATH}, COLUMN_PRIORITY + " = ?",
+                new String[]{String.valueOf(Priority.INTERACTIVE.ordinal())}, null, null, COLUMN_ENQUEUED_AT))
+        {
+            while (cursor.moveToNext())
+            {
+                final String path = cursor.getString(0);
+                (new File(path).isFile() ? paths : missingPaths).add(path);
+            }
+        }
+
+        for (String missingPath : missingPaths)
+        {
+            databaseHelper.getWritableDatabase().delete(TABLE_UPLOAD_QUEUE, COLUMN_PATH + " = ?", new String[]{missingPath});
+        }
+        return paths;
+    }
+
+    /**
+     * Queues any of the provided files that are not queued yet, then splits them into batches in the order they should be uploaded.  Files are ordered
+     * by their priority after aging, then by how long they have been queued.  A new batch is started whenever the priority changes, and when a batch
+     * reaches {@link #MAX_BATCH_FILES} files or {@link #MAX_BATCH_BYTES} bytes.
+     *
+     * @param fileEntries The files that are about to be uploaded.
+     * @param deferBulk   True if files that were queued as {@link Priority#BULK} should be left out, unless they have waited longer than
+     *                    {@link #MAX_BULK_DEFERRAL_MILLIS}.  They stay queued for the bulk lane.
+     * @return The batches, most urgent first.
+     */
+    public List<List<LocalFileEntry>> schedule(List<LocalFileEntry> fileEntries, boolean deferBulk)
+    {
+        if (fileEntries.isEmpty()) return Collections.emptyList();
+
+        final long now = System.currentTimeMillis();
+        final List<String> recentPaths = new ArrayList<>();
+        final List<String> bulkPaths = new ArrayList<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            (now - fileEntry.getLastModified() < RECENT_WINDOW_MILLIS ? recentPaths : bulkPaths).add(fileEntry.getPath());
+        }
+        enqueue(recentPaths, Priority.RECENT);
+        enqueue(bulkPaths, Priority.BULK);
+
+        final List<List<LocalFileEntry>> batches = createBatches(fileEntries, getQueuedFiles(fileEntries), deferBulk, now);
+
+        if (Log.isLoggable(LOG_TAG, Log.INFO))
+        {
+            int scheduledCount = 0;
+            for (List<LocalFileEntry> batch : batches)
+            {
+                scheduledCount += batch.size();
+            }
+            Log.i(LOG_TAG, "Scheduled " + scheduledCount + " files in " + batches.size() + " batches, " + recentPaths.size() + " recent and "
+                    + bulkPaths.size() + " bulk before aging, " + (fileEntries.size() - scheduledCount) + " deferred to the bulk lane");
+        }
+        return batches;
+    }
+
+    /**
+     * Splits the provided files into batches in the order they should be uploaded, as described in {@link #schedule(List, boolean)}.
+     *
+     * @param queuedFiles The queue entries of the files, by path.  A file without one is treated as {@link Priority#BULK} queued right now.
+     * @param now         The current time, which the aging and the bulk deferral are measured from.
+     */
+    static List<List<LocalFileEntry>> createBatches(List<LocalFileEntry> fileEntries, Map<String, QueuedFile> queuedFiles, boolean deferBulk, long now)
+    {
+        final List<LocalFileEntry> orderedEntries = new ArrayList<>();
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (!deferBulk || !isDeferred(queuedFiles.get(fileEntry.getPath()), now)) orderedEntries.add(fileEntry);
+        }
+        Collections.sort(orderedEntries, (first, second) -> {
+            final QueuedFile firstQueued = queuedFiles.get(first.getPath());
+            final QueuedFile secondQueued = queuedFiles.get(second.getPath());
+            final int priorityComparison = Integer.compare(getEffectivePriority(firstQueued, now), getEffectivePriority(secondQueued, now));
+            if (priorityComparison != 0) return priorityComparison;
+            return Long.compare(getEnqueuedAt(firstQueued, now), getEnqueuedAt(secondQueued, now));
+        });
+
+        final List<List<LocalFileEntry>> batches = new ArrayList<>();
+        List<LocalFileEntry> batch = new ArrayList<>();
+        int batchPriority = -1;
+        long batchBytes = 0;
+        for (LocalFileEntry fileEntry : orderedEntries)
+        {
+            final int priority = getEffectivePriority(queuedFiles.get(fileEntry.getPath()), now);
+            if (!batch.isEmpty() && (priority != batchPriority || batch.size() >= MAX_BATCH_FILES || batchBytes + fileEntry.getSize() > MAX_BATCH_BYTES))
+            {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(fileEntry);
+            batchPriority = priority;
+            batchBytes += fileEntry.getSize();
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        return batches;
+    }
+
+    /**
+     * @return The priority class after aging, where zero is the most urgent.  Only files queued as {@link Priority#INTERACTIVE} are in that class.
+     */
+    static int getEffectivePriority(QueuedFile queuedFile, long now)
+    {
+        if (queuedFile == null) return Priority.BULK.ordinal();
+        if (queuedFile.priority <= Priority.INTERACTIVE.ordinal()) return Priority.INTERACTIVE.ordinal();
+
+        final long promotions = Math.max(0, now - queuedFile.enqueuedAt) / AGING_INTERVAL_MILLIS;
+        return (int) Math.max(Priority.RECENT.ordinal(), queuedFile.priority - promotions);
+    }
+
+    private static boolean isDeferred(QueuedFile queuedFile, long now)
+    {
+        return queuedFile != null && queuedFile.priority == Priority.BULK.ordinal() && now - queuedFile.enqueuedAt < MAX_BULK_DEFERRAL_MILLIS;
+    }
+
+    private static long getEnqueuedAt(QueuedFile queuedFile, long now)
+    {
+        return queuedFile == null ? now : queuedFile.enqueuedAt;
+    }
+
+    private Map<String, QueuedFile> getQueuedFiles(List<LocalFileEntry> fileEntries)
+    {
+        final Map<String, QueuedFile> queuedFiles = new HashMap<>();
+        final SQLiteDatabase database = databaseHelper.getReadableDatabase();
+        final String[] columns = {COLUMN_PATH, COLUMN_PRIORITY, COLUMN_ENQUEUED_AT};
+
+        for (int start = 0; start < fileEntries.size(); start += QUERY_BATCH_SIZE)
+        {
+            final List<LocalFileEntry> batch = fileEntries.subList(start, Math.min(fileEntries.size(), start + QUERY_BATCH_SIZE));
+            final String[] selectionArgs = new String[batch.size()];
+            final StringBuilder selection = new StringBuilder(COLUMN_PATH).append(" IN (");
+            for (int i = 0; i < batch.size(); i++)
+            {
+                selection.append(i == 0 ? "?" : ", ?");
+                selectionArgs[i] = batch.get(i).getPath();
+            }
+            selection.append(')');
+
+            try (final Cursor cursor = database.query(TABLE_UPLOAD_QUEUE, columns, selection.toString(), selectionArgs, null, null, null))
+            {
+                while (cursor.moveToNext())
+                {
+                    queuedFiles.put(cursor.getString(0), new QueuedFile(cursor.getInt(1), cursor.getLong(2)));
+                }
+            }
+        }
+
+        return queuedFiles;
+    }
+
+    static class QueuedFile
+    {
+        private final int priority;
+        private final long enqueuedAt;
+
+        QueuedFile(int priority, long enqueuedAt)
+        {
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
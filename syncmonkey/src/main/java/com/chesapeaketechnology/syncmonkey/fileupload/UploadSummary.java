@@ -0,0 +1,112 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The aggregated outcome of a single sync run, made up of one {@link DirectoryUploadResult} per sync directory.
+ *
+ * @since 0.0.10
+ */
+public class UploadSummary
+{
+    private final List<DirectoryUploadResult> directoryResults = new ArrayList<>();
+    private int notAttemptedCount;
+    private long notAttemptedByteCount;
+    private boolean budgetExhausted;
+
+    void addDirectoryResult(DirectoryUploadResult directoryResult)
+    {
+        directoryResults.add(directoryResult);
+    }
+
+    /**
+     * Records a file that was planned but never handed to rclone, such as one in a batch that was left for a later sync.
+     */
+    void addNotAttempted(LocalFileEntry fileEntry)
+    {
+        notAttemptedCount++;
+        notAttemptedByteCount += fileEntry.getSize();
+    }
+
+    public List<DirectoryUploadResult> getDirectoryResults()
+    {
+        return Collections.unmodifiableList(directoryResults);
+    }
+
+    /**
+     * @return The number of directories that did not upload successfully.
+     */
+    public int getFailedCount()
+    {
+        int failedCount = 0;
+        for (DirectoryUploadResult directoryResult : directoryResults)
+        {
+            if (!directoryResult.isSuccessful()) failedCount++;
+        }
+        return failedCount;
+    }
+
+    /**
+     * @return The exit code of the first directory that did not upload successfully, or zero if they all did.
+     */
+    public int getExitCode()
+    {
+        for (DirectoryUploadResult directoryResult : directoryResults)
+        {
+            if (!directoryResult.isSuccessful()) return directoryResult.getExitCode();
+        }
+        return 0;
+    }
+
+    /**
+     * @return True if every directory in this sync run uploaded successfully.
+     */
+    public boolean isSuccessful()
+    {
+        return getFailedCount() == 0;
+    }
+
+    /**
+     * @return The number of planned files that were never handed to rclone, which are neither uploaded nor failed.
+     */
+    public int getNotAttemptedCount()
+    {
+        return notAttemptedCount;
+    }
+
+    /**
+     * @return The total size of the planned files that were never handed to rclone.
+     */
+    public long getNotAttemptedByteCount()
+    {
+        return notAttemptedByteCount;
+    }
+
+    void setBudgetExhausted(boolean budgetExhausted)
+    {
+        this.budgetExhausted = budgetExhausted;
+    }
+
+    /**
+     * @return True if the sync stopped early because its {@link SyncSession} ran out of budget, so there are files left for a follow-up sync.
+     */
+    public boolean isBudgetExhausted()
+    {
+        return budgetExhausted;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "UploadSummary{" +
+                "directoryCount=" + directoryResults.size() +
+                ", failedCount=" + getFailedCount() +
+                ", notAttemptedCount=" + notAttemptedCount +
+                ", notAttemptedByteCount=" + notAttemptedByteCount +
+                ", budgetExhausted=" + budgetExhausted +
+                ", directoryResults=" + directoryResults +
+                '}';
+    }
+}
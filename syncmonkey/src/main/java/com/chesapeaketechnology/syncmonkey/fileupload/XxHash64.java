@@ -0,0 +1,166 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the 64-bit xxHash algorithm.  It is much faster than MD5, which makes it a good fit for detecting whether the contents of
+ * a local file have changed, but it is not a cryptographic hash and is never sent to the remote server.
+ *
+ * @since 0.0.10
+ */
+public class XxHash64
+{
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE_LENGTH = 32;
+
+    private final long seed;
+    private final ByteBuffer stripeBuffer = ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    public XxHash64()
+    {
+        this(0);
+    }
+
+    public XxHash64(long seed)
+    {
+        this.seed = seed;
+        reset();
+    }
+
+    public void reset()
+    {
+        v1 = seed + PRIME64_1 + PRIME64_2;
+        v2 = seed + PRIME64_2;
+        v3 = seed;
+        v4 = seed - PRIME64_1;
+        totalLength = 0;
+        stripeBuffer.clear();
+    }
+
+    /**
+     * Adds all of the remaining bytes in the provided buffer to the hash.  The buffer's position is moved to its limit, but its byte order is left alone.
+     */
+    public void update(ByteBuffer input)
+    {
+        final ByteBuffer buffer = input.slice().order(ByteOrder.LITTLE_ENDIAN);
+        input.position(input.limit());
+
+        totalLength += buffer.remaining();
+
+        // Finish any stripe left over from the previous update
+        if (stripeBuffer.position() > 0)
+        {
+            while (stripeBuffer.hasRemaining() && buffer.hasRemaining())
+            {
+                stripeBuffer.put(buffer.get());
+            }
+            if (stripeBuffer.hasRemaining()) return;
+
+            stripeBuffer.flip();
+            processStripe(stripeBuffer);
+            stripeBuffer.clear();
+        }
+
+        while (buffer.remaining() >= STRIPE_LENGTH)
+        {
+            processStripe(buffer);
+        }
+
+        stripeBuffer.put(buffer);
+    }
+
+    public void update(byte[] input, int offset, int length)
+    {
+        update(ByteBuffer.wrap(input, offset, length));
+    }
+
+    private void processStripe(ByteBuffer buffer)
+    {
+        v1 = round(v1, buffer.getLong());
+        v2 = round(v2, buffer.getLong());
+        v3 = round(v3, buffer.getLong());
+        v4 = round(v4, buffer.getLong());
+    }
+
+    /**
+     * @return The hash of everything added so far.  More bytes can still be added afterwards.
+     */
+    public long getValue()
+    {
+        long hash;
+        if (totalLength >= STRIPE_LENGTH)
+        {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else
+        {
+            hash = seed + PRIME64_5;
+        }
+
+        hash += totalLength;
+
+        final ByteBuffer remaining = stripeBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        remaining.flip();
+
+        while (remaining.remaining() >= 8)
+        {
+            hash ^= round(0, remaining.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+        }
+
+        if (remaining.remaining() >= 4)
+        {
+            hash ^= (remaining.getInt() & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+        }
+
+        while (remaining.hasRemaining())
+        {
+            hash ^= (remaining.get() & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    /**
+     * @return The hash as a 16 character lower case hex string.
+     */
+    public String getHexValue()
+    {
+        final String hex = Long.toHexString(getValue());
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value)
+    {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
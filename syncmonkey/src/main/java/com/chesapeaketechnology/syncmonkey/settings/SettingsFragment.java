@@ -8,6 +8,9 @@ import androidx.preference.PreferenceFragmentCompat;
 
 import com.chesapeaketechnology.syncmonkey.R;
 import com.chesapeaketechnology.syncmonkey.SyncMonkeyConstants;
+import com.chesapeaketechnology.syncmonkey.fileupload.FileUploadSyncAdapter;
+import com.chesapeaketechnology.syncmonkey.fileupload.LiveSyncService;
+import com.chesapeaketechnology.syncmonkey.fileupload.RetryPolicy;
 
 import net.grandcentrix.tray.AppPreferences;
 
@@ -40,15 +43,35 @@ public class SettingsFragment extends PreferenceFragmentCompat implements Shared
         switch (key)
         {
             case SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY:
+                final boolean autoSync = sharedPreferences.getBoolean(key, true);
+                appPreferences.put(key, autoSync);
+                LiveSyncService.update(getContext());
+                break;
+
             case SyncMonkeyConstants.PROPERTY_VPN_ONLY_KEY:
+                appPreferences.put(key, sharedPreferences.getBoolean(key, true));
+                break;
+
             case SyncMonkeyConstants.PROPERTY_WIFI_ONLY_KEY:
                 appPreferences.put(key, sharedPreferences.getBoolean(key, true));
+                if (appPreferences.getBoolean(SyncMonkeyConstants.PROPERTY_AUTO_SYNC_KEY, true))
+                {
+                    FileUploadSyncAdapter.addPeriodicSync(getContext()); // The upload jobs require an unmetered network when this is set
+                }
+                break;
+
+            case SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY:
+                appPreferences.put(key, sharedPreferences.getString(key, ""));
+                LiveSyncService.update(getContext()); // Pick up the new set of directories
                 break;
 
             case SyncMonkeyConstants.PROPERTY_AZURE_SAS_URL_KEY:
             case SyncMonkeyConstants.PROPERTY_CONTAINER_NAME_KEY:
+                appPreferences.put(key, sharedPreferences.getString(key, ""));
+                RetryPolicy.resetConfiguredRemote(getContext()); // Failures with the old credentials don't apply to the new ones
+                break;
+
             case SyncMonkeyConstants.PROPERTY_DEVICE_ID_KEY:
-            case SyncMonkeyConstants.PROPERTY_LOCAL_SYNC_DIRECTORIES_KEY:
                 appPreferences.put(key, sharedPreferences.getString(key, ""));
                 break;
 
@@ -0,0 +1,104 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the parsing of the bandwidth schedules and the lookup of the rate in effect at a given time.
+ */
+public class BandwidthPolicyTest
+{
+    @Test
+    public void singleRate_appliesAllWeek()
+    {
+        final List<BandwidthPolicy.Slot> slots = BandwidthPolicy.parseSchedule(" 512k ");
+
+        assertEquals(1, slots.size());
+        assertEquals("00:00,512k", slots.get(0).toString());
+        assertEquals("512k", BandwidthPolicy.getRateAt(slots, time(Calendar.MONDAY, 0, 0)));
+        assertEquals("512k", BandwidthPolicy.getRateAt(slots, time(Calendar.SUNDAY, 23, 59)));
+    }
+
+    @Test
+    public void singleRate_acceptsUploadAndDownloadRates()
+    {
+        assertEquals("1M:off", BandwidthPolicy.getRateAt(BandwidthPolicy.parseSchedule("1M:off"), time(Calendar.WEDNESDAY, 12, 0)));
+    }
+
+    @Test
+    public void dailyTimetable_appliesTheLastEntryThatStarted()
+    {
+        final List<BandwidthPolicy.Slot> slots = BandwidthPolicy.parseSchedule("08:00,512k:2M 18:00,off");
+
+        assertEquals("512k:2M", BandwidthPolicy.getRateAt(slots, time(Calendar.TUESDAY, 8, 0)));
+        assertEquals("512k:2M", BandwidthPolicy.getRateAt(slots, time(Calendar.TUESDAY, 17, 59)));
+        assertEquals("off", BandwidthPolicy.getRateAt(slots, time(Calendar.TUESDAY, 18, 0)));
+        assertEquals("off", BandwidthPolicy.getRateAt(slots, time(Calendar.WEDNESDAY, 7, 59))); // Carried over from the evening before
+    }
+
+    @Test
+    public void dayPrefixedEntries_onlyApplyOnTheirDay()
+    {
+        final List<BandwidthPolicy.Slot> slots = BandwidthPolicy.parseSchedule("Mon-08:00,1M Fri-18:00,off Saturday-09:30,256k");
+
+        assertEquals("Mon-08:00,1M", slots.get(0).toString());
+        assertEquals("Sat-09:30,256k", slots.get(2).toString());
+        assertEquals("1M", BandwidthPolicy.getRateAt(slots, time(Calendar.MONDAY, 8, 0)));
+        assertEquals("1M", BandwidthPolicy.getRateAt(slots, time(Calendar.FRIDAY, 17, 59)));
+        assertEquals("off", BandwidthPolicy.getRateAt(slots, time(Calendar.FRIDAY, 18, 0)));
+        assertEquals("256k", BandwidthPolicy.getRateAt(slots, time(Calendar.SATURDAY, 9, 30)));
+    }
+
+    @Test
+    public void weekWrapsAroundToTheLastEntry()
+    {
+        final List<BandwidthPolicy.Slot> slots = BandwidthPolicy.parseSchedule("Mon-08:00,1M Fri-18:00,off Sun-20:00,2M");
+
+        // Before the first entry of the week, the last entry of the previous week is still in effect
+        assertEquals("2M", BandwidthPolicy.getRateAt(slots, time(Calendar.MONDAY, 0, 0)));
+        assertEquals("2M", BandwidthPolicy.getRateAt(slots, time(Calendar.MONDAY, 7, 59)));
+        assertEquals("2M", BandwidthPolicy.getRateAt(slots, time(Calendar.SUNDAY, 23, 59)));
+    }
+
+    @Test
+    public void invalidSchedules_areRejected()
+    {
+        final String[] invalidSchedules = {"fast", "25:00,1M", "08:60,1M", "Xyz-08:00,1M", "Mo-08:00,1M", "08:00,fast", "08:00,1M 18:00"};
+        for (String invalidSchedule : invalidSchedules)
+        {
+            try
+            {
+                BandwidthPolicy.parseSchedule(invalidSchedule);
+                fail("Expected the schedule to be rejected: " + invalidSchedule);
+            } catch (IllegalArgumentException expected)
+            {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void invalidOrMissingSchedules_fallBackToUnthrottled()
+    {
+        final String[] schedules = {null, "", "   ", "fast", "25:00,1M", "08:00,512k Xyz-18:00,off"};
+        for (String schedule : schedules)
+        {
+            final List<BandwidthPolicy.Slot> slots = BandwidthPolicy.parseScheduleOrUnthrottled(schedule, BandwidthPolicy.NetworkType.WIFI);
+            assertTrue(slots.isEmpty());
+            assertEquals(BandwidthPolicy.RATE_OFF, BandwidthPolicy.getRateAt(slots, time(Calendar.THURSDAY, 12, 0)));
+        }
+    }
+
+    private static Calendar time(int dayOfWeek, int hour, int minute)
+    {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2020, Calendar.JUNE, 1 + (dayOfWeek + 5) % 7, hour, minute); // June 1, 2020 was a Monday
+        assertEquals(dayOfWeek, calendar.get(Calendar.DAY_OF_WEEK));
+        return calendar;
+    }
+}
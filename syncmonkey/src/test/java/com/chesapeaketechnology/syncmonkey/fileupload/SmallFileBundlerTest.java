@@ -0,0 +1,217 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the bundles built by the {@link SmallFileBundler} back with a separate ustar reader, and checks the members against the index.
+ */
+public class SmallFileBundlerTest
+{
+    private static final int BLOCK_SIZE = 512;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void bundle_roundTripsThroughTarReader() throws IOException
+    {
+        final List<LocalFileEntry> fileEntries = Arrays.asList(
+                createFile("a.csv", "first"),
+                createFile("logs/b.log", ""),
+                createFile("logs/nested/c.bin", repeat('x', 1500)),
+                createFile(repeat('d', 90) + "/" + repeat('e', 90) + ".txt", "long path"));
+
+        final Map<String, byte[]> members = readBundle(bundle(fileEntries, false));
+        assertMembersMatch(fileEntries, members);
+    }
+
+    @Test
+    public void bundle_roundTripsWhenCompressed() throws IOException
+    {
+        final List<LocalFileEntry> fileEntries = Arrays.asList(createFile("a.csv", "first"), createFile("b.csv", "second"));
+
+        final File bundleFile = bundle(fileEntries, true);
+        assertTrue(bundleFile.getName().endsWith(".tar.gz"));
+        assertMembersMatch(fileEntries, readBundle(bundleFile));
+    }
+
+    @Test
+    public void bundle_leavesOutPathsThatWouldCorruptTheIndex() throws IOException
+    {
+        final LocalFileEntry tab = createFile("tab\tname.csv", "tab");
+        final LocalFileEntry newline = createFile("newline\nname.csv", "newline");
+        final LocalFileEntry first = createFile("a.csv", "first");
+        final LocalFileEntry second = createFile("b.csv", "second");
+
+        final SmallFileBundler.Bundles bundles = new SmallFileBundler().bundle(Arrays.asList(tab, newline, first, second), 1024, false,
+                new File(temporaryFolder.getRoot(), "bundles"));
+
+        assertEquals(2, bundles.getBundledRelativePaths().size());
+        assertFalse(bundles.getBundledRelativePaths().contains(tab.getRelativePath()));
+        assertFalse(bundles.getBundledRelativePaths().contains(newline.getRelativePath()));
+        assertMembersMatch(Arrays.asList(first, second), readBundle(bundles.getBundleFilesByRelativePath().values().iterator().next()));
+    }
+
+    private File bundle(List<LocalFileEntry> fileEntries, boolean compress) throws IOException
+    {
+        final SmallFileBundler.Bundles bundles = new SmallFileBundler().bundle(fileEntries, 1024 * 1024, compress,
+                new File(temporaryFolder.getRoot(), "bundles"));
+
+        assertEquals(fileEntries.size(), bundles.getBundledRelativePaths().size());
+        assertEquals(1, bundles.getBundleFilesByRelativePath().size());
+        final String bundlePath = bundles.getBundleFilesByRelativePath().keySet().iterator().next();
+        assertTrue(bundlePath.startsWith(SmallFileBundler.BUNDLE_DIRECTORY_NAME + "/"));
+        return bundles.getBundleFilesByRelativePath().get(bundlePath);
+    }
+
+    /**
+     * Checks that the index is the first member and lists every file, and that each file's contents made it into the bundle unchanged.
+     */
+    private static void assertMembersMatch(List<LocalFileEntry> fileEntries, Map<String, byte[]> members) throws IOException
+    {
+        final List<String> memberNames = new ArrayList<>(members.keySet());
+        assertEquals(SmallFileBundler.INDEX_MEMBER_NAME, memberNames.get(0));
+        assertEquals(fileEntries.size() + 1, members.size());
+
+        final String[] indexLines = new String(members.get(SmallFileBundler.INDEX_MEMBER_NAME), StandardCharsets.UTF_8).split("\n");
+        assertEquals(fileEntries.size(), indexLines.length);
+        for (String indexLine : indexLines)
+        {
+            final String[] fields = indexLine.split("\t");
+            assertEquals(3, fields.length);
+
+            final LocalFileEntry fileEntry = findEntry(fileEntries, fields[0]);
+            assertEquals(fileEntry.getSize(), Long.parseLong(fields[1]));
+            assertEquals(fileEntry.getLastModified(), Long.parseLong(fields[2]));
+            assertArrayEquals(readFile(fileEntry.getFile()), members.get(fields[0]));
+        }
+    }
+
+    private static LocalFileEntry findEntry(List<LocalFileEntry> fileEntries, String relativePath)
+    {
+        for (LocalFileEntry fileEntry : fileEntries)
+        {
+            if (fileEntry.getRelativePath().equals(relativePath)) return fileEntry;
+        }
+        throw new AssertionError("The index lists a file that was not bundled: " + relativePath);
+    }
+
+    /**
+     * A minimal ustar reader, independent of the writer, that also checks each header checksum.
+     *
+     * @return The contents of each member keyed by its path, in archive order.
+     */
+    private static Map<String, byte[]> readBundle(File bundleFile) throws IOException
+    {
+        final Map<String, byte[]> members = new LinkedHashMap<>();
+        try (final InputStream fileInputStream = new FileInputStream(bundleFile);
+             final DataInputStream inputStream = new DataInputStream(bundleFile.getName().endsWith(".gz")
+                     ? new GZIPInputStream(fileInputStream) : fileInputStream))
+        {
+            final byte[] header = new byte[BLOCK_SIZE];
+            while (true)
+            {
+                try
+                {
+                    inputStream.readFully(header);
+                } catch (EOFException e)
+                {
+                    fail("The archive is missing its end marker");
+                }
+                if (isZeroBlock(header)) break;
+
+                long checksum = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) checksum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xFF;
+                assertEquals(checksum, parseOctal(header, 148, 8));
+                assertEquals("ustar", readString(header, 257, 6));
+                assertEquals('0', header[156]);
+
+                final String name = readString(header, 0, 100);
+                final String prefix = readString(header, 345, 155);
+                final String path = prefix.isEmpty() ? name : prefix + "/" + name;
+                final long size = parseOctal(header, 124, 12);
+
+                final byte[] contents = new byte[(int) size];
+                inputStream.readFully(contents);
+                inputStream.readFully(new byte[(int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE)]);
+                members.put(path, contents);
+            }
+
+            inputStream.readFully(header);
+            assertTrue("The archive must end with two empty blocks", isZeroBlock(header));
+        }
+        return members;
+    }
+
+    private static boolean isZeroBlock(byte[] block)
+    {
+        for (byte b : block)
+        {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private static String readString(byte[] header, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) end++;
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long parseOctal(byte[] header, int offset, int length)
+    {
+        return Long.parseLong(readString(header, offset, length).trim(), 8);
+    }
+
+    private LocalFileEntry createFile(String relativePath, String contents) throws IOException
+    {
+        final File file = new File(temporaryFolder.getRoot(), "sync/" + relativePath);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        try (final OutputStream outputStream = new FileOutputStream(file))
+        {
+            outputStream.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+        return new LocalFileEntry(file, relativePath, file.length(), file.lastModified());
+    }
+
+    private static byte[] readFile(File file) throws IOException
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (final InputStream inputStream = new FileInputStream(file))
+        {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static String repeat(char c, int count)
+    {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,128 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the glob parsing and the scan filter of the {@link SyncDirectoryScanner}.
+ */
+public class SyncDirectoryScannerTest
+{
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    @Test
+    public void parseGlobs_splitsOnColonsAndSkipsBlanks()
+    {
+        assertTrue(SyncDirectoryScanner.parseGlobs(null).isEmpty());
+        assertTrue(SyncDirectoryScanner.parseGlobs("  ").isEmpty());
+
+        final List<SyncDirectoryScanner.Glob> globs = SyncDirectoryScanner.parseGlobs(" *.csv : :logs/** ");
+        assertEquals(2, globs.size());
+        assertTrue(globs.get(0).matches("a/b.csv"));
+        assertTrue(globs.get(1).matches("logs/today.txt"));
+    }
+
+    @Test
+    public void glob_withoutSlashMatchesTheNameOnly()
+    {
+        final SyncDirectoryScanner.Glob glob = new SyncDirectoryScanner.Glob("*.csv");
+        assertTrue(glob.matches("survey.csv"));
+        assertTrue(glob.matches("2020/06/survey.csv"));
+        assertFalse(glob.matches("survey.csv.tmp"));
+    }
+
+    @Test
+    public void glob_withSlashMatchesTheRelativePath()
+    {
+        final SyncDirectoryScanner.Glob glob = new SyncDirectoryScanner.Glob("logs/*.txt");
+        assertTrue(glob.matches("logs/today.txt"));
+        assertFalse(glob.matches("logs/old/today.txt")); // A single star does not cross a slash
+        assertFalse(glob.matches("other/logs/today.txt"));
+    }
+
+    @Test
+    public void glob_doubleStarMatchesAcrossDirectories()
+    {
+        final SyncDirectoryScanner.Glob anyDirectory = new SyncDirectoryScanner.Glob("**/*.log");
+        assertTrue(anyDirectory.matches("app.log"));
+        assertTrue(anyDirectory.matches("a/b/c/app.log"));
+
+        final SyncDirectoryScanner.Glob belowDirectory = new SyncDirectoryScanner.Glob("cache/**");
+        assertTrue(belowDirectory.matches("cache"));
+        assertTrue(belowDirectory.matches("cache/a/b.bin"));
+        assertFalse(belowDirectory.matches("cached/b.bin"));
+    }
+
+    @Test
+    public void glob_supportsAlternativesAndCharacterClasses()
+    {
+        final SyncDirectoryScanner.Glob alternatives = new SyncDirectoryScanner.Glob("*.{csv,json}");
+        assertTrue(alternatives.matches("a.csv"));
+        assertTrue(alternatives.matches("a.json"));
+        assertFalse(alternatives.matches("a.txt"));
+
+        final SyncDirectoryScanner.Glob characterClass = new SyncDirectoryScanner.Glob("scan[0-9].bin");
+        assertTrue(characterClass.matches("scan7.bin"));
+        assertFalse(characterClass.matches("scanA.bin"));
+
+        final SyncDirectoryScanner.Glob negatedClass = new SyncDirectoryScanner.Glob("[!.]*");
+        assertTrue(negatedClass.matches("visible"));
+        assertFalse(negatedClass.matches(".hidden"));
+
+        final SyncDirectoryScanner.Glob singleCharacter = new SyncDirectoryScanner.Glob("data?.bin");
+        assertTrue(singleCharacter.matches("data1.bin"));
+        assertFalse(singleCharacter.matches("data12.bin"));
+    }
+
+    @Test
+    public void glob_escapesRegexCharacters()
+    {
+        final SyncDirectoryScanner.Glob glob = new SyncDirectoryScanner.Glob("report(1)+.txt");
+        assertTrue(glob.matches("report(1)+.txt"));
+        assertFalse(glob.matches("report1.txt"));
+        assertFalse(glob.matches("report(1)+Xtxt"));
+    }
+
+    @Test
+    public void filter_appliesIncludeAndExcludeGlobs()
+    {
+        final SyncDirectoryScanner.Filter filter = new SyncDirectoryScanner.Filter(SyncDirectoryScanner.parseGlobs("*.csv"),
+                SyncDirectoryScanner.parseGlobs("tmp:*.partial.csv"), 0, 0, 0);
+
+        assertTrue(filter.accepts(entry("survey.csv", 10, System.currentTimeMillis())));
+        assertFalse(filter.accepts(entry("survey.txt", 10, System.currentTimeMillis())));
+        assertFalse(filter.accepts(entry("survey.partial.csv", 10, System.currentTimeMillis())));
+        assertFalse(filter.accepts(entry("a/tmp/survey.csv", 10, System.currentTimeMillis()))); // The excluded directory is checked too
+    }
+
+    @Test
+    public void filter_appliesDepthSizeAndAgeLimits()
+    {
+        final long now = System.currentTimeMillis();
+        final SyncDirectoryScanner.Filter filter = new SyncDirectoryScanner.Filter(Collections.emptyList(), Collections.emptyList(), 2, 100,
+                7 * DAY_MILLIS);
+
+        assertTrue(filter.accepts(entry("a/b.csv", 100, now)));
+        assertFalse(filter.accepts(entry("a/b/c.csv", 100, now)));
+        assertFalse(filter.accepts(entry("a.csv", 101, now)));
+        assertFalse(filter.accepts(entry("a.csv", 100, now - 8 * DAY_MILLIS)));
+    }
+
+    @Test
+    public void filter_withoutLimitsAcceptsEverything()
+    {
+        final SyncDirectoryScanner.Filter filter = new SyncDirectoryScanner.Filter(Collections.emptyList(), Collections.emptyList(), 0, 0, 0);
+
+        assertTrue(filter.accepts(entry("a/b/c/d/e.bin", Long.MAX_VALUE, 0)));
+    }
+
+    private static LocalFileEntry entry(String relativePath, long size, long lastModified)
+    {
+        return new LocalFileEntry(new File("/sdcard/sync", relativePath), relativePath, size, lastModified);
+    }
+}
@@ -0,0 +1,81 @@
+package com.chesapeaketechnology.syncmonkey.fileupload;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the aging and ordering of the {@link UploadQueue}, without the database that backs it.
+ */
+public class UploadQueueTest
+{
+    private static final long NOW = 1_600_000_000_000L;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final Map<String, UploadQueue.QueuedFile> queuedFiles = new HashMap<>();
+
+    @Test
+    public void bulkFileNeverOutranksInteractive()
+    {
+        final UploadQueue.QueuedFile ancientBulk = new UploadQueue.QueuedFile(UploadQueue.Priority.BULK.ordinal(), NOW - 365 * DAY_MILLIS);
+        final UploadQueue.QueuedFile newInteractive = new UploadQueue.QueuedFile(UploadQueue.Priority.INTERACTIVE.ordinal(), NOW);
+
+        assertEquals(UploadQueue.Priority.RECENT.ordinal(), UploadQueue.getEffectivePriority(ancientBulk, NOW));
+        assertEquals(UploadQueue.Priority.INTERACTIVE.ordinal(), UploadQueue.getEffectivePriority(newInteractive, NOW));
+    }
+
+    @Test
+    public void bulkFileAgesIntoRecent()
+    {
+        final UploadQueue.QueuedFile newBulk = new UploadQueue.QueuedFile(UploadQueue.Priority.BULK.ordinal(), NOW);
+        final UploadQueue.QueuedFile agedBulk = new UploadQueue.QueuedFile(UploadQueue.Priority.BULK.ordinal(), NOW - DAY_MILLIS);
+
+        assertEquals(UploadQueue.Priority.BULK.ordinal(), UploadQueue.getEffectivePriority(newBulk, NOW));
+        assertEquals(UploadQueue.Priority.RECENT.ordinal(), UploadQueue.getEffectivePriority(agedBulk, NOW));
+        assertEquals(UploadQueue.Priority.BULK.ordinal(), UploadQueue.getEffectivePriority(null, NOW));
+    }
+
+    @Test
+    public void scheduleOrdersInteractiveFirst()
+    {
+        final LocalFileEntry ancientBulk = queue("ancient-bulk", UploadQueue.Priority.BULK, NOW - 365 * DAY_MILLIS);
+        final LocalFileEntry recent = queue("recent", UploadQueue.Priority.RECENT, NOW);
+        final LocalFileEntry interactive = queue("interactive", UploadQueue.Priority.INTERACTIVE, NOW);
+
+        final List<List<LocalFileEntry>> batches = UploadQueue.createBatches(Arrays.asList(ancientBulk, recent, interactive), queuedFiles, false, NOW);
+
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(interactive), batches.get(0));
+        assertEquals(Arrays.asList(ancientBulk, recent), batches.get(1)); // Both are recent after aging, and the bulk file was queued first
+    }
+
+    @Test
+    public void deferredBulkIsReleasedAfterMaxDeferral()
+    {
+        final LocalFileEntry deferredBulk = queue("deferred-bulk", UploadQueue.Priority.BULK, NOW - UploadQueue.MAX_BULK_DEFERRAL_MILLIS + 1);
+        final LocalFileEntry releasedBulk = queue("released-bulk", UploadQueue.Priority.BULK, NOW - UploadQueue.MAX_BULK_DEFERRAL_MILLIS);
+        final LocalFileEntry recent = queue("recent", UploadQueue.Priority.RECENT, NOW);
+        final List<LocalFileEntry> fileEntries = Arrays.asList(deferredBulk, releasedBulk, recent);
+
+        final List<List<LocalFileEntry>> deferredBatches = UploadQueue.createBatches(fileEntries, queuedFiles, true, NOW);
+        assertEquals(1, deferredBatches.size());
+        assertEquals(Arrays.asList(releasedBulk, recent), deferredBatches.get(0));
+
+        final List<List<LocalFileEntry>> allBatches = UploadQueue.createBatches(fileEntries, queuedFiles, false, NOW);
+        assertEquals(1, allBatches.size());
+        assertEquals(Arrays.asList(releasedBulk, deferredBulk, recent), allBatches.get(0));
+    }
+
+    private LocalFileEntry queue(String name, UploadQueue.Priority priority, long enqueuedAt)
+    {
+        final LocalFileEntry fileEntry = new LocalFileEntry(new File("/sdcard/sync", name), name, 1024, enqueuedAt);
+        queuedFiles.put(fileEntry.getPath(), new UploadQueue.QueuedFile(priority.ordinal(), enqueuedAt));
+        return fileEntry;
+    }
+}